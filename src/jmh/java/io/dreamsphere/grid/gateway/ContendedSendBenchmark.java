@@ -0,0 +1,56 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Several producers sending to the same session, as the grid does when a player's updates come
+ * from more than one place. Every operation sends one message; one in eight also flushes. The
+ * socket throws its output away, so the numbers are about how the producers get along.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ContendedSendBenchmark {
+    private static final int MESSAGE_SIZE = 64;
+
+    private TcpConnection connection;
+    private final byte[] message = new byte[MESSAGE_SIZE];
+
+    @State(Scope.Thread)
+    public static class Producer {
+        int sends;
+    }
+
+    @Setup
+    public void createConnection() throws IOException {
+        connection = new TcpConnection(new DiscardSocket());
+        Arrays.fill(message, (byte) 'x');
+    }
+
+    @Benchmark
+    public void send(Producer producer) throws IOException {
+        connection.send(message);
+
+        if ((++producer.sends & 7) == 0) {
+            connection.flush();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A socket for benchmarks that throws its output away and has no input, so a {@link TcpConnection}
+ * over it measures the gateway's own work without the kernel.
+ */
+final class DiscardSocket extends Socket {
+    @Override
+    public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return InputStream.nullInputStream();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+}
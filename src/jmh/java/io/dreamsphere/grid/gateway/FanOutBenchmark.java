@@ -0,0 +1,67 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sending one update to many sessions, through a {@link BroadcastGroup} against a loop of ordinary
+ * sends. Run with {@code -prof gc}: the broadcast allocates per recipient only the view it queues,
+ * where the plain loop copies the message into every connection's queue.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FanOutBenchmark {
+    @Param({ "100", "10000" })
+    private int recipients;
+
+    @Param({ "64", "1024" })
+    private int messageSize;
+
+    private final BroadcastGroup group = new BroadcastGroup();
+    private final List<TelnetConnection> connections = new ArrayList<>();
+    private byte[] message;
+
+    @Setup
+    public void createConnections() throws IOException {
+        for (int i = 0; i < recipients; i++) {
+            TelnetConnection connection = new TelnetConnection(new TcpConnection(new DiscardSocket()));
+            connections.add(connection);
+            group.join(connection);
+        }
+
+        message = new byte[messageSize];
+        Arrays.fill(message, (byte) 'x');
+    }
+
+    @Benchmark
+    public int broadcast() {
+        return group.broadcast(message);
+    }
+
+    @Benchmark
+    public void sendToEach() throws IOException {
+        for (TelnetConnection connection : connections) {
+            connection.send(message);
+            connection.flush();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.JMException;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opens thousands of loopback Telnet clients against a gateway and keeps them busy for a while,
+ * to catch scaling regressions that one or two test sockets never show. Each client runs on a
+ * virtual thread and picks one of three actions at a time from a weighted mix:
+ * <ul>
+ * <li>typing, one keystroke at a time, waiting for the echo of each when the gateway echoes</li>
+ * <li>a paste, a burst of lines in a single write</li>
+ * <li>negotiation, a window resize and an ECHO toggle ahead of a line</li>
+ * </ul>
+ * Every interval and again at the end it reports connect latency up to the banner, keystroke echo
+ * and line reply round trips at p50/p99/p999, throughput, and the GC pauses of this JVM.
+ * <p>
+ * Without load.target the gateway runs in this JVM, configured from the usual gateway.*
+ * properties, with its per-line logging silenced and the per address connect rate lifted since
+ * every client comes from loopback. A gateway elsewhere needs gateway.connectRatePerIp=0, and the
+ * GC pauses reported are then only the generator's own.
+ * <p>
+ * The process exits with 1 if any client failed, or if load.maxP99Millis is set and the reply p99
+ * went over it:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec@load -Dload.args="-Dload.clients=5000 -Dload.duration=600"
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final byte IAC = TelnetCodes.CMD_IAC;
+    private static final byte[] BANNER = "Welcome!".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REPLY = "I agree!\n\r".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] WILL_ECHO = {IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_ECHO};
+    private static final byte[] CRLF = {TelnetCodes.NVT_CR, TelnetCodes.NVT_LF};
+    // Answers to what the gateway offers by default, compression is turned down to keep the
+    // clients cheap and the window size is reported right away
+    private static final byte[] HANDSHAKE = {
+            IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_SUPPRESS_GO_AHEAD,
+            IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_ECHO,
+            IAC, TelnetCodes.CMD_DONT, TelnetCodes.OPT_COMPRESS2,
+            IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_WINDOW_SIZE,
+            IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_WINDOW_SIZE, 0, 80, 0, 24, IAC, TelnetCodes.CMD_SE,
+            IAC, TelnetCodes.CMD_WONT, TelnetCodes.OPT_TERMINAL_TYPE};
+    private static final String[] LINES = {"look", "north", "get lamp", "say hello there",
+            "examine the old fountain", "tell bob meet me at the gate in five", "inventory", "who"};
+
+    private enum Action {
+        TYPING,
+        PASTE,
+        NEGOTIATION
+    }
+
+    private final PrintStream report;
+    private final String target;
+    private final int clients;
+    private final int durationSeconds;
+    private final int rampUpSeconds;
+    private final int reportSeconds;
+    private final int thinkMillis;
+    private final int keyDelayMillis;
+    private final int pasteLines;
+    private final int timeoutMillis;
+    private final long maxP99Millis;
+    private final Action[] actions = Action.values();
+    private final int[] cumulativeWeights;
+
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram gcPauses = new LatencyHistogram();
+    private final LongAdder linesAnswered = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final LatencyHistogram totalEcho = new LatencyHistogram();
+    private final LatencyHistogram totalReply = new LatencyHistogram();
+    // Swapped for fresh ones at every report, so each interval stands on its own
+    private volatile LatencyHistogram intervalEcho = new LatencyHistogram();
+    private volatile LatencyHistogram intervalReply = new LatencyHistogram();
+    private volatile boolean running = true;
+
+    LoadGenerator(PrintStream report) {
+        this.report = report;
+        target = System.getProperty("load.target", "");
+        clients = Integer.getInteger("load.clients", 1000);
+        durationSeconds = Integer.getInteger("load.duration", 60);
+        rampUpSeconds = Integer.getInteger("load.rampUp", 10);
+        reportSeconds = Integer.getInteger("load.reportInterval", 10);
+        thinkMillis = Integer.getInteger("load.thinkMillis", 1000);
+        keyDelayMillis = Integer.getInteger("load.keyDelayMillis", 40);
+        pasteLines = Integer.getInteger("load.pasteLines", 20);
+        timeoutMillis = Integer.getInteger("load.timeoutMillis", 5000);
+        maxP99Millis = Long.getLong("load.maxP99Millis", 0);
+        cumulativeWeights = parseMix(System.getProperty("load.mix", "typing=70,paste=20,negotiation=10"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator(System.out);
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    boolean run() throws Exception {
+        InetSocketAddress address;
+        Gateway gateway = null;
+
+        if (target.isEmpty()) {
+            gateway = startGateway();
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), gateway.getLocalPort());
+        } else {
+            int colon = target.lastIndexOf(':');
+            address = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        }
+
+        watchGcPauses();
+        report.println(String.format("%d clients against %s for %ds, ramping up over %ds",
+                clients, address, durationSeconds, rampUpSeconds));
+
+        ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(reportSeconds);
+        long lastReport = start;
+        long lastLines = 0;
+        long lastSent = 0;
+        long lastReceived = 0;
+        int started = 0;
+
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            // Clients are spread evenly over the ramp up rather than all connecting at once
+            int due = rampUpSeconds == 0 ? clients
+                    : (int) Math.min(clients, clients * (now - start) / TimeUnit.SECONDS.toNanos(rampUpSeconds));
+
+            for (; started < due; started++) {
+                executor.execute(() -> runClient(address));
+            }
+
+            if (now >= nextReport) {
+                long lines = linesAnswered.sum();
+                long sent = bytesSent.sum();
+                long received = bytesReceived.sum();
+                double seconds = (now - lastReport) / 1e9;
+                LatencyHistogram echo = intervalEcho;
+                LatencyHistogram reply = intervalReply;
+                intervalEcho = new LatencyHistogram();
+                intervalReply = new LatencyHistogram();
+                report.println(String.format(Locale.ROOT, "[%5ds] %s", TimeUnit.NANOSECONDS.toSeconds(now - start),
+                        describe(connected.get(), echo, reply, (lines - lastLines) / seconds, (sent - lastSent) / seconds,
+                                (received - lastReceived) / seconds)));
+                lastReport = now;
+                lastLines = lines;
+                lastSent = sent;
+                lastReceived = received;
+                nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+            }
+
+            Thread.sleep(10);
+        }
+
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(timeoutMillis + thinkMillis + 1000L, TimeUnit.MILLISECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        report.println(String.format(Locale.ROOT, "Total   %s", describe((int) connectLatency.count(), totalEcho, totalReply,
+                linesAnswered.sum() / seconds, bytesSent.sum() / seconds, bytesReceived.sum() / seconds)));
+        report.println(String.format(Locale.ROOT, "Connect p50 %s  p99 %s  p999 %s ms over %d connections",
+                millis(connectLatency, 0.5), millis(connectLatency, 0.99), millis(connectLatency, 0.999),
+                connectLatency.count()));
+        report.println(String.format(Locale.ROOT, "GC      %d pauses  p50 %s  p99 %s  max %s ms",
+                gcPauses.count(), millis(gcPauses, 0.5), millis(gcPauses, 0.99), millis(gcPauses, 1)));
+
+        if (gateway != null) {
+            gateway.close();
+        }
+
+        boolean passed = failures.get() == 0;
+
+        if (maxP99Millis > 0 && totalReply.valueAt(0.99) > TimeUnit.MILLISECONDS.toNanos(maxP99Millis)) {
+            report.println("Reply p99 is over the " + maxP99Millis + " ms allowed");
+            passed = false;
+        }
+
+        return passed;
+    }
+
+    private String describe(int clientCount, LatencyHistogram echo, LatencyHistogram reply, double linesPerSecond,
+                            double sentPerSecond, double receivedPerSecond) {
+        return String.format(Locale.ROOT, "clients %d (%d failed)  lines %.0f/s  sent %.1f KB/s  received %.1f KB/s  "
+                        + "echo p50 %s p99 %s p999 %s ms  reply p50 %s p99 %s p999 %s ms",
+                clientCount, failures.get(), linesPerSecond, sentPerSecond / 1024, receivedPerSecond / 1024,
+                millis(echo, 0.5), millis(echo, 0.99), millis(echo, 0.999),
+                millis(reply, 0.5), millis(reply, 0.99), millis(reply, 0.999));
+    }
+
+    private static String millis(LatencyHistogram histogram, double quantile) {
+        return String.format(Locale.ROOT, "%.2f", histogram.valueAt(quantile) / 1e6);
+    }
+
+    private Gateway startGateway() throws IOException, JMException {
+        // Every client comes from the same address, which the per address limit would turn away
+        if (System.getProperty("gateway.connectRatePerIp") == null) {
+            System.setProperty("gateway.connectRatePerIp", "0");
+        }
+
+        if (System.getProperty("gateway.port") == null) {
+            System.setProperty("gateway.port", "0");
+        }
+
+        // The gateway logs every line it receives, which would drown the report and slow the run
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Gateway gateway = Gateway.create(GatewayConfig.fromSystemProperties());
+        gateway.open();
+
+        Thread acceptor = new Thread(() -> {
+            try {
+                gateway.run();
+            } catch (IOException e) {
+                // Closed at the end of the run
+            }
+        }, "load-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return gateway;
+    }
+
+    private void watchGcPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            // Concurrent cycles run alongside the application, only the pauses stop it
+            if (collector.getName().contains("Concurrent") || collector.getName().contains("Cycles")) {
+                continue;
+            }
+
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    GarbageCollectionNotificationInfo info =
+                            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    gcPauses.record(TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+                }
+            }, null, null);
+        }
+    }
+
+    private void runClient(InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            long connectStart = System.nanoTime();
+            socket.connect(address, timeoutMillis);
+            Client client = new Client(socket.getInputStream(), socket.getOutputStream());
+            boolean echoes = client.awaitBanner();
+            connectLatency.record(System.nanoTime() - connectStart);
+            connected.incrementAndGet();
+
+            try {
+                client.write(HANDSHAKE);
+
+                while (running) {
+                    switch (pickAction()) {
+                        case TYPING:
+                            client.type(LINES[ThreadLocalRandom.current().nextInt(LINES.length)], echoes);
+                            break;
+                        case PASTE:
+                            client.paste();
+                            break;
+                        case NEGOTIATION:
+                            client.negotiate();
+                            break;
+                    }
+
+                    // Jittered, so the clients don't fall into step with each other
+                    Thread.sleep(thinkMillis / 2 + ThreadLocalRandom.current().nextInt(thinkMillis + 1));
+                }
+            } finally {
+                connected.decrementAndGet();
+            }
+        } catch (IOException e) {
+            if (failures.incrementAndGet() <= 10) {
+                report.println("Client failed: " + e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Action pickAction() {
+        int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int i = 0;
+
+        while (pick >= cumulativeWeights[i]) {
+            i++;
+        }
+
+        return actions[i];
+    }
+
+    private int[] parseMix(String mix) {
+        int[] weights = new int[actions.length];
+
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            weights[Action.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Integer.parseInt(parts[1].trim());
+        }
+
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("The load mix needs at least one action with a weight: " + mix);
+        }
+
+        return weights;
+    }
+
+    private final class Client {
+        private final InputStream input;
+        private final OutputStream output;
+        private final byte[] readBuffer = new byte[4096];
+        // How far into the reply the bytes read so far have matched
+        private int replyMatched;
+
+        Client(InputStream input, OutputStream output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        // Reads up to the banner and reports whether the gateway offered to echo on the way
+        boolean awaitBanner() throws IOException {
+            int bannerMatched = 0;
+            int echoMatched = 0;
+            boolean echoes = false;
+
+            while (bannerMatched < BANNER.length) {
+                int bytesRead = read();
+
+                for (int i = 0; i < bytesRead && bannerMatched < BANNER.length; i++) {
+                    bannerMatched = match(BANNER, bannerMatched, readBuffer[i]);
+                    echoMatched = match(WILL_ECHO, echoMatched, readBuffer[i]);
+                    echoes |= echoMatched == WILL_ECHO.length;
+                }
+            }
+
+            return echoes;
+        }
+
+        void type(String line, boolean echoes) throws IOException {
+            for (int i = 0; i < line.length(); i++) {
+                long sent = System.nanoTime();
+                write(new byte[] {(byte) line.charAt(i)});
+
+                if (echoes) {
+                    awaitEcho((byte) line.charAt(i));
+                    long nanos = System.nanoTime() - sent;
+                    intervalEcho.record(nanos);
+                    totalEcho.record(nanos);
+                }
+
+                sleep(keyDelayMillis);
+            }
+
+            long sent = System.nanoTime();
+            write(CRLF);
+            awaitReplies(1, sent);
+        }
+
+        void paste() throws IOException {
+            StringBuilder burst = new StringBuilder();
+
+            for (int i = 0; i < pasteLines; i++) {
+                burst.append(LINES[i % LINES.length]).append("\r\n");
+            }
+
+            long sent = System.nanoTime();
+            write(burst.toString().getBytes(StandardCharsets.UTF_8));
+            awaitReplies(pasteLines, sent);
+        }
+
+        void negotiate() throws IOException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            byte[] line = LINES[random.nextInt(LINES.length)].getBytes(StandardCharsets.UTF_8);
+            byte[] commands = {
+                    IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_WINDOW_SIZE,
+                    0, (byte) (60 + random.nextInt(140)), 0, (byte) (20 + random.nextInt(60)),
+                    IAC, TelnetCodes.CMD_SE,
+                    IAC, TelnetCodes.CMD_DONT, TelnetCodes.OPT_ECHO,
+                    IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_ECHO};
+            byte[] message = new byte[commands.length + line.length + CRLF.length];
+            System.arraycopy(commands, 0, message, 0, commands.length);
+            System.arraycopy(line, 0, message, commands.length, line.length);
+            System.arraycopy(CRLF, 0, message, commands.length + line.length, CRLF.length);
+
+            long sent = System.nanoTime();
+            write(message);
+            awaitReplies(1, sent);
+        }
+
+        void write(byte[] bytes) throws IOException {
+            output.write(bytes);
+            bytesSent.add(bytes.length);
+        }
+
+        private void awaitEcho(byte echo) throws IOException {
+            while (true) {
+                int bytesRead = read();
+
+                for (int i = 0; i < bytesRead; i++) {
+                    if (readBuffer[i] == echo) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Each reply counts from when the input that asked for it was sent
+        private void awaitReplies(int replies, long sent) throws IOException {
+            int seen = 0;
+
+            while (seen < replies) {
+                int bytesRead = read();
+                long nanos = System.nanoTime() - sent;
+
+                for (int i = 0; i < bytesRead; i++) {
+                    replyMatched = match(REPLY, replyMatched, readBuffer[i]);
+
+                    if (replyMatched == REPLY.length) {
+                        replyMatched = 0;
+                        seen++;
+                        linesAnswered.increment();
+                        intervalReply.record(nanos);
+                        totalReply.record(nanos);
+                    }
+                }
+            }
+        }
+
+        private int read() throws IOException {
+            int bytesRead = input.read(readBuffer);
+
+            if (bytesRead < 0) {
+                throw new IOException("The gateway closed the connection");
+            }
+
+            bytesReceived.add(bytesRead);
+            return bytesRead;
+        }
+
+        private void sleep(int millis) throws IOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+
+    // None of the patterns repeat their first byte, so a mismatch only has to check for a new start
+    private static int match(byte[] pattern, int matched, byte b) {
+        if (matched < pattern.length && pattern[matched] == b) {
+            return matched + 1;
+        }
+
+        return pattern[0] == b ? 1 : 0;
+    }
+}
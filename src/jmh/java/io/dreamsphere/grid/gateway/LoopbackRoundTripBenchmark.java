@@ -0,0 +1,109 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip latency between two {@link TcpConnection}s over loopback: the benchmark thread sends
+ * a message and flushes, an echo thread sends it straight back, and the operation ends once the
+ * whole message has been read again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoopbackRoundTripBenchmark {
+    @Param({ "64", "1024" })
+    private int messageSize;
+
+    private ServerSocket serverSocket;
+    private TcpConnection client;
+    private TcpConnection server;
+    private Thread echoThread;
+    private byte[] message;
+    private byte[] response;
+
+    @Setup
+    public void connect() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        clientSocket.setTcpNoDelay(true);
+        Socket serverSide = serverSocket.accept();
+        serverSide.setTcpNoDelay(true);
+        client = new TcpConnection(clientSocket);
+        server = new TcpConnection(serverSide);
+        message = new byte[messageSize];
+        Arrays.fill(message, (byte) 'x');
+        response = new byte[messageSize];
+        echoThread = new Thread(this::echo, "benchmark-echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+    }
+
+    @TearDown
+    public void disconnect() throws IOException, InterruptedException {
+        client.close();
+        echoThread.join(TimeUnit.SECONDS.toMillis(5));
+        server.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        client.send(message);
+        client.flush();
+        int received = 0;
+
+        while (received < messageSize) {
+            int bytesRead = client.read(response);
+
+            if (bytesRead < 0) {
+                throw new IOException("Echo connection closed");
+            }
+
+            received += bytesRead;
+        }
+
+        return received;
+    }
+
+    private void echo() {
+        byte[] buffer = new byte[4096];
+
+        try {
+            int bytesRead;
+
+            while ((bytesRead = server.read(buffer)) >= 0) {
+                server.send(buffer, bytesRead);
+                server.flush();
+            }
+        } catch (IOException e) {
+            // The client side went away at the end of the run
+        }
+    }
+}
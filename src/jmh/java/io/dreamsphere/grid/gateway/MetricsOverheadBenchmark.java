@@ -0,0 +1,115 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The cost of {@link GatewayMetrics} on a session's hot path: each operation reads a short command
+ * with an IAC in it and sends a reply, through a {@link TelnetConnection} over a
+ * {@link TcpConnection} backed by memory. Runs with metrics disabled and enabled; several threads
+ * share one enabled instance just like the sessions of a gateway do.
+ */
+@State(Scope.Thread)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetricsOverheadBenchmark {
+    private static final byte[] COMMAND = ("look" + (char) 0xFF + (char) 0xF1 + "\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] REPLY = "You see nothing special.\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Benchmark)
+    public static class SharedMetrics {
+        @Param({ "false", "true" })
+        private boolean enabled;
+
+        private GatewayMetrics metrics;
+
+        @Setup
+        public void createMetrics() {
+            metrics = enabled ? new GatewayMetrics() : GatewayMetrics.disabled();
+        }
+    }
+
+    private TelnetConnection telnetConnection;
+    private final byte[] readBuffer = new byte[COMMAND.length];
+
+    @Setup
+    public void createConnection(SharedMetrics shared) throws IOException {
+        TcpConnection tcpConnection = new TcpConnection(new ReplaySocket(COMMAND), shared.metrics);
+        telnetConnection = new TelnetConnection(tcpConnection, shared.metrics);
+    }
+
+    @Benchmark
+    public int readAndReply() throws IOException {
+        int bytesRead = telnetConnection.read(readBuffer);
+        telnetConnection.send(REPLY);
+        telnetConnection.flush();
+        return bytesRead;
+    }
+
+    private static final class ReplaySocket extends Socket {
+        private final InputStream inputStream;
+
+        private ReplaySocket(byte[] input) {
+            inputStream = new InputStream() {
+                private int pos;
+
+                @Override
+                public int read() {
+                    int b = input[pos] & 0xFF;
+                    pos = (pos + 1) % input.length;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    int count = Math.min(length, input.length - pos);
+                    System.arraycopy(input, pos, buffer, offset, count);
+                    pos = (pos + count) % input.length;
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return input.length - pos;
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * How many calls {@link TelnetConnection#read(byte[])} makes to the connection under bulk input,
+ * each of which is a syscall on a real socket. The secondary results give reads and availability
+ * checks at the same rate as the operations, along with the bytes decoded, so dividing one by
+ * another gives the calls per read or per kilobyte. The input arrives either in segments smaller than the read buffer, as it does off a socket
+ * that is being filled while it is read, or as much at a time as fits.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReadSyscallBenchmark {
+    private static final int INPUT_SIZE = 256 * 1024;
+    private static final int OUTPUT_SIZE = 16 * 1024;
+
+    @Param({ "536", "1000000" })
+    private int segmentSize;
+
+    private ReplayConnection replayConnection;
+    private TelnetConnection telnetConnection;
+    private final byte[] output = new byte[OUTPUT_SIZE];
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Calls {
+        public long connectionReads;
+        public long availabilityChecks;
+        public long bytesDecoded;
+    }
+
+    @Setup
+    public void createConnection() {
+        byte[] input = new byte[INPUT_SIZE];
+        Arrays.fill(input, (byte) 'x');
+        replayConnection = new ReplayConnection(input, segmentSize);
+        telnetConnection = new TelnetConnection(replayConnection);
+    }
+
+    @Benchmark
+    public int decode(Calls calls) throws IOException {
+        long reads = replayConnection.reads;
+        long availableChecks = replayConnection.availableChecks;
+        int decoded = telnetConnection.read(output);
+        calls.connectionReads += replayConnection.reads - reads;
+        calls.availabilityChecks += replayConnection.availableChecks - availableChecks;
+        calls.bytesDecoded += decoded;
+        return decoded;
+    }
+}
@@ -0,0 +1,90 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+
+/**
+ * Every client reconnecting at once, as after a restart of the game. Eight client threads connect
+ * as fast as they can while the acceptors take the connections and close them straight away. A
+ * client only moves on once the server has hung up on it, so the score is accepts per second
+ * rather than how fast the kernel can fill the accept queue. The clients reset rather than close,
+ * which keeps the loopback ports out of TIME_WAIT.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReconnectStormBenchmark {
+    @Param({ "1", "4" })
+    public int acceptors;
+
+    @Param({ "false", "true" })
+    public boolean reusePort;
+
+    private AcceptorGroup acceptorGroup;
+    private InetSocketAddress address;
+
+    @Setup
+    public void startAcceptors() throws IOException {
+        acceptorGroup = new AcceptorGroup(this::createListener, Connection::close, acceptors, reusePort,
+                GatewayConfig.builder().build().getAcceptBacklog());
+        acceptorGroup.open(0);
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), acceptorGroup.getLocalPort());
+
+        Thread acceptor = new Thread(() -> {
+            try {
+                acceptorGroup.run();
+            } catch (IOException e) {
+                // Closed at the end of the run
+            }
+        }, "benchmark-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @TearDown
+    public void stopAcceptors() throws IOException {
+        acceptorGroup.close();
+    }
+
+    @Benchmark
+    public int reconnect() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setSoLinger(true, 0);
+            socket.connect(address);
+            return socket.getInputStream().read();
+        }
+    }
+
+    private Listener createListener() {
+        try {
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, reusePort);
+            return new TcpListener(serverSocket, TcpConnection::new);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An in-memory connection for benchmarks: reads replay the same input over and over, sends are
+ * consumed and thrown away. Keeps the socket out of the numbers when measuring the layers above it.
+ * Reads and availability checks are counted, they stand for the syscalls a socket would make.
+ */
+final class ReplayConnection implements Connection {
+    private final byte[] input;
+    private final int maxReadSize;
+    private int inputPos;
+    long reads;
+    long availableChecks;
+
+    ReplayConnection(byte[] input) {
+        this(input, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxReadSize the most a single read returns, like a socket that has only received so
+     *                    many bytes when it is read.
+     */
+    ReplayConnection(byte[] input, int maxReadSize) {
+        this.input = input;
+        this.maxReadSize = maxReadSize;
+    }
+
+    @Override
+    public void send(byte[] message) {
+    }
+
+    @Override
+    public void send(byte[] message, int length) {
+    }
+
+    @Override
+    public void send(ByteBuffer message) {
+        message.position(message.limit());
+    }
+
+    @Override
+    public void send(ByteBuffer[] messages) {
+        for (ByteBuffer message : messages) {
+            message.position(message.limit());
+        }
+    }
+
+    @Override
+    public void sendShared(ByteBuffer message) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public int read(byte[] buffer) {
+        return read(ByteBuffer.wrap(buffer));
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) {
+        reads++;
+        int length = Math.min(Math.min(buffer.remaining(), input.length - inputPos), maxReadSize);
+        buffer.put(input, inputPos, length);
+        inputPos = (inputPos + length) % input.length;
+        return length;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int readAvailable() {
+        availableChecks++;
+        return input.length - inputPos;
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Send throughput of a {@link TelnetConnection} over a {@link TcpConnection} whose socket throws
+ * the output away, so the numbers cover queueing and coalescing but not the kernel. Every operation
+ * sends a burst of messages and flushes once.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SendBenchmark {
+    @Param({ "16", "256", "4096" })
+    private int messageSize;
+
+    @Param({ "1", "16" })
+    private int messagesPerFlush;
+
+    private TelnetConnection telnetConnection;
+    private byte[] messageArray;
+    private ByteBuffer messageBuffer;
+
+    @Setup
+    public void createConnection() throws IOException {
+        telnetConnection = new TelnetConnection(new TcpConnection(new DiscardSocket()));
+        messageArray = new byte[messageSize];
+        Arrays.fill(messageArray, (byte) 'x');
+        messageBuffer = ByteBuffer.allocateDirect(messageSize);
+        messageBuffer.put(messageArray).flip();
+    }
+
+    @Benchmark
+    public void sendArray() throws IOException {
+        for (int i = 0; i < messagesPerFlush; i++) {
+            telnetConnection.send(messageArray);
+        }
+
+        telnetConnection.flush();
+    }
+
+    @Benchmark
+    public void sendDirectBuffer() throws IOException {
+        for (int i = 0; i < messagesPerFlush; i++) {
+            messageBuffer.rewind();
+            telnetConnection.send(messageBuffer);
+        }
+
+        telnetConnection.flush();
+    }
+}
@@ -0,0 +1,119 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a gateway process a few times over and measures how long it takes to serve its first
+ * banner, and how much memory it holds once it has. Rolling restarts drop sessions for as long as
+ * startup takes, so this is the number to compare between the JVM build and the native image:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec@startup
+ * mvn -Pbenchmark test-compile exec:exec@startup -Dstartup.command=target/grid-gateway
+ * </pre>
+ * Without a command the JVM build on the test classpath is started. The port to listen on is
+ * passed as -Dgateway.port right after the executable, and memory is read from /proc, so this
+ * only runs on Linux.
+ */
+public class StartupProbe {
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    public static void main(String[] args) throws Exception {
+        List<String> command = args.length > 0 ? new ArrayList<>(Arrays.asList(args)) : jvmCommand();
+        int runs = Integer.getInteger("startup.runs", 5);
+        long[] startupNanos = new long[runs];
+        long[] rssKilobytes = new long[runs];
+
+        for (int i = 0; i < runs; i++) {
+            int port = freePort();
+            List<String> run = new ArrayList<>(command);
+            run.add(1, "-Dgateway.port=" + port);
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(run).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+
+            try {
+                startupNanos[i] = awaitBanner(port, start);
+                rssKilobytes[i] = residentKilobytes(process.pid());
+            } finally {
+                process.destroy();
+                process.waitFor(10, TimeUnit.SECONDS);
+            }
+
+            System.out.println(String.format(Locale.ROOT, "Run %d: first banner after %.1f ms, %d MB resident",
+                    i + 1, startupNanos[i] / 1e6, rssKilobytes[i] / 1024));
+        }
+
+        Arrays.sort(startupNanos);
+        Arrays.sort(rssKilobytes);
+        System.out.println(String.format(Locale.ROOT, "Median over %d runs of %s: %.1f ms to the first banner, %d MB resident",
+                runs, command.get(0), startupNanos[runs / 2] / 1e6, rssKilobytes[runs / 2] / 1024));
+    }
+
+    private static List<String> jvmCommand() {
+        return new ArrayList<>(Arrays.asList(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "--add-opens", "java.base/java.lang=ALL-UNNAMED",
+                "-cp", System.getProperty("java.class.path"),
+                Gateway.class.getName()));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Connects as soon as the port is open and waits for the banner, measured from the process start
+    private static long awaitBanner(int port, long start) throws IOException, InterruptedException {
+        while (System.nanoTime() - start < TIMEOUT_NANOS) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setSoTimeout(5000);
+                InputStream input = socket.getInputStream();
+                StringBuilder received = new StringBuilder();
+                byte[] buffer = new byte[256];
+                int bytesRead;
+
+                while ((bytesRead = input.read(buffer)) > 0) {
+                    received.append(new String(buffer, 0, bytesRead, StandardCharsets.ISO_8859_1));
+
+                    if (received.indexOf("Welcome!") >= 0) {
+                        return System.nanoTime() - start;
+                    }
+                }
+            } catch (IOException e) {
+                // Not listening yet
+                Thread.sleep(1);
+            }
+        }
+
+        throw new IOException("No banner within " + TimeUnit.NANOSECONDS.toSeconds(TIMEOUT_NANOS) + "s");
+    }
+
+    private static long residentKilobytes(long pid) throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc", Long.toString(pid), "status"))) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+
+        throw new IOException("No resident set size for process " + pid);
+    }
+}
@@ -0,0 +1,96 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoding throughput of {@link TelnetConnection#read}, fed from memory so that only the decoder is
+ * measured. Every operation decodes one 4 KiB buffer of output, so ops/s times 4 KiB is the
+ * decoded data rate. The input shapes are
+ * <ul>
+ *   <li>PLAIN: text only, the bulk copy path</li>
+ *   <li>IAC_DENSE: an escaped 255 or a NOP every few bytes</li>
+ *   <li>SUBNEGOTIATION: window size reports between short runs of text</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TelnetReadBenchmark {
+    private static final int INPUT_SIZE = 64 * 1024;
+    private static final int OUTPUT_SIZE = 4096;
+
+    @Param({ "PLAIN", "IAC_DENSE", "SUBNEGOTIATION" })
+    private Input input;
+
+    private TelnetConnection telnetConnection;
+    private final byte[] outputArray = new byte[OUTPUT_SIZE];
+    private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(OUTPUT_SIZE);
+
+    public enum Input {
+        PLAIN("The quick brown fox jumps over the lazy dog.\r\n"),
+        IAC_DENSE("look",
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, 'n', 'o', 'r', 't', 'h',
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_NOP, '\r', '\n'),
+        SUBNEGOTIATION("say hi\r\n",
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, 31, 0, 80, 0, 24, TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE);
+
+        private final byte[] unit;
+
+        Input(String text, int... bytes) {
+            ByteArrayOutputStream unit = new ByteArrayOutputStream();
+            byte[] textBytes = text.getBytes(StandardCharsets.US_ASCII);
+            unit.write(textBytes, 0, textBytes.length);
+
+            for (int b : bytes) {
+                unit.write(b);
+            }
+
+            this.unit = unit.toByteArray();
+        }
+
+        byte[] repeat(int size) {
+            byte[] data = new byte[size - size % unit.length];
+
+            for (int i = 0; i < data.length; i += unit.length) {
+                System.arraycopy(unit, 0, data, i, unit.length);
+            }
+
+            return data;
+        }
+    }
+
+    @Setup
+    public void createConnection() {
+        telnetConnection = new TelnetConnection(new ReplayConnection(input.repeat(INPUT_SIZE)));
+    }
+
+    @Benchmark
+    public int readIntoArray() throws IOException {
+        return telnetConnection.read(outputArray);
+    }
+
+    @Benchmark
+    public int readIntoDirectBuffer() throws IOException {
+        outputBuffer.clear();
+        return telnetConnection.read(outputBuffer);
+    }
+}
@@ -0,0 +1,180 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares platform and virtual session threads for the blocking transport. Opens the requested
+ * number of loopback clients (10k by default), waits for every session to send its banner, then
+ * has each client go through a number of request/response rounds. Run it with
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:java \
+ *     -Dexec.mainClass=io.dreamsphere.grid.gateway.ThreadPerSessionBenchmark -Dexec.args="10000 5"
+ * </pre>
+ * Every connection costs two file descriptors in this process, so the open file limit needs to be
+ * comfortably above twice the connection count.
+ */
+public class ThreadPerSessionBenchmark {
+    private static final int RESPONSE_LENGTH = "I agree!\n\r".length();
+    // Sessions open with the default option offers ahead of the banner
+    private static final int BANNER_LENGTH = TelnetOptionPolicy.defaultPolicy().initialOffers().length
+            + "Welcome!\n\r".length();
+    private static final byte[] REQUEST = "ping\r\n".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        PrintStream report = System.out;
+
+        // The sessions log every message, which would drown the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        for (GatewayConfig.SessionThreads sessionThreads : GatewayConfig.SessionThreads.values()) {
+            report.println(run(sessionThreads, connections, rounds));
+        }
+    }
+
+    private static String run(GatewayConfig.SessionThreads sessionThreads, int connections, int rounds)
+            throws Exception {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), connections);
+        GatewayConfig config = GatewayConfig.builder().build();
+        TcpConnectionProvider connectionProvider = new TcpConnectionProvider(config, GatewayMetrics.disabled(),
+                new IdleReaper(config, GatewayMetrics.disabled()));
+        TcpListener listener = new TcpListener(serverSocket, connectionProvider);
+        ExecutorService executor = BlockingSessionDriver.createExecutor(sessionThreads);
+        BlockingSessionDriver sessionDriver = new BlockingSessionDriver(executor);
+        Thread acceptor = new Thread(() -> acceptLoop(listener, sessionDriver), "benchmark-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        System.gc();
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        try (Selector selector = Selector.open()) {
+            List<Client> clients = new ArrayList<>(connections);
+            long connectStart = System.nanoTime();
+
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+                channel.configureBlocking(false);
+                Client client = new Client(channel);
+                channel.register(selector, SelectionKey.OP_READ, client);
+                clients.add(client);
+            }
+
+            awaitResponses(selector, clients, BANNER_LENGTH);
+            long connectNanos = System.nanoTime() - connectStart;
+
+            System.gc();
+            long sessionHeap = usedHeap() - heapBefore;
+            int sessionThreadCount = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+            long roundsStart = System.nanoTime();
+
+            for (int round = 1; round <= rounds; round++) {
+                for (Client client : clients) {
+                    client.channel.write(ByteBuffer.wrap(REQUEST));
+                }
+
+                awaitResponses(selector, clients, BANNER_LENGTH + round * RESPONSE_LENGTH);
+            }
+
+            long roundsNanos = System.nanoTime() - roundsStart;
+
+            for (Client client : clients) {
+                client.channel.close();
+            }
+
+            return String.format("%-8s connections=%d connect=%dms heap/session=%dB platformThreads=%d "
+                            + "round-trips/s=%.0f",
+                    sessionThreads, connections, TimeUnit.NANOSECONDS.toMillis(connectNanos),
+                    sessionHeap / connections, sessionThreadCount,
+                    (double) connections * rounds / roundsNanos * TimeUnit.SECONDS.toNanos(1));
+        } finally {
+            listener.close();
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static void acceptLoop(TcpListener listener, BlockingSessionDriver sessionDriver) {
+        try {
+            while (true) {
+                sessionDriver.start(listener.getNextConnection());
+            }
+        } catch (IOException e) {
+            // The listener was closed at the end of the run
+        }
+    }
+
+    private static void awaitResponses(Selector selector, List<Client> clients, long expectedBytes)
+            throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocate(4096);
+        int outstanding = 0;
+
+        for (Client client : clients) {
+            if (client.received < expectedBytes) {
+                outstanding++;
+            }
+        }
+
+        while (outstanding > 0) {
+            selector.select();
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                Client client = (Client) key.attachment();
+                boolean wasOutstanding = client.received < expectedBytes;
+                scratch.clear();
+                int bytesRead = client.channel.read(scratch);
+
+                if (bytesRead < 0) {
+                    throw new IOException("Session closed unexpectedly");
+                }
+
+                client.received += bytesRead;
+
+                if (wasOutstanding && client.received >= expectedBytes) {
+                    outstanding--;
+                }
+            }
+
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static final class Client {
+        private final SocketChannel channel;
+        private long received;
+
+        private Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs the accept loop on one or more threads, so that a storm of connections, such as every
+ * client coming back at once after a restart, isn't taken one accept at a time. With port reuse
+ * every thread waits on a listener of its own, all bound to the same port, and the kernel shares
+ * incoming connections out between them. Without it the threads all wait on the one listener.
+ *
+ * Accepted connections go straight on to the session driver, which with the NIO transport deals
+ * them out over the event loops.
+ */
+class AcceptorGroup {
+    // A failed accept, typically for want of file descriptors, leaves the connection in the
+    // backlog, so trying again straight away would only spin until some are freed
+    private static final long ACCEPT_RETRY_DELAY_MILLIS = 100;
+
+    private final Provider<Listener> listenerProvider;
+    private final SessionDriver sessionDriver;
+    private final int threads;
+    private final int backlog;
+    private final boolean reusePort;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Inject
+    AcceptorGroup(GatewayConfig config, Provider<Listener> listenerProvider, SessionDriver sessionDriver) {
+        this(listenerProvider, sessionDriver, config.getAcceptorThreads(), config.isReusePort(),
+                config.getAcceptBacklog());
+    }
+
+    AcceptorGroup(Provider<Listener> listenerProvider, SessionDriver sessionDriver, int threads, boolean reusePort,
+            int backlog) {
+        this.listenerProvider = listenerProvider;
+        this.sessionDriver = sessionDriver;
+        this.threads = threads;
+        this.reusePort = reusePort;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Binds the listeners. Port 0 picks a free port for the first one, and the others join it there.
+     */
+    void open(int port) throws IOException {
+        int count = reusePort ? threads : 1;
+
+        try {
+            for (int i = 0; i < count; i++) {
+                Listener listener = listenerProvider.get();
+                listeners.add(listener);
+                listener.open(i == 0 ? port : getLocalPort(), backlog);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    int getLocalPort() {
+        return listeners.get(0).getLocalPort();
+    }
+
+    /**
+     * Accepts on the calling thread, and on the other acceptor threads, until the listeners are
+     * closed. A failed accept on a listener that is still open is logged and tried again, and a
+     * connection whose session fails to start is closed and left behind.
+     */
+    void run() throws IOException {
+        for (int i = 1; i < threads; i++) {
+            Listener listener = listeners.get(i % listeners.size());
+            Thread acceptor = new Thread(() -> acceptUntilClosed(listener), "acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        accept(listeners.get(0));
+    }
+
+    void close() throws IOException {
+        IOException failure = null;
+
+        for (Listener listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void accept(Listener listener) throws IOException {
+        while (true) {
+            Connection connection;
+
+            try {
+                connection = listener.getNextConnection();
+            } catch (IOException e) {
+                if (listener.isClosed()) {
+                    throw e;
+                }
+
+                System.out.println("Accept failed: " + e.getMessage());
+                pauseAfterFailedAccept();
+                continue;
+            }
+
+            try {
+                sessionDriver.start(connection);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Session failed: " + e.getMessage());
+                closeFailedConnection(connection);
+            }
+        }
+    }
+
+    // Whatever goes wrong with one connection, the acceptor goes on to the next
+    private static void closeFailedConnection(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to close connection: " + e.getMessage());
+        }
+    }
+
+    private static void pauseAfterFailedAccept() throws IOException {
+        try {
+            Thread.sleep(ACCEPT_RETRY_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to accept again");
+        }
+    }
+
+    private void acceptUntilClosed(Listener listener) {
+        try {
+            accept(listener);
+        } catch (IOException e) {
+            System.out.println("Acceptor stopped: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether a freshly accepted socket may become a session, before anything is allocated for
+ * it. Every source address gets a token bucket, so one host can't connect faster than its rate
+ * after an initial burst, and the number of live sessions is capped for the gateway as a whole.
+ * Admitted sessions hand their place back through their {@link ConnectionActivity} once closed.
+ */
+@Singleton
+class AdmissionControl {
+    private static final int BUCKET_SLOTS = 8192;
+    private static final AdmissionControl UNLIMITED = new AdmissionControl(0, 0, 0, GatewayMetrics.disabled());
+
+    private final TokenBucketTable buckets;
+    private final int maxSessions;
+    private final GatewayMetrics metrics;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+
+    @Inject
+    AdmissionControl(GatewayConfig config, GatewayMetrics metrics) {
+        this(config.getConnectRatePerIp(), config.getConnectBurstPerIp(), config.getMaxSessions(), metrics);
+    }
+
+    /**
+     * @param connectRatePerIp connections a second each address may make once its burst is used
+     *                         up, 0 for no limit.
+     * @param maxSessions      0 for no limit.
+     */
+    AdmissionControl(int connectRatePerIp, int connectBurstPerIp, int maxSessions, GatewayMetrics metrics) {
+        this.buckets = connectRatePerIp > 0
+                ? new TokenBucketTable(BUCKET_SLOTS, connectRatePerIp, connectBurstPerIp)
+                : null;
+        this.maxSessions = maxSessions;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Admits everything, for listeners built outside of the Guice module.
+     */
+    static AdmissionControl unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Takes a token for the address and a place for the session.
+     *
+     * @return false if the connection has to be rejected.
+     */
+    boolean admit(InetAddress address) {
+        if (buckets != null
+                && !buckets.tryAcquire(address, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos))) {
+            metrics.recordRateLimited();
+            return false;
+        }
+
+        if (maxSessions > 0 && !tryOpenSession()) {
+            metrics.recordOverCapacity();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Gives back the place of an admitted session.
+     */
+    void sessionClosed() {
+        if (maxSessions > 0) {
+            sessions.decrementAndGet();
+        }
+    }
+
+    int getSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * Closes a rejected socket with a reset rather than the usual handshake, so nothing about it
+     * lingers in the kernel either.
+     */
+    static void reject(Socket socket) {
+        try {
+            try {
+                socket.setSoLinger(true, 0);
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Going anyway
+        }
+    }
+
+    private boolean tryOpenSession() {
+        while (true) {
+            int current = sessions.get();
+
+            if (current >= maxSessions) {
+                return false;
+            }
+
+            if (sessions.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+}
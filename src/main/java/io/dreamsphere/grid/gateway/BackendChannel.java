@@ -0,0 +1,188 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One session's stream over a {@link BackendLink}. Data sent beyond what the backend has granted is
+ * held back and goes out as credit comes in, and data received is credited back as the session
+ * consumes it, so one busy session can neither flood the backend nor be flooded by it.
+ */
+final class BackendChannel {
+    // Input held back for a backend that grants no room, beyond which the session is given up on
+    static final int MAX_BACKLOG_BYTES = 4 * BackendFrames.INITIAL_WINDOW;
+
+    private final BackendLink link;
+    private final int sessionId;
+    private final Listener listener;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // The rest of what is guarded by lock
+    private final ArrayDeque<ByteBuffer> backlog = new ArrayDeque<>();
+    private int backlogBytes;
+    private int sendCredit = BackendFrames.INITIAL_WINDOW;
+    private int receiveWindow = BackendFrames.INITIAL_WINDOW;
+    private int uncredited;
+
+    /**
+     * Told what the backend sends, on the link's reader thread, which serves every session on the
+     * link and must not be held up.
+     */
+    interface Listener {
+        // The data is only valid during the call; report it through consumed() once it is dealt with
+        void dataReceived(BackendChannel channel, ByteBuffer data);
+
+        // The backend or the link closed the session
+        void closed(BackendChannel channel);
+    }
+
+    BackendChannel(BackendLink link, int sessionId, Listener listener) {
+        this.link = link;
+        this.sessionId = sessionId;
+        this.listener = listener;
+    }
+
+    int getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Sends the data as far as the backend's credit goes and holds back the rest. The data is
+     * consumed either way.
+     *
+     * @throws IOException If the channel is closed, or the backend has fallen too far behind.
+     */
+    void send(ByteBuffer data) throws IOException {
+        lock.lock();
+
+        try {
+            if (closed.get()) {
+                throw new IOException("Backend session " + sessionId + " is closed");
+            }
+
+            if (backlog.isEmpty()) {
+                sendWithinCredit(data);
+            }
+
+            if (data.hasRemaining()) {
+                if (backlogBytes + data.remaining() > MAX_BACKLOG_BYTES) {
+                    throw new IOException("Backend is not taking input for session " + sessionId);
+                }
+
+                backlogBytes += data.remaining();
+                backlog.add(ByteBuffer.allocate(data.remaining()).put(data).flip());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The session has dealt with this much of what it received, so the backend may send as much more
+    void consumed(int bytes) throws IOException {
+        lock.lock();
+
+        try {
+            if (closed.get()) {
+                return;
+            }
+
+            uncredited += bytes;
+
+            // Granted in chunks, rather than with a frame for every few bytes
+            if (uncredited >= BackendFrames.INITIAL_WINDOW / 2) {
+                link.queue(sessionId, BackendFrames.CREDIT, ByteBuffer.allocate(4).putInt(0, uncredited));
+                receiveWindow += uncredited;
+                uncredited = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            link.sessionClosed(sessionId);
+        }
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    void dataReceived(ByteBuffer data) {
+        boolean overrun;
+        lock.lock();
+
+        try {
+            if (closed.get()) {
+                return;
+            }
+
+            overrun = data.remaining() > receiveWindow;
+
+            if (!overrun) {
+                receiveWindow -= data.remaining();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (overrun) {
+            // Only this session is given up on, the others on the link are not to blame
+            System.out.println("Backend overran the window of session " + sessionId);
+            close();
+            listener.closed(this);
+        } else {
+            listener.dataReceived(this, data);
+        }
+    }
+
+    void creditReceived(int credit) throws IOException {
+        lock.lock();
+
+        try {
+            if (credit <= 0 || sendCredit > Integer.MAX_VALUE - credit) {
+                throw new IOException("Backend granted session " + sessionId + " a credit of " + credit);
+            }
+
+            sendCredit += credit;
+
+            while (!backlog.isEmpty() && sendCredit > 0 && !closed.get()) {
+                ByteBuffer held = backlog.peek();
+                int before = held.remaining();
+                sendWithinCredit(held);
+                backlogBytes -= before - held.remaining();
+
+                if (!held.hasRemaining()) {
+                    backlog.poll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remoteClosed() {
+        if (closed.compareAndSet(false, true)) {
+            listener.closed(this);
+        }
+    }
+
+    private void sendWithinCredit(ByteBuffer data) throws IOException {
+        while (data.hasRemaining() && sendCredit > 0) {
+            int length = Math.min(data.remaining(), Math.min(sendCredit, BackendFrames.MAX_PAYLOAD));
+            link.queue(sessionId, BackendFrames.DATA, data.slice(data.position(), length));
+            data.position(data.position() + length);
+            sendCredit -= length;
+        }
+    }
+}
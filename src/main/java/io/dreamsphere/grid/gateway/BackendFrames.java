@@ -0,0 +1,79 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The framing spoken over a backend link. A frame is a 4-byte length, counting the bytes after it,
+ * the 4-byte id of the session it belongs to, a type byte and its payload. The frames of many
+ * sessions interleave on one link, and neither end waits for an answer before sending the next.
+ * <p>
+ * Each end may send a session {@link #INITIAL_WINDOW} bytes of data up front, then only as much
+ * more as the other end grants with credit frames as it consumes what it got.
+ */
+final class BackendFrames {
+    static final int HEADER_BYTES = 9;
+    static final int MAX_PAYLOAD = 64 * 1024;
+    static final int INITIAL_WINDOW = 16 * 1024;
+
+    // Gateway to backend, a new session, no payload
+    static final byte OPEN = 1;
+    // Either way, the next bytes of the session's stream
+    static final byte DATA = 2;
+    // Either way, a 4-byte count of further data bytes the other end may send
+    static final byte CREDIT = 3;
+    // Either way, the session is over, no payload
+    static final byte CLOSE = 4;
+
+    private static final int LENGTH_BYTES = 4;
+
+    interface FrameHandler {
+        // The payload is only valid during the call
+        void frameReceived(int sessionId, byte type, ByteBuffer payload) throws IOException;
+    }
+
+    private BackendFrames() {
+    }
+
+    // Puts the frame at the buffer's position, which has to have room for the header and payload
+    static void encode(ByteBuffer out, int sessionId, byte type, ByteBuffer payload) {
+        out.putInt(HEADER_BYTES - LENGTH_BYTES + payload.remaining())
+                .putInt(sessionId)
+                .put(type)
+                .put(payload);
+    }
+
+    /**
+     * Passes every whole frame between the buffer's position and limit to the handler, leaving the
+     * position at the start of a frame that is cut short, for the caller to compact and read the
+     * rest onto. A buffer that can hold the header and {@link #MAX_PAYLOAD} always makes progress.
+     *
+     * @throws IOException If a frame's length is out of range, or the handler fails.
+     */
+    static void decode(ByteBuffer in, FrameHandler handler) throws IOException {
+        while (in.remaining() >= LENGTH_BYTES) {
+            int start = in.position();
+            int length = in.getInt(start);
+
+            if (length < HEADER_BYTES - LENGTH_BYTES || length > HEADER_BYTES - LENGTH_BYTES + MAX_PAYLOAD) {
+                throw new IOException("Malformed backend frame of " + length + " bytes");
+            }
+
+            if (in.remaining() < LENGTH_BYTES + length) {
+                return;
+            }
+
+            int sessionId = in.getInt(start + LENGTH_BYTES);
+            byte type = in.get(start + LENGTH_BYTES + 4);
+            ByteBuffer payload = in.slice(start + HEADER_BYTES, length - (HEADER_BYTES - LENGTH_BYTES));
+            in.position(start + LENGTH_BYTES + length);
+            handler.frameReceived(sessionId, type, payload);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One persistent connection to the grid server, carrying the {@link BackendChannel}s of many
+ * sessions. A reader thread hands incoming frames to their sessions. Outgoing frames are appended
+ * to a buffer that a writer thread swaps out and writes whole, so everything queued while a write
+ * is under way leaves in the next one.
+ * <p>
+ * When the link fails, every session on it is closed.
+ */
+final class BackendLink implements BackendFrames.FrameHandler {
+    private static final ByteBuffer NO_PAYLOAD = ByteBuffer.allocate(0);
+    private static final int INITIAL_WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final String name;
+    private final Runnable onClosed;
+    private final Map<Integer, BackendChannel> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSessionId = new AtomicInteger();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition framesQueued = writeLock.newCondition();
+    private final Thread reader;
+    private final Thread writer;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    // Frames waiting for the writer, guarded by writeLock
+    private ByteBuffer queued = ByteBuffer.allocate(INITIAL_WRITE_BUFFER_SIZE);
+    // What the writer is writing, only touched by the writer thread
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_WRITE_BUFFER_SIZE);
+
+    BackendLink(SocketChannel channel, String name, Runnable onClosed) {
+        this.channel = channel;
+        this.name = name;
+        this.onClosed = onClosed;
+        this.reader = new Thread(this::readUntilClosed, name + "-reader");
+        this.reader.setDaemon(true);
+        this.writer = new Thread(this::writeUntilClosed, name + "-writer");
+        this.writer.setDaemon(true);
+    }
+
+    static BackendLink connect(InetSocketAddress address, String name, Runnable onClosed) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+
+        try {
+            // Frames are already batched up to each write
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // Resolved on every connect, so a backend that moves is found again
+            channel.connect(new InetSocketAddress(address.getHostString(), address.getPort()));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        BackendLink link = new BackendLink(channel, name, onClosed);
+        link.start();
+        System.out.println("Backend link " + name + " connected to " + address);
+        return link;
+    }
+
+    void start() {
+        reader.start();
+        writer.start();
+    }
+
+    BackendChannel open(BackendChannel.Listener listener) throws IOException {
+        int sessionId = nextSessionId.incrementAndGet();
+        BackendChannel session = new BackendChannel(this, sessionId, listener);
+        sessions.put(sessionId, session);
+
+        try {
+            queue(sessionId, BackendFrames.OPEN, NO_PAYLOAD);
+        } catch (IOException e) {
+            sessions.remove(sessionId);
+            throw e;
+        }
+
+        return session;
+    }
+
+    int getSessionCount() {
+        return sessions.size();
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    long getFramesSent() {
+        return framesSent.get();
+    }
+
+    // Each write carries every frame queued since the one before, so this against getFramesSent()
+    // shows how well frames are batched
+    long getWrites() {
+        return writes.get();
+    }
+
+    void queue(int sessionId, byte type, ByteBuffer payload) throws IOException {
+        writeLock.lock();
+
+        try {
+            if (closed.get()) {
+                throw new IOException("Backend link " + name + " is closed");
+            }
+
+            int frameBytes = BackendFrames.HEADER_BYTES + payload.remaining();
+
+            if (queued.remaining() < frameBytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(queued.capacity() * 2, queued.position() + frameBytes));
+                queued.flip();
+                queued = larger.put(queued);
+            }
+
+            // The writer only waits once it has found nothing queued
+            boolean wasEmpty = queued.position() == 0;
+            BackendFrames.encode(queued, sessionId, type, payload);
+            framesSent.incrementAndGet();
+
+            if (wasEmpty) {
+                framesQueued.signal();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // The session closed on this side, the backend is told unless the link is gone anyway
+    void sessionClosed(int sessionId) {
+        if (sessions.remove(sessionId) != null && !closed.get()) {
+            try {
+                queue(sessionId, BackendFrames.CLOSE, NO_PAYLOAD);
+            } catch (IOException e) {
+                // Closed in the meantime, which closes the session on the backend as well
+            }
+        }
+    }
+
+    @Override
+    public void frameReceived(int sessionId, byte type, ByteBuffer payload) throws IOException {
+        BackendChannel session = sessions.get(sessionId);
+
+        switch (type) {
+            case BackendFrames.DATA:
+                if (session != null) {
+                    session.dataReceived(payload);
+                }
+                break;
+            case BackendFrames.CREDIT:
+                if (payload.remaining() != 4) {
+                    throw new IOException("Backend credit frame of " + payload.remaining() + " bytes");
+                }
+
+                if (session != null) {
+                    session.creditReceived(payload.getInt());
+                }
+                break;
+            case BackendFrames.CLOSE:
+                if (session != null) {
+                    sessions.remove(sessionId);
+                    session.remoteClosed();
+                }
+                break;
+            default:
+                throw new IOException("Unknown backend frame type " + type);
+        }
+
+        // Frames for a session that has already closed here were on their way before the backend
+        // heard of it, so they are dropped
+    }
+
+    void close() {
+        close("closed");
+    }
+
+    private void close(String reason) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        System.out.println("Backend link " + name + " " + reason);
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close backend link " + name + ": " + e.getMessage());
+        }
+
+        writeLock.lock();
+
+        try {
+            framesQueued.signal();
+        } finally {
+            writeLock.unlock();
+        }
+
+        for (BackendChannel session : sessions.values()) {
+            session.remoteClosed();
+        }
+
+        sessions.clear();
+        onClosed.run();
+    }
+
+    private void readUntilClosed() {
+        // Room for the largest frame, so a frame cut short always has somewhere to be completed
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(2 * (BackendFrames.HEADER_BYTES + BackendFrames.MAX_PAYLOAD));
+
+        try {
+            while (channel.read(readBuffer) >= 0) {
+                readBuffer.flip();
+                BackendFrames.decode(readBuffer, this);
+                readBuffer.compact();
+            }
+
+            close("closed by the backend");
+        } catch (IOException e) {
+            close("failed: " + e.getMessage());
+        }
+    }
+
+    private void writeUntilClosed() {
+        try {
+            while (true) {
+                writeLock.lock();
+
+                try {
+                    while (queued.position() == 0 && !closed.get()) {
+                        framesQueued.await();
+                    }
+
+                    if (closed.get()) {
+                        return;
+                    }
+
+                    ByteBuffer full = queued;
+                    queued = writing;
+                    writing = full;
+                } finally {
+                    writeLock.unlock();
+                }
+
+                writing.flip();
+
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+
+                writing.clear();
+                writes.incrementAndGet();
+            }
+        } catch (IOException e) {
+            close("failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close("interrupted");
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The few persistent links every session to the grid server shares. A session goes on whichever
+ * live link carries the fewest. A link that fails, or never came up, is reconnected in the
+ * background with a growing delay, so opening a session never waits on a connect.
+ */
+final class BackendPool {
+    private static final long FIRST_RECONNECT_DELAY_MILLIS = 500;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final InetSocketAddress address;
+    private final AtomicReferenceArray<BackendLink> links;
+    private volatile boolean closed;
+
+    BackendPool(GatewayConfig config) {
+        this(config.getBackendAddress(), config.getBackendLinks());
+    }
+
+    BackendPool(InetSocketAddress address, int linkCount) {
+        this.address = address;
+        this.links = new AtomicReferenceArray<>(linkCount);
+    }
+
+    // Connects every link, those that fail keep trying in the background
+    void connect() {
+        for (int i = 0; i < links.length(); i++) {
+            try {
+                links.set(i, connectLink(i));
+            } catch (IOException e) {
+                System.out.println("Failed to connect backend link " + i + ": " + e.getMessage());
+                reconnectLater(i);
+            }
+        }
+    }
+
+    /**
+     * @throws IOException If no link is up.
+     */
+    BackendChannel open(BackendChannel.Listener listener) throws IOException {
+        BackendLink leastLoaded = null;
+
+        for (int i = 0; i < links.length(); i++) {
+            BackendLink link = links.get(i);
+
+            if (link != null && !link.isClosed()
+                    && (leastLoaded == null || link.getSessionCount() < leastLoaded.getSessionCount())) {
+                leastLoaded = link;
+            }
+        }
+
+        if (leastLoaded == null) {
+            throw new IOException("No backend link is up");
+        }
+
+        return leastLoaded.open(listener);
+    }
+
+    void close() {
+        closed = true;
+
+        for (int i = 0; i < links.length(); i++) {
+            BackendLink link = links.getAndSet(i, null);
+
+            if (link != null) {
+                link.close();
+            }
+        }
+    }
+
+    private BackendLink connectLink(int index) throws IOException {
+        return BackendLink.connect(address, "backend-" + index, () -> reconnectLater(index));
+    }
+
+    private void reconnectLater(int index) {
+        if (!closed) {
+            Thread.ofVirtual().name("backend-reconnect-" + index).start(() -> reconnect(index));
+        }
+    }
+
+    private void reconnect(int index) {
+        long delayMillis = FIRST_RECONNECT_DELAY_MILLIS;
+
+        while (!closed) {
+            try {
+                Thread.sleep(delayMillis);
+                BackendLink link = connectLink(index);
+                links.set(index, link);
+
+                // Closed while connecting, so nothing else will close the new link
+                if (closed) {
+                    link.close();
+                }
+
+                return;
+            } catch (IOException e) {
+                System.out.println("Failed to reconnect backend link " + index + ": " + e.getMessage());
+                delayMillis = Math.min(delayMillis * 2, MAX_RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Relays sessions to the grid server over the {@link BackendPool}: every line a client sends goes
+ * to the backend, and whatever the backend sends goes to the client as it is. The Telnet side of
+ * things stays with the gateway.
+ */
+final class BackendSessionHandler implements SessionHandler {
+    private static final byte[] LINE_END = {'\r', '\n'};
+    // Output copied off the link's reader until the session has sent it on
+    static final BufferPool OUTPUT_BUFFERS = new BufferPool(BackendFrames.MAX_PAYLOAD, 64 * 1024);
+
+    private final BackendPool pool;
+
+    BackendSessionHandler(BackendPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void connected(GatewaySession session) throws IOException {
+        Relay relay = new Relay(session);
+        relay.channel = pool.open(relay);
+        session.attach(relay);
+        session.onOutputDrained(relay::outputDrained);
+    }
+
+    @Override
+    public boolean lineReceived(GatewaySession session, ByteBuffer line, boolean truncated) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(line.remaining() + LINE_END.length);
+        data.put(line).put(LINE_END).flip();
+        channelOf(session).send(data);
+        return true;
+    }
+
+    @Override
+    public void closed(GatewaySession session) {
+        // Not there if no backend link was up
+        if (session.attachment() instanceof Relay) {
+            ((Relay) session.attachment()).close();
+        }
+    }
+
+    static BackendChannel channelOf(GatewaySession session) {
+        return ((Relay) session.attachment()).channel;
+    }
+
+    /**
+     * Carries what the backend sends over to the session. The link's reader only copies it into a
+     * pooled buffer and queues it; the session drains the queue as one event on its own side, so a
+     * client that is slow to take its output holds up nobody else on the link. What the session
+     * sends on is only credited back once the connection has written it, so a client that stops
+     * reading stops the backend rather than piling its output up in the gateway.
+     */
+    private static final class Relay implements BackendChannel.Listener {
+        private final GatewaySession session;
+        private final MpscQueue<ByteBuffer> output = new MpscQueue<>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        // Sent on to the client, but not credited back to the backend yet
+        private final AtomicInteger sentUncredited = new AtomicInteger();
+        // Once closed no drain runs, and whoever finds output queued hands its buffers back under this
+        private final ReentrantLock discardLock = new ReentrantLock();
+        // Set once the channel is open, which is before anything it receives is sent on
+        private volatile BackendChannel channel;
+        private volatile boolean closed;
+
+        Relay(GatewaySession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void dataReceived(BackendChannel channel, ByteBuffer data) {
+            ByteBuffer copy = OUTPUT_BUFFERS.acquire(data.remaining());
+            copy.put(data).flip();
+            output.offer(copy);
+
+            if (closed) {
+                discard();
+            } else if (drainScheduled.compareAndSet(false, true)) {
+                session.fireLater(this::drain);
+            }
+        }
+
+        @Override
+        public void closed(BackendChannel channel) {
+            session.closeLater();
+        }
+
+        // Drains run one at a time under the session's lock, which keeps the queue single-consumer
+        private void drain() throws IOException {
+            // Cleared first, so output queued from here on schedules a drain of its own
+            drainScheduled.set(false);
+            ByteBuffer data;
+
+            while ((data = output.poll()) != null) {
+                int length = data.remaining();
+
+                try {
+                    session.send(data);
+                } finally {
+                    OUTPUT_BUFFERS.release(data);
+                }
+
+                sentUncredited.addAndGet(length);
+            }
+        }
+
+        // On the connection's writing thread, once everything sent so far is written
+        private void outputDrained() {
+            BackendChannel openChannel = channel;
+
+            if (openChannel == null) {
+                return;
+            }
+
+            int written = sentUncredited.getAndSet(0);
+
+            if (written > 0) {
+                try {
+                    openChannel.consumed(written);
+                } catch (IOException e) {
+                    System.out.println("Failed to credit backend: " + e.getMessage());
+                    session.closeLater();
+                }
+            }
+        }
+
+        // Called with the session's lock held, after which its events, drains among them, no longer run
+        private void close() {
+            closed = true;
+            BackendChannel openChannel = channel;
+
+            if (openChannel != null) {
+                openChannel.close();
+            }
+
+            discard();
+        }
+
+        private void discard() {
+            discardLock.lock();
+
+            try {
+                ByteBuffer data;
+
+                while ((data = output.poll()) != null) {
+                    OUTPUT_BUFFERS.release(data);
+                }
+            } finally {
+                discardLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gives every session its own thread running the blocking read/respond loop. With
+ * {@link GatewayConfig.SessionThreads#VIRTUAL} those are virtual threads, so a parked session costs
+ * a few hundred bytes of heap rather than a platform thread and its stack.
+ */
+class BlockingSessionDriver implements SessionDriver {
+    // Events from other threads, offloaded results, backend output and the idle timeout, each get
+    // a virtual thread, so whoever fires one never waits on the session's lock or its client
+    private static final Executor SESSION_EVENTS =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("session-event-", 0).factory());
+
+    private final ExecutorService executor;
+    private final GatewayMetrics metrics;
+    private final TelnetOptionPolicy optionPolicy;
+    private final CompressionControl compressionControl;
+    private final int maxLineLength;
+    private final SessionPipeline pipeline;
+
+    @Inject
+    BlockingSessionDriver(GatewayConfig config, GatewayMetrics metrics, CompressionControl compressionControl,
+                          SessionPipeline pipeline) {
+        this(createExecutor(config.getSessionThreads()), metrics, config.getTelnetOptionPolicy(), compressionControl,
+                config.getMaxLineLength(), pipeline);
+    }
+
+    BlockingSessionDriver(ExecutorService executor) {
+        this(executor, GatewayMetrics.disabled(), TelnetOptionPolicy.defaultPolicy(), CompressionControl.disabled(),
+                GatewaySession.DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    BlockingSessionDriver(ExecutorService executor, GatewayMetrics metrics, TelnetOptionPolicy optionPolicy,
+                          CompressionControl compressionControl, int maxLineLength) {
+        this(executor, metrics, optionPolicy, compressionControl, maxLineLength, SessionPipeline.defaultPipeline());
+    }
+
+    BlockingSessionDriver(ExecutorService executor, GatewayMetrics metrics, TelnetOptionPolicy optionPolicy,
+                          CompressionControl compressionControl, int maxLineLength, SessionPipeline pipeline) {
+        this.executor = executor;
+        this.metrics = metrics;
+        this.optionPolicy = optionPolicy;
+        this.compressionControl = compressionControl;
+        this.maxLineLength = maxLineLength;
+        this.pipeline = pipeline;
+    }
+
+    static ExecutorService createExecutor(GatewayConfig.SessionThreads sessionThreads) {
+        switch (sessionThreads) {
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("session-", 0).factory());
+            case PLATFORM:
+            default:
+                return Executors.newCachedThreadPool(Thread.ofPlatform().name("session-", 0).factory());
+        }
+    }
+
+    @Override
+    public void start(Connection connection) {
+        executor.execute(() -> runSession(connection));
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void runSession(Connection connection) {
+        TelnetConnection telnetConnection = new TelnetConnection(connection, metrics, optionPolicy, compressionControl);
+        // The session's thread is parked in a read most of the time, so events from elsewhere are
+        // fired on threads of their own, under the session's lock
+        GatewaySession session = new GatewaySession(telnetConnection, maxLineLength, pipeline, SESSION_EVENTS);
+        connection.onIdle(session::idle);
+
+        try {
+            session.open();
+
+            while (session.process() >= 0) {
+                // Keep serving until the client goes away
+            }
+        } catch (IOException e) {
+            System.out.println("Session failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.out.println("Session failed: " + e);
+        } finally {
+            try {
+                session.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close session: " + e.getMessage());
+            }
+        }
+    }
+}
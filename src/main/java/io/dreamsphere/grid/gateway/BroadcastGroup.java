@@ -0,0 +1,74 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of sessions that receive the same updates. A broadcast encodes the message once into a
+ * {@link SharedMessage} and queues that on every member, so fanning out costs one flush per member
+ * and no per-member copy of the message. The flushes never wait on a member's client, so one
+ * that is slow to take its output doesn't hold up the members after it.
+ *
+ * Members can join and leave from any thread, also while a broadcast is under way.
+ */
+final class BroadcastGroup {
+    private final Set<TelnetConnection> members = ConcurrentHashMap.newKeySet();
+
+    boolean join(TelnetConnection member) {
+        return members.add(member);
+    }
+
+    boolean leave(TelnetConnection member) {
+        return members.remove(member);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    int broadcast(byte[] message) {
+        return broadcast(SharedMessage.telnet(message));
+    }
+
+    /**
+     * Queues the message on every member, then flushes them all. A member whose connection fails
+     * is dropped from the group, the others still get the message.
+     *
+     * @return the number of members the message was queued on.
+     */
+    int broadcast(SharedMessage message) {
+        int delivered = 0;
+
+        for (TelnetConnection member : members) {
+            try {
+                member.send(message);
+                delivered++;
+            } catch (IOException e) {
+                dropMember(member, e);
+            }
+        }
+
+        for (TelnetConnection member : members) {
+            try {
+                member.flushWithoutBlocking();
+            } catch (IOException e) {
+                dropMember(member, e);
+            }
+        }
+
+        return delivered;
+    }
+
+    private void dropMember(TelnetConnection member, IOException e) {
+        if (members.remove(member)) {
+            System.out.println("Broadcast failed, dropping member: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Direct buffers in power of two size classes, leased for as long as they hold data and handed
+ * back when drained, so idle connections hold none. Each class carves its buffers out of slabs, a
+ * single large direct allocation sliced up, and keeps the ones handed back on a stack so the most
+ * recently used, still cache-warm buffer goes out next.
+ * <p>
+ * Slabs are never freed, a class grows a slab at a time to the most buffers ever leased at once.
+ * Requests above the largest class get a buffer of their own that is dropped when handed back.
+ */
+final class BufferPool {
+    private static final int SMALLEST_CLASS_SHIFT = 6;
+
+    private final SizeClass[] classes;
+
+    /**
+     * @param largestBuffer the largest size served from a class, rounded up to a power of two.
+     * @param slabSize bytes allocated whenever a class runs out, at least one buffer's worth.
+     */
+    BufferPool(int largestBuffer, int slabSize) {
+        classes = new SizeClass[classIndex(largestBuffer) + 1];
+
+        for (int i = 0; i < classes.length; i++) {
+            int bufferSize = 1 << (i + SMALLEST_CLASS_SHIFT);
+            classes[i] = new SizeClass(bufferSize, Math.max(1, slabSize / bufferSize));
+        }
+    }
+
+    /**
+     * @return a cleared buffer of at least the given size, its capacity rounded up to the size class.
+     */
+    ByteBuffer acquire(int size) {
+        int index = classIndex(size);
+        return index < classes.length ? classes[index].acquire() : ByteBuffer.allocateDirect(size);
+    }
+
+    // Buffers that did not come from this pool are dropped
+    void release(ByteBuffer buffer) {
+        int index = classIndex(buffer.capacity());
+
+        if (index < classes.length && buffer.isDirect() && buffer.capacity() == classes[index].bufferSize) {
+            classes[index].release(buffer);
+        }
+    }
+
+    // Buffers currently leased out
+    int buffersInUse() {
+        int inUse = 0;
+
+        for (SizeClass sizeClass : classes) {
+            inUse += sizeClass.inUse();
+        }
+
+        return inUse;
+    }
+
+    // Direct memory taken by slabs so far
+    long allocatedBytes() {
+        long allocated = 0;
+
+        for (SizeClass sizeClass : classes) {
+            allocated += sizeClass.allocatedBytes();
+        }
+
+        return allocated;
+    }
+
+    private static int classIndex(int size) {
+        return size <= 1 << SMALLEST_CLASS_SHIFT ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - SMALLEST_CLASS_SHIFT;
+    }
+
+    private static final class SizeClass {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int bufferSize;
+        private final int buffersPerSlab;
+        private ByteBuffer[] free = new ByteBuffer[0];
+        private int freeCount;
+        private int allocated;
+
+        SizeClass(int bufferSize, int buffersPerSlab) {
+            this.bufferSize = bufferSize;
+            this.buffersPerSlab = buffersPerSlab;
+        }
+
+        ByteBuffer acquire() {
+            lock.lock();
+
+            try {
+                if (freeCount == 0) {
+                    addSlab();
+                }
+
+                ByteBuffer buffer = free[--freeCount];
+                free[freeCount] = null;
+                return buffer.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(ByteBuffer buffer) {
+            lock.lock();
+
+            try {
+                // More back than were ever handed out means one of them was not ours
+                if (freeCount < allocated) {
+                    free[freeCount++] = buffer;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int inUse() {
+            lock.lock();
+
+            try {
+                return allocated - freeCount;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long allocatedBytes() {
+            lock.lock();
+
+            try {
+                return (long) allocated * bufferSize;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void addSlab() {
+            ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+            allocated += buffersPerSlab;
+
+            if (free.length < allocated) {
+                free = Arrays.copyOf(free, allocated);
+            }
+
+            for (int i = 0; i < buffersPerSlab; i++) {
+                free[freeCount++] = slab.slice(i * bufferSize, bufferSize);
+            }
+        }
+    }
+}
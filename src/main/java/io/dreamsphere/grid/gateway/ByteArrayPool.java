@@ -0,0 +1,53 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed number of same-sized byte arrays for short-lived use. Taking and returning an array are a
+ * scan over the slots with one CAS, nothing is allocated once the pool has warmed up. When every
+ * array is out a fresh one is handed over, and arrays returned to a full pool are left to the
+ * garbage collector, so the pool never holds more than it was sized for.
+ */
+final class ByteArrayPool {
+    private final AtomicReferenceArray<byte[]> free;
+    private final int arraySize;
+
+    ByteArrayPool(int arrays, int arraySize) {
+        this.free = new AtomicReferenceArray<>(arrays);
+        this.arraySize = arraySize;
+    }
+
+    int arraySize() {
+        return arraySize;
+    }
+
+    byte[] acquire() {
+        for (int i = 0; i < free.length(); i++) {
+            byte[] array = free.get(i);
+
+            if (array != null && free.compareAndSet(i, array, null)) {
+                return array;
+            }
+        }
+
+        return new byte[arraySize];
+    }
+
+    void release(byte[] array) {
+        if (array.length != arraySize) {
+            return;
+        }
+
+        for (int i = 0; i < free.length(); i++) {
+            if (free.get(i) == null && free.compareAndSet(i, null, array)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Runs the output of a connection through zlib once MCCP2 has been agreed, leaving input alone.
+ * Sends are deflated as they come in without flushing the compressor, and every flush ends the
+ * pending data with a sync flush, so each batch of messages reaches the client whole while the
+ * compression context carries over from one batch to the next.
+ */
+final class CompressingConnection implements Connection {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Connection connection;
+    private final CompressionControl compressionControl;
+    private final GatewayMetrics metrics;
+    // Guards the deflater and keeps compressed output in the order it was produced
+    private final ReentrantLock lock = new ReentrantLock();
+    private Deflater deflater;
+    private byte[] chunk;
+    // Whether anything went into the deflater since the last sync flush, an empty one still costs bytes
+    private boolean unflushed;
+
+    CompressingConnection(Connection connection, CompressionControl compressionControl, GatewayMetrics metrics) {
+        this.connection = connection;
+        this.compressionControl = compressionControl;
+        this.metrics = metrics;
+    }
+
+    boolean isAvailable() {
+        return compressionControl.isAvailable();
+    }
+
+    /**
+     * Sends the marker uncompressed and compresses everything after it.
+     *
+     * @return false if no compressor was available, nothing is sent then.
+     */
+    boolean start(byte[] marker) throws IOException {
+        lock.lock();
+
+        try {
+            if (deflater != null) {
+                return true;
+            }
+
+            Deflater acquired = compressionControl.acquire();
+
+            if (acquired == null) {
+                return false;
+            }
+
+            connection.send(marker);
+            deflater = acquired;
+            chunk = new byte[CHUNK_SIZE];
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the compressed stream, whatever is sent afterwards goes out as it is.
+     */
+    void finish() throws IOException {
+        lock.lock();
+
+        try {
+            if (deflater == null) {
+                return;
+            }
+
+            long startNanos = System.nanoTime();
+            deflater.finish();
+            long produced = 0;
+
+            while (!deflater.finished()) {
+                produced += deflateChunk(Deflater.NO_FLUSH);
+            }
+
+            metrics.recordCompression(0, produced, System.nanoTime() - startNanos);
+            releaseDeflater();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isCompressing() {
+        lock.lock();
+
+        try {
+            return deflater != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void send(byte[] message) throws IOException {
+        send(message, message.length);
+    }
+
+    @Override
+    public void send(byte[] message, int length) throws IOException {
+        lock.lock();
+
+        try {
+            if (deflater == null) {
+                connection.send(message, length);
+            } else {
+                long startNanos = System.nanoTime();
+                deflater.setInput(message, 0, length);
+                deflateInput(length, startNanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer message) throws IOException {
+        lock.lock();
+
+        try {
+            if (deflater == null) {
+                connection.send(message);
+            } else {
+                compress(message);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer[] messages) throws IOException {
+        lock.lock();
+
+        try {
+            if (deflater == null) {
+                connection.send(messages);
+            } else {
+                for (ByteBuffer message : messages) {
+                    compress(message);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compressed, a shared message can't be shared any more: it is deflated into this session's
+     * stream like any other, reading it through a view so its position stays put.
+     */
+    @Override
+    public void sendShared(ByteBuffer message) throws IOException {
+        lock.lock();
+
+        try {
+            if (deflater == null) {
+                connection.sendShared(message);
+            } else {
+                compress(message.duplicate());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        deflateUnflushed();
+        // Outside the lock, writing may take a while and other senders can keep deflating meanwhile
+        connection.flush();
+    }
+
+    @Override
+    public void flushWithoutBlocking() throws IOException {
+        deflateUnflushed();
+        connection.flushWithoutBlocking();
+    }
+
+    @Override
+    public void onOutputDrained(Runnable handler) {
+        connection.onOutputDrained(handler);
+    }
+
+    private void deflateUnflushed() throws IOException {
+        lock.lock();
+
+        try {
+            if (deflater != null && unflushed) {
+                unflushed = false;
+                long startNanos = System.nanoTime();
+                long produced = 0;
+                int deflated;
+
+                // A full chunk may mean zlib has more to give
+                do {
+                    deflated = deflateChunk(Deflater.SYNC_FLUSH);
+                    produced += deflated;
+                } while (deflated == chunk.length);
+
+                metrics.recordCompression(0, produced, System.nanoTime() - startNanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        return connection.read(buffer);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        return connection.read(buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+
+        try {
+            if (deflater != null) {
+                releaseDeflater();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        connection.close();
+    }
+
+    @Override
+    public int readAvailable() throws IOException {
+        return connection.readAvailable();
+    }
+
+    private void compress(ByteBuffer message) throws IOException {
+        long startNanos = System.nanoTime();
+        int length = message.remaining();
+        deflater.setInput(message);
+        deflateInput(length, startNanos);
+    }
+
+    private void deflateInput(int length, long startNanos) throws IOException {
+        long produced = 0;
+        unflushed = true;
+
+        while (!deflater.needsInput()) {
+            produced += deflateChunk(Deflater.NO_FLUSH);
+        }
+
+        metrics.recordCompression(length, produced, System.nanoTime() - startNanos);
+    }
+
+    private int deflateChunk(int flush) throws IOException {
+        int deflated = deflater.deflate(chunk, 0, chunk.length, flush);
+
+        if (deflated > 0) {
+            connection.send(chunk, deflated);
+        }
+
+        return deflated;
+    }
+
+    private void releaseDeflater() {
+        compressionControl.release(deflater);
+        deflater = null;
+        chunk = null;
+        unflushed = false;
+    }
+}
@@ -0,0 +1,95 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Hands out the deflaters for MCCP2 compressed sessions. Each one holds a few hundred kilobytes of
+ * native zlib state for as long as its session compresses, so the number of them in use at once
+ * is capped; sessions over the cap are simply not compressed.
+ */
+@Singleton
+class CompressionControl {
+    private static final CompressionControl DISABLED = new CompressionControl(Deflater.DEFAULT_COMPRESSION, 0,
+            GatewayMetrics.disabled());
+
+    private final int level;
+    private final int maxCompressors;
+    private final GatewayMetrics metrics;
+    private final AtomicInteger compressors = new AtomicInteger();
+
+    @Inject
+    CompressionControl(GatewayConfig config, GatewayMetrics metrics) {
+        this(config.getCompressionLevel(), compressorsAllowed(config), metrics);
+    }
+
+    /**
+     * @param level          zlib level, 1 (fastest) to 9 (smallest), or -1 for zlib's default.
+     * @param maxCompressors 0 turns compression off.
+     */
+    CompressionControl(int level, int maxCompressors, GatewayMetrics metrics) {
+        this.level = level;
+        this.maxCompressors = maxCompressors;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Never compresses, for connections built outside of the Guice module.
+     */
+    static CompressionControl disabled() {
+        return DISABLED;
+    }
+
+    // A compressed stream can't lose any of its bytes, so policies that drop queued output rule it out
+    private static int compressorsAllowed(GatewayConfig config) {
+        if (config.getMaxCompressors() > 0 && config.getOutboundHighWaterBytes() > 0
+                && config.getSlowConsumerPolicy() != GatewayConfig.SlowConsumerPolicy.DISCONNECT) {
+            System.out.println("Compression is off, the " + config.getSlowConsumerPolicy()
+                    + " slow consumer policy drops output");
+            return 0;
+        }
+
+        return config.getMaxCompressors();
+    }
+
+    boolean isAvailable() {
+        return compressors.get() < maxCompressors;
+    }
+
+    /**
+     * @return a deflater of its own for the session, or null when the cap is reached.
+     */
+    Deflater acquire() {
+        int current;
+
+        do {
+            current = compressors.get();
+
+            if (current >= maxCompressors) {
+                return null;
+            }
+        } while (!compressors.compareAndSet(current, current + 1));
+
+        metrics.compressorStarted();
+        return new Deflater(level);
+    }
+
+    void release(Deflater deflater) {
+        deflater.end();
+        compressors.decrementAndGet();
+        metrics.compressorStopped();
+    }
+
+    int getCompressors() {
+        return compressors.get();
+    }
+}
@@ -7,11 +7,42 @@
 package io.dreamsphere.grid.gateway;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 interface Connection {
     void send(byte[] message) throws IOException;
     void send(byte[] message, int length) throws IOException;
+    // Queues the remaining bytes and advances the position to the limit; the buffer can be reused
+    // as soon as the call returns. Nothing is guaranteed to reach the socket before flush().
+    void send(ByteBuffer message) throws IOException;
+    void send(ByteBuffer[] messages) throws IOException;
+    // Queues the remaining bytes of a buffer that other connections share, without copying them.
+    // The bytes must not change while any connection may still have them queued, and the buffer's
+    // position and limit are left alone.
+    void sendShared(ByteBuffer message) throws IOException;
+    // Writes everything queued by send, coalesced into as few writes as possible
+    void flush() throws IOException;
+
+    // Like flush(), but never waits for the client to take the data, for callers serving many
+    // connections that one slow client mustn't hold up. Connections whose flush never blocks
+    // simply flush.
+    default void flushWithoutBlocking() throws IOException {
+        flush();
+    }
     int read(byte[] buffer) throws IOException;
+    // Reads between position and limit and advances the position, returning -1 at end of stream
+    int read(ByteBuffer buffer) throws IOException;
     void close() throws IOException;
     int readAvailable() throws IOException;
+
+    // Called once the connection has been idle for the idle timeout, and then responsible for
+    // closing it. Connections that nothing watches never go idle.
+    default void onIdle(Runnable handler) {
+    }
+
+    // Called on the writing thread whenever a write leaves nothing sent still waiting to go out,
+    // which is when the client has taken it. Must not block. Connections that keep no count of
+    // their output never call it.
+    default void onOutputDrained(Runnable handler) {
+    }
 }
@@ -0,0 +1,144 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+/**
+ * When a connection last saw traffic, kept in ticks of the {@link IdleReaper}'s wheel. Connections
+ * report their reads and writes here on every I/O, so the updates are a couple of field writes, and
+ * only when the tick has moved on since the last one. They also report closing, exactly once,
+ * which is passed on to whoever keeps count of the sessions.
+ */
+class ConnectionActivity {
+    static final long NOT_STALLED = -1;
+
+    private static final ConnectionActivity UNTRACKED = new ConnectionActivity(null, null);
+
+    private final TimingWheel wheel;
+    private final Runnable onClosed;
+    private volatile long lastActivity;
+    private volatile long writeStalledSince = NOT_STALLED;
+    private volatile TimingWheel.Timeout check;
+    private volatile Runnable idleHandler;
+    private volatile boolean closed;
+
+    ConnectionActivity(TimingWheel wheel) {
+        this(wheel, null);
+    }
+
+    ConnectionActivity(TimingWheel wheel, Runnable onClosed) {
+        this.wheel = wheel;
+        this.onClosed = onClosed;
+        this.lastActivity = wheel != null ? wheel.currentTick() : 0;
+    }
+
+    /**
+     * Activity for connections that nothing watches, every report is ignored.
+     */
+    static ConnectionActivity untracked() {
+        return UNTRACKED;
+    }
+
+    /**
+     * Activity that nothing watches, but whose closing is still passed on.
+     */
+    static ConnectionActivity untracked(Runnable onClosed) {
+        return new ConnectionActivity(null, onClosed);
+    }
+
+    void readActivity() {
+        if (wheel != null) {
+            touch(wheel.currentTick());
+        }
+    }
+
+    /**
+     * Data is waiting to go out. Stays stalled from the first call until writes make progress.
+     */
+    void writePending() {
+        if (wheel != null && writeStalledSince == NOT_STALLED) {
+            writeStalledSince = wheel.currentTick();
+        }
+    }
+
+    /**
+     * Some data went out.
+     *
+     * @param stillPending whether there is more left to write.
+     */
+    void writeProgress(boolean stillPending) {
+        if (wheel != null) {
+            long now = wheel.currentTick();
+            long stalledSince = stillPending ? now : NOT_STALLED;
+            touch(now);
+
+            if (writeStalledSince != stalledSince) {
+                writeStalledSince = stalledSince;
+            }
+        }
+    }
+
+    /**
+     * The connection is closed, stop watching it. Connections call this once.
+     */
+    void closed() {
+        if (onClosed != null) {
+            onClosed.run();
+        }
+
+        if (wheel == null) {
+            return;
+        }
+
+        closed = true;
+        TimingWheel.Timeout timeout = check;
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Has the idle timeout hand the connection to the handler, which then has to close it, rather
+     * than closing it straight away. Ignored when nothing watches the connection.
+     */
+    void setIdleHandler(Runnable idleHandler) {
+        if (wheel != null) {
+            this.idleHandler = idleHandler;
+        }
+    }
+
+    Runnable getIdleHandler() {
+        return idleHandler;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    long getWriteStalledSince() {
+        return writeStalledSince;
+    }
+
+    void setCheck(TimingWheel.Timeout check) {
+        this.check = check;
+
+        // Closed while the check was being scheduled
+        if (closed) {
+            check.cancel();
+        }
+    }
+
+    private void touch(long now) {
+        if (lastActivity != now) {
+            lastActivity = now;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * What the gateway does until the game plugs in handlers of its own: greets, agrees with every
+ * line, and logs what clients report about themselves.
+ */
+final class DefaultSessionHandler implements SessionHandler {
+    private static final byte[] BANNER = "Welcome!\n\r".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REPLY = "I agree!\n\r".getBytes(StandardCharsets.UTF_8);
+
+    @Override
+    public void connected(GatewaySession session) throws IOException {
+        session.send(BANNER);
+    }
+
+    @Override
+    public boolean lineReceived(GatewaySession session, ByteBuffer line, boolean truncated) throws IOException {
+        System.out.println("Received: [" + StandardCharsets.UTF_8.decode(line) + "]" + (truncated ? " (cut short)" : ""));
+        session.send(REPLY);
+        return true;
+    }
+
+    @Override
+    public void windowSizeChanged(GatewaySession session, int columns, int rows) {
+        System.out.println("Window size: " + columns + "x" + rows);
+    }
+
+    @Override
+    public void terminalTypeReceived(GatewaySession session, String terminalType) {
+        System.out.println("Terminal type: " + terminalType);
+    }
+
+    @Override
+    public void environmentReceived(GatewaySession session, Map<String, String> variables) {
+        System.out.println("Environment: " + variables);
+    }
+}
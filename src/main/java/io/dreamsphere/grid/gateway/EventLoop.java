@@ -0,0 +1,135 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A single selector thread. Channels registered with the loop have their readiness dispatched to
+ * the {@link SelectionHandler} attached to their key, and tasks submitted through
+ * {@link #execute(Runnable)} are run on the loop thread between selections. Anything that touches
+ * the selector or a key's interest set must happen on the loop thread.
+ */
+class EventLoop implements Executor {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    SelectionKey register(SelectableChannel channel, int interestOps, SelectionHandler handler)
+            throws ClosedChannelException {
+        if (!inEventLoop()) {
+            throw new IllegalStateException("Channels can only be registered from the event loop thread");
+        }
+
+        return channel.register(selector, interestOps, handler);
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Selector failure on " + thread.getName() + ": " + e.getMessage());
+                break;
+            }
+
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                dispatch(key);
+            }
+
+            runTasks();
+        }
+
+        closeSelector();
+    }
+
+    private void dispatch(SelectionKey key) {
+        SelectionHandler handler = (SelectionHandler) key.attachment();
+
+        try {
+            if (key.isValid()) {
+                handler.selected(key);
+            }
+        } catch (IOException | RuntimeException e) {
+            key.cancel();
+            closeQuietly(key.channel());
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Task failed on " + thread.getName() + ": " + e);
+            }
+        }
+    }
+
+    private void closeSelector() {
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing more we can do while shutting down
+        }
+    }
+
+    private static void closeQuietly(SelectableChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The channel is being discarded anyway
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Singleton
+class EventLoopGroup {
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    @Inject
+    EventLoopGroup(GatewayConfig config) throws IOException {
+        this(config.getEventLoopThreads());
+    }
+
+    EventLoopGroup(int threads) throws IOException {
+        eventLoops = new EventLoop[threads];
+
+        for (int i = 0; i < threads; i++) {
+            eventLoops[i] = new EventLoop("event-loop-" + i);
+            eventLoops[i].start();
+        }
+    }
+
+    EventLoop next() {
+        return eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+    }
+
+    void shutdown() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+}
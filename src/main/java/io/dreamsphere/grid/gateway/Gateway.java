@@ -7,52 +7,189 @@
 package io.dreamsphere.grid.gateway;
 
 import com.google.inject.AbstractModule;
-import com.google.inject.Guice;
 import com.google.inject.Inject;
-import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
 
+import javax.management.JMException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 
 public class Gateway {
-    private static final Injector INJECTOR = Guice.createInjector(new AbstractModule() {
-        @Override
-        protected void configure() {
-            bind(ConnectionProvider.class).to(TcpConnectionProvider.class);
-            bind(Listener.class).to(TcpListener.class);
+    public static void main(String[] args) throws IOException, JMException {
+        Gateway gateway = create(GatewayConfig.fromSystemProperties());
+        gateway.open();
+        gateway.run();
+    }
+
+    /**
+     * Builds the same object graph as {@link #createModule(GatewayConfig)} with plain constructor
+     * calls, so starting up reflects over nothing. Singletons in the module are the locals shared
+     * below, and each listener gets a server socket and connection provider of its own as it would
+     * from the injector. A binding changed in one has to be changed in the other.
+     */
+    static Gateway create(GatewayConfig config) throws IOException, JMException {
+        return create(config, createPipeline(config));
+    }
+
+    // A gateway whose sessions run through the given handlers
+    static Gateway create(GatewayConfig config, SessionPipeline pipeline) throws IOException, JMException {
+        GatewayMetrics metrics = createMetrics();
+        AdmissionControl admissionControl = new AdmissionControl(config, metrics);
+        CompressionControl compressionControl = new CompressionControl(config, metrics);
+        IdleReaper idleReaper = new IdleReaper(config, metrics);
+        Provider<Listener> listenerProvider;
+        SessionDriver sessionDriver;
+
+        switch (config.getTransport()) {
+            case NIO:
+                EventLoopGroup eventLoopGroup = new EventLoopGroup(config);
+                listenerProvider = () -> {
+                    try {
+                        return new NioListener(openServerSocketChannel(config),
+                                new NioConnectionProvider(eventLoopGroup, config, metrics, idleReaper, admissionControl),
+                                metrics, admissionControl);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                };
+                sessionDriver = new NioSessionDriver(config, metrics, compressionControl, pipeline);
+                break;
+            case BLOCKING:
+                listenerProvider = () -> {
+                    try {
+                        return new TcpListener(createServerSocket(config),
+                                new TcpConnectionProvider(config, metrics, idleReaper, admissionControl), metrics,
+                                admissionControl);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                };
+                sessionDriver = new BlockingSessionDriver(config, metrics, compressionControl, pipeline);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transport " + config.getTransport());
         }
-    });
 
-    public static void main(String[] args) throws IOException {
-        Gateway gateway = INJECTOR.getInstance(Gateway.class);
-        gateway.run();
+        return new Gateway(config, new AcceptorGroup(config, listenerProvider, sessionDriver));
+    }
+
+    static Module createModule(GatewayConfig config) {
+        return new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(GatewayConfig.class).toInstance(config);
+
+                switch (config.getTransport()) {
+                    case NIO:
+                        bind(ConnectionProvider.class).to(NioConnectionProvider.class);
+                        bind(Listener.class).to(NioListener.class);
+                        bind(SessionDriver.class).to(NioSessionDriver.class);
+                        break;
+                    case BLOCKING:
+                        bind(ConnectionProvider.class).to(TcpConnectionProvider.class);
+                        bind(Listener.class).to(TcpListener.class);
+                        bind(SessionDriver.class).to(BlockingSessionDriver.class);
+                        break;
+                }
+            }
+
+            @Provides
+            ServerSocketChannel provideServerSocketChannel() throws IOException {
+                return openServerSocketChannel(config);
+            }
+
+            @Provides
+            ServerSocket provideServerSocket() throws IOException {
+                return createServerSocket(config);
+            }
+
+            @Provides
+            @Singleton
+            GatewayMetrics provideGatewayMetrics() throws JMException {
+                return createMetrics();
+            }
+
+            @Provides
+            @Singleton
+            SessionPipeline provideSessionPipeline() {
+                return createPipeline(config);
+            }
+        };
+    }
+
+    // Relays sessions to the backend when one is configured; links that fail to connect keep trying
+    // in the background
+    private static SessionPipeline createPipeline(GatewayConfig config) {
+        if (config.getBackendAddress() == null) {
+            return SessionPipeline.defaultPipeline();
+        }
+
+        BackendPool backendPool = new BackendPool(config);
+        backendPool.connect();
+        return new SessionPipeline(new BackendSessionHandler(backendPool));
+    }
+
+    private static ServerSocketChannel openServerSocketChannel(GatewayConfig config) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        if (config.isReusePort()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+
+        return serverChannel;
+    }
+
+    private static ServerSocket createServerSocket(GatewayConfig config) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+
+        if (config.isReusePort()) {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+
+        return serverSocket;
+    }
+
+    private static GatewayMetrics createMetrics() throws JMException {
+        GatewayMetrics metrics = new GatewayMetrics();
+        metrics.register(ManagementFactory.getPlatformMBeanServer());
+        return metrics;
     }
 
-    private final Listener listener;
+    private final GatewayConfig config;
+    private final AcceptorGroup acceptorGroup;
 
     @Inject
-    private Gateway(Listener listener) {
-        this.listener = listener;
+    Gateway(GatewayConfig config, AcceptorGroup acceptorGroup) {
+        this.config = config;
+        this.acceptorGroup = acceptorGroup;
     }
 
-    private void run() throws IOException {
-        listener.open(9000);
-        TelnetConnection telnetConnection = new TelnetConnection(listener.getNextConnection());
-        System.out.println("Connection established");
-        telnetConnection.send("Welcome!\n\r".getBytes("UTF-8"));
-        byte[] inputBuffer = new byte[100];
-        int bytesRead;
+    // Port 0 in the config binds to a free port, see getLocalPort()
+    void open() throws IOException {
+        acceptorGroup.open(config.getPort());
+    }
 
-        do {
-            bytesRead = telnetConnection.read(inputBuffer);
+    int getLocalPort() {
+        return acceptorGroup.getLocalPort();
+    }
 
-            if (bytesRead > 0) {
-                String input = new String(inputBuffer, 0, bytesRead, "UTF-8");
-                System.out.println("Received: [" + input + "]");
-                telnetConnection.send("I agree!\n\r".getBytes("UTF-8"));
-            }
-        } while(bytesRead >= 0);
+    // Accepts until the listeners are closed, then makes sure they all are
+    void run() throws IOException {
+        try {
+            acceptorGroup.run();
+        } finally {
+            acceptorGroup.close();
+        }
+    }
 
-        System.out.println("Closing connection");
-        telnetConnection.close();
+    void close() throws IOException {
+        acceptorGroup.close();
     }
 }
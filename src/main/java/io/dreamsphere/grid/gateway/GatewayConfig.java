@@ -0,0 +1,466 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+final class GatewayConfig {
+    private static final int DEFAULT_PORT = 9000;
+    private static final int DEFAULT_ACCEPT_BACKLOG = 1024;
+    private static final int DEFAULT_CONNECT_RATE_PER_IP = 20;
+    private static final int DEFAULT_CONNECT_BURST_PER_IP = 50;
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30 * 60;
+    private static final int DEFAULT_WRITE_TIMEOUT_SECONDS = 60;
+    private static final int DEFAULT_OUTBOUND_HIGH_WATER_BYTES = 256 * 1024;
+    private static final int DEFAULT_SLOW_CONSUMER_MILLIS = 5000;
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    private static final int DEFAULT_MAX_COMPRESSORS = 1024;
+    private static final int MIN_LINE_LENGTH = 80;
+    private static final String DEFAULT_TELNET_LOCAL_OPTIONS = "3,1,86";
+    private static final String DEFAULT_TELNET_REMOTE_OPTIONS = "31,24";
+    private static final int DEFAULT_BACKEND_LINKS = 4;
+
+    enum Transport {
+        BLOCKING,
+        NIO
+    }
+
+    enum SessionThreads {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    // What a connection does once its client lets more output pile up than the high-water mark
+    enum SlowConsumerPolicy {
+        // Drop the oldest messages that haven't started going out until the new one fits
+        DROP_OLDEST,
+        // Drop everything that hasn't started going out, for streams where each message
+        // supersedes the ones before it
+        COALESCE,
+        // Keep queueing, and close the connection once it has stayed over the mark for the slow
+        // consumer time
+        DISCONNECT
+    }
+
+    private final int port;
+    private final Transport transport;
+    private final SessionThreads sessionThreads;
+    private final int eventLoopThreads;
+    private final int acceptorThreads;
+    private final boolean reusePort;
+    private final int acceptBacklog;
+    private final int maxSessions;
+    private final int connectRatePerIp;
+    private final int connectBurstPerIp;
+    private final boolean tcpNoDelay;
+    private final int idleTimeoutSeconds;
+    private final int writeTimeoutSeconds;
+    private final int outboundHighWaterBytes;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final int slowConsumerMillis;
+    private final TelnetOptionPolicy telnetOptionPolicy;
+    private final int compressionLevel;
+    private final int maxCompressors;
+    private final int maxLineLength;
+    private final InetSocketAddress backendAddress;
+    private final int backendLinks;
+
+    private GatewayConfig(Builder builder) {
+        this.port = builder.port;
+        this.transport = builder.transport;
+        this.sessionThreads = builder.sessionThreads;
+        this.eventLoopThreads = builder.eventLoopThreads;
+        this.acceptorThreads = builder.acceptorThreads;
+        this.reusePort = builder.reusePort;
+        this.acceptBacklog = builder.acceptBacklog;
+        this.maxSessions = builder.maxSessions;
+        this.connectRatePerIp = builder.connectRatePerIp;
+        this.connectBurstPerIp = builder.connectBurstPerIp;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.idleTimeoutSeconds = builder.idleTimeoutSeconds;
+        this.writeTimeoutSeconds = builder.writeTimeoutSeconds;
+        this.outboundHighWaterBytes = builder.outboundHighWaterBytes;
+        this.slowConsumerPolicy = builder.slowConsumerPolicy;
+        this.slowConsumerMillis = builder.slowConsumerMillis;
+        this.telnetOptionPolicy = builder.telnetOptionPolicy;
+        this.compressionLevel = builder.compressionLevel;
+        this.maxCompressors = builder.maxCompressors;
+        this.maxLineLength = builder.maxLineLength;
+        this.backendAddress = builder.backendAddress;
+        this.backendLinks = builder.backendLinks;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    static GatewayConfig fromSystemProperties() {
+        Builder builder = builder();
+        builder.port(Integer.getInteger("gateway.port", builder.port));
+        builder.transport(Transport.valueOf(
+                System.getProperty("gateway.transport", builder.transport.name()).toUpperCase(Locale.ROOT)));
+        builder.sessionThreads(SessionThreads.valueOf(
+                System.getProperty("gateway.sessionThreads", builder.sessionThreads.name()).toUpperCase(Locale.ROOT)));
+        builder.eventLoopThreads(Integer.getInteger("gateway.eventLoopThreads", builder.eventLoopThreads));
+        builder.acceptorThreads(Integer.getInteger("gateway.acceptorThreads", builder.acceptorThreads));
+        builder.reusePort(Boolean.parseBoolean(
+                System.getProperty("gateway.reusePort", Boolean.toString(builder.reusePort))));
+        builder.acceptBacklog(Integer.getInteger("gateway.acceptBacklog", builder.acceptBacklog));
+        builder.maxSessions(Integer.getInteger("gateway.maxSessions", builder.maxSessions));
+        builder.connectRatePerIp(Integer.getInteger("gateway.connectRatePerIp", builder.connectRatePerIp));
+        builder.connectBurstPerIp(Integer.getInteger("gateway.connectBurstPerIp", builder.connectBurstPerIp));
+        builder.tcpNoDelay(Boolean.parseBoolean(
+                System.getProperty("gateway.tcpNoDelay", Boolean.toString(builder.tcpNoDelay))));
+        builder.idleTimeoutSeconds(Integer.getInteger("gateway.idleTimeoutSeconds", builder.idleTimeoutSeconds));
+        builder.writeTimeoutSeconds(Integer.getInteger("gateway.writeTimeoutSeconds", builder.writeTimeoutSeconds));
+        builder.outboundHighWaterBytes(
+                Integer.getInteger("gateway.outboundHighWaterBytes", builder.outboundHighWaterBytes));
+        builder.slowConsumerPolicy(SlowConsumerPolicy.valueOf(System.getProperty("gateway.slowConsumerPolicy",
+                builder.slowConsumerPolicy.name()).toUpperCase(Locale.ROOT)));
+        builder.slowConsumerMillis(Integer.getInteger("gateway.slowConsumerMillis", builder.slowConsumerMillis));
+        builder.telnetOptionPolicy(TelnetOptionPolicy.parse(
+                System.getProperty("gateway.telnetLocalOptions", DEFAULT_TELNET_LOCAL_OPTIONS),
+                System.getProperty("gateway.telnetRemoteOptions", DEFAULT_TELNET_REMOTE_OPTIONS)));
+        builder.compressionLevel(Integer.getInteger("gateway.compressionLevel", builder.compressionLevel));
+        builder.maxCompressors(Integer.getInteger("gateway.maxCompressors", builder.maxCompressors));
+        builder.maxLineLength(Integer.getInteger("gateway.maxLineLength", builder.maxLineLength));
+        String backend = System.getProperty("gateway.backend");
+
+        if (backend != null && !backend.isEmpty()) {
+            builder.backend(backend);
+        }
+
+        builder.backendLinks(Integer.getInteger("gateway.backendLinks", builder.backendLinks));
+        return builder.build();
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    Transport getTransport() {
+        return transport;
+    }
+
+    SessionThreads getSessionThreads() {
+        return sessionThreads;
+    }
+
+    int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    // Threads waiting in accept, for taking connection storms such as every client reconnecting
+    // after a restart
+    int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    // Gives every acceptor thread a listening socket of its own on the same port, with the kernel
+    // spreading incoming connections between them, rather than all of them sharing one
+    boolean isReusePort() {
+        return reusePort;
+    }
+
+    // Connections waiting to be accepted, per listening socket. The kernel caps it at somaxconn.
+    int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    // Live sessions beyond which new connections are turned away, 0 for no limit
+    int getMaxSessions() {
+        return maxSessions;
+    }
+
+    // Connections a second one source address may keep up once its burst is used up, 0 for no limit
+    int getConnectRatePerIp() {
+        return connectRatePerIp;
+    }
+
+    int getConnectBurstPerIp() {
+        return connectBurstPerIp;
+    }
+
+    // Writes are already coalesced up to each flush, so by default Nagle only adds latency
+    boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    // Connections without any traffic for this long are closed, 0 keeps them forever
+    int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    // Connections whose client takes none of the pending output for this long are closed as
+    // half-open, 0 keeps them forever
+    int getWriteTimeoutSeconds() {
+        return writeTimeoutSeconds;
+    }
+
+    // Unwritten output a connection may hold before the slow consumer policy applies, 0 for no limit
+    int getOutboundHighWaterBytes() {
+        return outboundHighWaterBytes;
+    }
+
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    int getSlowConsumerMillis() {
+        return slowConsumerMillis;
+    }
+
+    // Telnet options the server enables itself and the ones it asks clients for, all offered up front
+    TelnetOptionPolicy getTelnetOptionPolicy() {
+        return telnetOptionPolicy;
+    }
+
+    // zlib level for MCCP2 sessions, 1 (fastest) to 9 (smallest), or -1 for zlib's default
+    int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    // Sessions compressing at once, each holding a few hundred kilobytes of zlib state; 0 turns
+    // compression off
+    int getMaxCompressors() {
+        return maxCompressors;
+    }
+
+    // Longest line of input a session buffers, longer ones are cut short
+    int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    // The grid server sessions are relayed to, or null for the gateway to answer them itself
+    InetSocketAddress getBackendAddress() {
+        return backendAddress;
+    }
+
+    // Persistent connections to the backend that every session shares
+    int getBackendLinks() {
+        return backendLinks;
+    }
+
+    static final class Builder {
+        private int port = DEFAULT_PORT;
+        private Transport transport = Transport.BLOCKING;
+        private SessionThreads sessionThreads = SessionThreads.PLATFORM;
+        private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+        private int acceptorThreads = 1;
+        private boolean reusePort;
+        private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
+        private int maxSessions;
+        private int connectRatePerIp = DEFAULT_CONNECT_RATE_PER_IP;
+        private int connectBurstPerIp = DEFAULT_CONNECT_BURST_PER_IP;
+        private boolean tcpNoDelay = true;
+        private int idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+        private int writeTimeoutSeconds = DEFAULT_WRITE_TIMEOUT_SECONDS;
+        private int outboundHighWaterBytes = DEFAULT_OUTBOUND_HIGH_WATER_BYTES;
+        private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+        private int slowConsumerMillis = DEFAULT_SLOW_CONSUMER_MILLIS;
+        private TelnetOptionPolicy telnetOptionPolicy =
+                TelnetOptionPolicy.parse(DEFAULT_TELNET_LOCAL_OPTIONS, DEFAULT_TELNET_REMOTE_OPTIONS);
+        private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        private int maxCompressors = DEFAULT_MAX_COMPRESSORS;
+        private int maxLineLength = GatewaySession.DEFAULT_MAX_LINE_LENGTH;
+        private InetSocketAddress backendAddress;
+        private int backendLinks = DEFAULT_BACKEND_LINKS;
+
+        private Builder() {
+        }
+
+        Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        Builder transport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        Builder sessionThreads(SessionThreads sessionThreads) {
+            this.sessionThreads = sessionThreads;
+            return this;
+        }
+
+        Builder eventLoopThreads(int eventLoopThreads) {
+            if (eventLoopThreads < 1) {
+                throw new IllegalArgumentException("At least one event loop thread is required");
+            }
+
+            this.eventLoopThreads = eventLoopThreads;
+            return this;
+        }
+
+        Builder acceptorThreads(int acceptorThreads) {
+            if (acceptorThreads < 1) {
+                throw new IllegalArgumentException("At least one acceptor thread is required");
+            }
+
+            this.acceptorThreads = acceptorThreads;
+            return this;
+        }
+
+        Builder reusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        Builder acceptBacklog(int acceptBacklog) {
+            if (acceptBacklog < 1) {
+                throw new IllegalArgumentException("Accept backlog has to be positive");
+            }
+
+            this.acceptBacklog = acceptBacklog;
+            return this;
+        }
+
+        Builder maxSessions(int maxSessions) {
+            if (maxSessions < 0) {
+                throw new IllegalArgumentException("Maximum sessions cannot be negative");
+            }
+
+            this.maxSessions = maxSessions;
+            return this;
+        }
+
+        Builder connectRatePerIp(int connectRatePerIp) {
+            if (connectRatePerIp < 0 || connectRatePerIp > 1000) {
+                throw new IllegalArgumentException("Connect rate has to be between 0 and 1000 a second");
+            }
+
+            this.connectRatePerIp = connectRatePerIp;
+            return this;
+        }
+
+        Builder connectBurstPerIp(int connectBurstPerIp) {
+            if (connectBurstPerIp < 1) {
+                throw new IllegalArgumentException("Connect burst has to be positive");
+            }
+
+            this.connectBurstPerIp = connectBurstPerIp;
+            return this;
+        }
+
+        Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        Builder idleTimeoutSeconds(int idleTimeoutSeconds) {
+            if (idleTimeoutSeconds < 0) {
+                throw new IllegalArgumentException("Idle timeout cannot be negative");
+            }
+
+            this.idleTimeoutSeconds = idleTimeoutSeconds;
+            return this;
+        }
+
+        Builder writeTimeoutSeconds(int writeTimeoutSeconds) {
+            if (writeTimeoutSeconds < 0) {
+                throw new IllegalArgumentException("Write timeout cannot be negative");
+            }
+
+            this.writeTimeoutSeconds = writeTimeoutSeconds;
+            return this;
+        }
+
+        Builder outboundHighWaterBytes(int outboundHighWaterBytes) {
+            if (outboundHighWaterBytes < 0) {
+                throw new IllegalArgumentException("Outbound high-water mark cannot be negative");
+            }
+
+            this.outboundHighWaterBytes = outboundHighWaterBytes;
+            return this;
+        }
+
+        Builder slowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+            this.slowConsumerPolicy = slowConsumerPolicy;
+            return this;
+        }
+
+        Builder slowConsumerMillis(int slowConsumerMillis) {
+            if (slowConsumerMillis < 0) {
+                throw new IllegalArgumentException("Slow consumer time cannot be negative");
+            }
+
+            this.slowConsumerMillis = slowConsumerMillis;
+            return this;
+        }
+
+        Builder telnetOptionPolicy(TelnetOptionPolicy telnetOptionPolicy) {
+            this.telnetOptionPolicy = telnetOptionPolicy;
+            return this;
+        }
+
+        Builder compressionLevel(int compressionLevel) {
+            if (compressionLevel < -1 || compressionLevel > 9) {
+                throw new IllegalArgumentException("Compression level has to be between -1 and 9");
+            }
+
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        Builder maxCompressors(int maxCompressors) {
+            if (maxCompressors < 0) {
+                throw new IllegalArgumentException("Maximum compressors cannot be negative");
+            }
+
+            this.maxCompressors = maxCompressors;
+            return this;
+        }
+
+        Builder maxLineLength(int maxLineLength) {
+            if (maxLineLength < MIN_LINE_LENGTH) {
+                throw new IllegalArgumentException("Maximum line length has to be at least " + MIN_LINE_LENGTH);
+            }
+
+            this.maxLineLength = maxLineLength;
+            return this;
+        }
+
+        // As host:port, resolved each time a link connects
+        Builder backend(String hostAndPort) {
+            int colon = hostAndPort.lastIndexOf(':');
+
+            if (colon <= 0 || colon == hostAndPort.length() - 1) {
+                throw new IllegalArgumentException("Backend has to be given as host:port, not " + hostAndPort);
+            }
+
+            int backendPort;
+
+            try {
+                backendPort = Integer.parseInt(hostAndPort.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Backend port is not a number in " + hostAndPort, e);
+            }
+
+            if (backendPort < 1 || backendPort > 65535) {
+                throw new IllegalArgumentException("Backend port has to be between 1 and 65535");
+            }
+
+            this.backendAddress = InetSocketAddress.createUnresolved(hostAndPort.substring(0, colon), backendPort);
+            return this;
+        }
+
+        Builder backendLinks(int backendLinks) {
+            if (backendLinks < 1) {
+                throw new IllegalArgumentException("At least one backend link is required");
+            }
+
+            this.backendLinks = backendLinks;
+            return this;
+        }
+
+        GatewayConfig build() {
+            return new GatewayConfig(this);
+        }
+    }
+}
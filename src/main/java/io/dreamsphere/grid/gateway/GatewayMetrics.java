@@ -0,0 +1,367 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation shared by every connection of the gateway. Counters are striped
+ * {@link LongAdder}s and latencies go into lock-free histograms, so sessions on different threads
+ * don't contend on a recording. A disabled instance ignores everything, which is what connections
+ * built outside of the Guice module get.
+ */
+class GatewayMetrics implements GatewayMetricsMBean {
+    static final String OBJECT_NAME = "io.dreamsphere.grid.gateway:type=GatewayMetrics";
+
+    private static final GatewayMetrics DISABLED = new GatewayMetrics(false);
+    static final long NOT_TIMED = Long.MIN_VALUE;
+    // A clock read costs more than the rest of a recording, so only every 16th operation is timed
+    private static final int TIMING_SAMPLE_MASK = 0xF;
+
+    private final boolean enabled;
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder iacCommands = new LongAdder();
+    private final LongAdder negotiations = new LongAdder();
+    private final LongAdder truncatedSubnegotiations = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder liveSessions = new LongAdder();
+    private final LongAdder rateLimitedConnections = new LongAdder();
+    private final LongAdder overCapacityConnections = new LongAdder();
+    private final LongAdder idleSessionsReaped = new LongAdder();
+    private final LongAdder halfOpenSessionsReaped = new LongAdder();
+    private final LongAdder queuedOutboundBytes = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+    private final LongAdder activeCompressors = new LongAdder();
+    private final LongAdder compressionBytesIn = new LongAdder();
+    private final LongAdder compressionBytesOut = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    private final RateMeter acceptRate = new RateMeter();
+
+    GatewayMetrics() {
+        this(true);
+    }
+
+    private GatewayMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    static GatewayMetrics disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Publishes the metrics on the given server, replacing any earlier gateway's in the same JVM.
+     */
+    void register(MBeanServer server) throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+
+        server.registerMBean(new StandardMBean(this, GatewayMetricsMBean.class), name);
+    }
+
+    /**
+     * Starts timing an operation if it is one of the sampled ones.
+     *
+     * @param sequence a count of the operations of this kind on the connection.
+     * @return the value to pass to the matching record call.
+     */
+    long startTimer(int sequence) {
+        return enabled && (sequence & TIMING_SAMPLE_MASK) == 0 ? System.nanoTime() : NOT_TIMED;
+    }
+
+    void recordRead(int bytesRead, long startNanos) {
+        if (enabled) {
+            if (startNanos != NOT_TIMED) {
+                readLatency.record(System.nanoTime() - startNanos);
+            }
+
+            if (bytesRead > 0) {
+                bytesIn.add(bytesRead);
+                messagesIn.increment();
+            }
+        }
+    }
+
+    void recordSend(long bytes) {
+        if (enabled) {
+            bytesOut.add(bytes);
+            messagesOut.increment();
+        }
+    }
+
+    void recordFlush(long startNanos) {
+        if (startNanos != NOT_TIMED) {
+            sendLatency.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    void recordIacCommand() {
+        if (enabled) {
+            iacCommands.increment();
+        }
+    }
+
+    void recordNegotiation() {
+        if (enabled) {
+            negotiations.increment();
+        }
+    }
+
+    void recordTruncatedSubnegotiation() {
+        if (enabled) {
+            truncatedSubnegotiations.increment();
+        }
+    }
+
+    void recordAccept() {
+        if (enabled) {
+            acceptedConnections.increment();
+            acceptRate.mark();
+        }
+    }
+
+    void recordRateLimited() {
+        if (enabled) {
+            rateLimitedConnections.increment();
+        }
+    }
+
+    void recordOverCapacity() {
+        if (enabled) {
+            overCapacityConnections.increment();
+        }
+    }
+
+    void sessionOpened() {
+        if (enabled) {
+            liveSessions.increment();
+        }
+    }
+
+    void sessionClosed() {
+        if (enabled) {
+            liveSessions.decrement();
+        }
+    }
+
+    /**
+     * @param bytes change in the number of bytes waiting in outbound queues, negative once written.
+     */
+    void recordQueued(long bytes) {
+        if (enabled) {
+            queuedOutboundBytes.add(bytes);
+        }
+    }
+
+    void recordDropped(int messages) {
+        if (enabled) {
+            droppedMessages.add(messages);
+        }
+    }
+
+    void recordSlowConsumerDisconnect() {
+        if (enabled) {
+            slowConsumerDisconnects.increment();
+        }
+    }
+
+    void compressorStarted() {
+        if (enabled) {
+            activeCompressors.increment();
+        }
+    }
+
+    void compressorStopped() {
+        if (enabled) {
+            activeCompressors.decrement();
+        }
+    }
+
+    /**
+     * @param bytesIn  bytes handed to the compressor.
+     * @param bytesOut compressed bytes it produced.
+     * @param nanos    time spent in the compressor, all of it on the CPU.
+     */
+    void recordCompression(long bytesIn, long bytesOut, long nanos) {
+        if (enabled) {
+            compressionBytesIn.add(bytesIn);
+            compressionBytesOut.add(bytesOut);
+            compressionNanos.add(nanos);
+        }
+    }
+
+    void recordIdleReaped() {
+        if (enabled) {
+            idleSessionsReaped.increment();
+        }
+    }
+
+    void recordHalfOpenReaped() {
+        if (enabled) {
+            halfOpenSessionsReaped.increment();
+        }
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getReadLatencyP50Micros() {
+        return toMicros(readLatency.valueAt(0.5));
+    }
+
+    @Override
+    public long getReadLatencyP99Micros() {
+        return toMicros(readLatency.valueAt(0.99));
+    }
+
+    @Override
+    public long getReadLatencyP999Micros() {
+        return toMicros(readLatency.valueAt(0.999));
+    }
+
+    @Override
+    public long getSendLatencyP50Micros() {
+        return toMicros(sendLatency.valueAt(0.5));
+    }
+
+    @Override
+    public long getSendLatencyP99Micros() {
+        return toMicros(sendLatency.valueAt(0.99));
+    }
+
+    @Override
+    public long getSendLatencyP999Micros() {
+        return toMicros(sendLatency.valueAt(0.999));
+    }
+
+    @Override
+    public long getIacCommands() {
+        return iacCommands.sum();
+    }
+
+    @Override
+    public long getNegotiations() {
+        return negotiations.sum();
+    }
+
+    @Override
+    public long getTruncatedSubnegotiations() {
+        return truncatedSubnegotiations.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public double getAcceptRatePerSecond() {
+        return acceptRate.perSecond();
+    }
+
+    @Override
+    public long getLiveSessions() {
+        return liveSessions.sum();
+    }
+
+    @Override
+    public long getRateLimitedConnections() {
+        return rateLimitedConnections.sum();
+    }
+
+    @Override
+    public long getOverCapacityConnections() {
+        return overCapacityConnections.sum();
+    }
+
+    @Override
+    public long getIdleSessionsReaped() {
+        return idleSessionsReaped.sum();
+    }
+
+    @Override
+    public long getHalfOpenSessionsReaped() {
+        return halfOpenSessionsReaped.sum();
+    }
+
+    @Override
+    public long getQueuedOutboundBytes() {
+        return queuedOutboundBytes.sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    @Override
+    public long getActiveCompressors() {
+        return activeCompressors.sum();
+    }
+
+    @Override
+    public long getCompressionBytesIn() {
+        return compressionBytesIn.sum();
+    }
+
+    @Override
+    public long getCompressionBytesOut() {
+        return compressionBytesOut.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long out = compressionBytesOut.sum();
+        return out == 0 ? 0 : (double) compressionBytesIn.sum() / out;
+    }
+
+    @Override
+    public long getCompressionMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compressionNanos.sum());
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
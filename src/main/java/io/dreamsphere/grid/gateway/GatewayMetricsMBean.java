@@ -0,0 +1,46 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+/**
+ * Gateway wide counters, published over JMX as io.dreamsphere.grid.gateway:type=GatewayMetrics.
+ * Latencies are in microseconds, and cover the time spent inside a read or a flush of a
+ * connection, sampled on every 16th operation. Blocking connections only time the reads that find
+ * input already waiting, so waiting for the client to type is left out.
+ */
+public interface GatewayMetricsMBean {
+    long getBytesIn();
+    long getBytesOut();
+    long getMessagesIn();
+    long getMessagesOut();
+    long getReadLatencyP50Micros();
+    long getReadLatencyP99Micros();
+    long getReadLatencyP999Micros();
+    long getSendLatencyP50Micros();
+    long getSendLatencyP99Micros();
+    long getSendLatencyP999Micros();
+    long getIacCommands();
+    long getNegotiations();
+    // Subnegotiations longer than the gateway keeps, cut short before being passed on
+    long getTruncatedSubnegotiations();
+    long getAcceptedConnections();
+    double getAcceptRatePerSecond();
+    long getLiveSessions();
+    long getRateLimitedConnections();
+    long getOverCapacityConnections();
+    long getIdleSessionsReaped();
+    long getHalfOpenSessionsReaped();
+    long getQueuedOutboundBytes();
+    long getDroppedMessages();
+    long getSlowConsumerDisconnects();
+    long getActiveCompressors();
+    long getCompressionBytesIn();
+    long getCompressionBytesOut();
+    // Bytes in for every byte out, 0 until something has been compressed
+    double getCompressionRatio();
+    long getCompressionMillis();
+}
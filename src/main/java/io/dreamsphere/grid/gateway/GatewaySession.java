@@ -0,0 +1,294 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client's session: frames its input into lines and passes them, along with what the client
+ * reports through Telnet options, to the handlers of a {@link SessionPipeline}. The Telnet side of
+ * things, the option offers and echoing what is typed once the client asks for it, stays here.
+ * <p>
+ * Handlers see one event at a time. Events are fired under a lock, so offloaded work that finishes
+ * on another thread, or the idle timeout, never overlaps the session's own reads. On an event loop
+ * the lock is never contended, everything is handed back to the loop thread.
+ */
+class GatewaySession implements TelnetOptionListener {
+    static final int DEFAULT_MAX_LINE_LENGTH = 1024;
+
+    private final TelnetConnection telnetConnection;
+    private final LineAssembler lineAssembler;
+    private final SessionPipeline pipeline;
+    // Where events from other threads are fired, the event loop for non-blocking sessions
+    private final Executor sessionExecutor;
+    private final ReentrantLock eventLock = new ReentrantLock();
+    // Option reports decoded during a read, fired once the read is done; only the reading thread touches it
+    private final List<Event> optionEvents = new ArrayList<>();
+    // Whether anything was sent since the last flush, guarded by eventLock
+    private boolean unflushed;
+    private volatile boolean closed;
+    private volatile Object attachment;
+
+    /**
+     * Hands a result of offloaded work back to the session.
+     */
+    interface Completion<T> {
+        void completed(T result) throws IOException;
+    }
+
+    interface Event {
+        void fire() throws IOException;
+    }
+
+    GatewaySession(TelnetConnection telnetConnection, int maxLineLength, SessionPipeline pipeline,
+                   Executor sessionExecutor) {
+        this.telnetConnection = telnetConnection;
+        this.lineAssembler = new LineAssembler(maxLineLength);
+        this.pipeline = pipeline;
+        this.sessionExecutor = sessionExecutor;
+    }
+
+    GatewaySession(TelnetConnection telnetConnection, int maxLineLength) {
+        this(telnetConnection, maxLineLength, SessionPipeline.defaultPipeline(), Runnable::run);
+    }
+
+    GatewaySession(TelnetConnection telnetConnection) {
+        this(telnetConnection, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    void open() throws IOException {
+        System.out.println("Connection established");
+        telnetConnection.setOptionListener(this);
+        eventLock.lock();
+
+        try {
+            // The option offers and whatever the handlers greet with leave in one write
+            telnetConnection.sendInitialOffers();
+            unflushed = true;
+            pipeline.connected(this);
+            flushIfSent();
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the next chunk of client input and passes every line it completes down the pipeline.
+     * On a blocking connection this waits for at least one byte, on a non-blocking one it returns
+     * 0 when nothing is pending.
+     *
+     * @return the number of bytes of input handled; -1 means the client has gone away.
+     * @throws IOException If something goes wrong with the connection or a handler.
+     */
+    int process() throws IOException {
+        int bytesRead = lineAssembler.readFrom(telnetConnection);
+        eventLock.lock();
+
+        try {
+            try {
+                for (int i = 0; i < optionEvents.size(); i++) {
+                    optionEvents.get(i).fire();
+                }
+            } finally {
+                optionEvents.clear();
+            }
+
+            if (bytesRead > 0) {
+                // Clients that agreed to let the server echo no longer show what is typed themselves
+                if (telnetConnection.isEnabledLocally(TelnetCodes.OPT_ECHO)) {
+                    send(lineAssembler.lastRead());
+                }
+
+                ByteBuffer line;
+
+                while ((line = lineAssembler.nextLine()) != null) {
+                    pipeline.lineReceived(this, line, lineAssembler.isTruncated());
+                }
+            }
+
+            flushIfSent();
+        } finally {
+            eventLock.unlock();
+        }
+
+        return bytesRead;
+    }
+
+    void send(byte[] message) throws IOException {
+        eventLock.lock();
+
+        try {
+            telnetConnection.send(message);
+            unflushed = true;
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    void send(ByteBuffer message) throws IOException {
+        eventLock.lock();
+
+        try {
+            telnetConnection.send(message);
+            unflushed = true;
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    void send(String text) throws IOException {
+        send(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    boolean isEnabledLocally(byte option) {
+        return telnetConnection.isEnabledLocally(option);
+    }
+
+    boolean isEnabledRemotely(byte option) {
+        return telnetConnection.isEnabledRemotely(option);
+    }
+
+    // Told, on the writing thread, whenever everything sent to the client has been written
+    void onOutputDrained(Runnable handler) {
+        telnetConnection.onOutputDrained(handler);
+    }
+
+    Object attachment() {
+        return attachment;
+    }
+
+    void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * Runs blocking work, a lookup in a database say, on the pipeline's offload executor, then
+     * passes its result to the completion back on the session's side, as one more event. Work that
+     * throws fails the session; catch inside it to carry on instead.
+     */
+    <T> void offload(Callable<T> work, Completion<T> completion) {
+        pipeline.offloadExecutor().execute(() -> {
+            T result;
+
+            try {
+                result = work.call();
+            } catch (Exception e) {
+                System.out.println("Offloaded work failed: " + e);
+                closeLater();
+                return;
+            }
+
+            fireLater(() -> completion.completed(result));
+        });
+    }
+
+    /**
+     * Fires the event on the session's side, for threads that are not the session's and have
+     * nothing blocking to do first. An event that fails closes the session.
+     */
+    void fireLater(Event event) {
+        sessionExecutor.execute(() -> fire(event));
+    }
+
+    // Called by the idle timeout, whose thread may not be the session's
+    void idle() {
+        sessionExecutor.execute(() -> {
+            fire(() -> pipeline.idle(this));
+            closeQuietly();
+        });
+    }
+
+    // Reported while the connection decodes input, with its read lock held. Taking the event lock
+    // there could deadlock against offloaded work, so these wait for the read to finish.
+    @Override
+    public void windowSizeChanged(int columns, int rows) {
+        optionEvents.add(() -> pipeline.windowSizeChanged(this, columns, rows));
+    }
+
+    @Override
+    public void terminalTypeReceived(String terminalType) {
+        optionEvents.add(() -> pipeline.terminalTypeReceived(this, terminalType));
+    }
+
+    @Override
+    public void environmentReceived(Map<String, String> variables) {
+        optionEvents.add(() -> pipeline.environmentReceived(this, variables));
+    }
+
+    void close() throws IOException {
+        eventLock.lock();
+
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            System.out.println("Closing connection");
+
+            try {
+                telnetConnection.close();
+            } finally {
+                pipeline.closed(this);
+            }
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Closes the session on its own side, for threads that are not the session's
+    void closeLater() {
+        sessionExecutor.execute(this::closeQuietly);
+    }
+
+    // Events from outside process() have no caller to report a failure to, so it closes the session
+    private void fire(Event event) {
+        eventLock.lock();
+
+        try {
+            if (!closed) {
+                event.fire();
+                flushIfSent();
+            }
+        } catch (IOException e) {
+            System.out.println("Session failed: " + e.getMessage());
+            closeQuietly();
+        } catch (RuntimeException e) {
+            System.out.println("Session failed: " + e);
+            closeQuietly();
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    private void flushIfSent() throws IOException {
+        if (unflushed) {
+            unflushed = false;
+            telnetConnection.flush();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            System.out.println("Failed to close session: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes connections that have gone quiet. A connection is idle once nothing has been read from or
+ * written to it for the idle timeout, and half-open once data has been waiting to go out for the
+ * write timeout without the client taking any of it, which is what a client that vanished without
+ * closing its socket looks like. Either timeout can be switched off with 0.
+ *
+ * Each watched connection has one check on a {@link TimingWheel} with a one second tick. I/O only
+ * updates the connection's {@link ConnectionActivity}; the check looks at it when it goes off and,
+ * if there was traffic in the meantime, files itself again for the new deadline.
+ */
+@Singleton
+class IdleReaper {
+    private static final int WHEEL_SIZE = 512;
+
+    private final TimingWheel wheel;
+    private final long idleTicks;
+    private final long writeTicks;
+    private final GatewayMetrics metrics;
+    private final boolean enabled;
+
+    @Inject
+    IdleReaper(GatewayConfig config, GatewayMetrics metrics) {
+        this(new TimingWheel("idle-reaper", 1, TimeUnit.SECONDS, WHEEL_SIZE), config.getIdleTimeoutSeconds(),
+                config.getWriteTimeoutSeconds(), metrics);
+    }
+
+    IdleReaper(TimingWheel wheel, long idleTicks, long writeTicks, GatewayMetrics metrics) {
+        this.wheel = wheel;
+        this.idleTicks = idleTicks;
+        this.writeTicks = writeTicks;
+        this.metrics = metrics;
+        this.enabled = idleTicks > 0 || writeTicks > 0;
+
+        if (enabled) {
+            wheel.start();
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    ConnectionActivity newActivity() {
+        return enabled ? new ConnectionActivity(wheel) : ConnectionActivity.untracked();
+    }
+
+    /**
+     * @param onClosed run once the connection has closed.
+     */
+    ConnectionActivity newActivity(Runnable onClosed) {
+        return enabled ? new ConnectionActivity(wheel, onClosed) : ConnectionActivity.untracked(onClosed);
+    }
+
+    /**
+     * Starts watching a connection that reports its I/O to the given activity.
+     */
+    void watch(Connection connection, ConnectionActivity activity) {
+        if (enabled && activity != ConnectionActivity.untracked()) {
+            scheduleCheck(connection, activity, nextCheckDelay(activity, wheel.currentTick()));
+        }
+    }
+
+    void shutdown() {
+        wheel.shutdown();
+    }
+
+    private void scheduleCheck(Connection connection, ConnectionActivity activity, long delayTicks) {
+        activity.setCheck(wheel.schedule(() -> check(connection, activity), delayTicks));
+    }
+
+    private void check(Connection connection, ConnectionActivity activity) {
+        if (activity.isClosed()) {
+            return;
+        }
+
+        long now = wheel.currentTick();
+        long stalledSince = activity.getWriteStalledSince();
+
+        if (writeTicks > 0 && stalledSince != ConnectionActivity.NOT_STALLED && now - stalledSince >= writeTicks) {
+            metrics.recordHalfOpenReaped();
+            reap(connection);
+        } else if (idleTicks > 0 && now - activity.getLastActivity() >= idleTicks) {
+            metrics.recordIdleReaped();
+            Runnable idleHandler = activity.getIdleHandler();
+
+            if (idleHandler != null) {
+                idleHandler.run();
+            } else {
+                reap(connection);
+            }
+        } else {
+            scheduleCheck(connection, activity, nextCheckDelay(activity, now));
+        }
+    }
+
+    private long nextCheckDelay(ConnectionActivity activity, long now) {
+        long delay = Long.MAX_VALUE;
+
+        if (idleTicks > 0) {
+            delay = activity.getLastActivity() + idleTicks - now;
+        }
+
+        if (writeTicks > 0) {
+            long stalledSince = activity.getWriteStalledSince();
+            // Without a stall yet, looking again a write timeout from now catches one that starts
+            // in between within twice the timeout
+            delay = Math.min(delay, stalledSince != ConnectionActivity.NOT_STALLED
+                    ? stalledSince + writeTicks - now : writeTicks);
+        }
+
+        return delay;
+    }
+
+    // Counted rather than logged, as a network outage can take a great many connections at once
+    private static void reap(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection: " + e.getMessage());
+        }
+    }
+}
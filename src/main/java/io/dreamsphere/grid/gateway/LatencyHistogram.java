@@ -0,0 +1,95 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Buckets are powers of two split into eight
+ * linear steps, so any recorded value lands in a bucket no more than 12.5% wider than the value
+ * itself, from a nanosecond up to the full range of a long. Like a LongAdder the counts are striped,
+ * threads record into the copy picked by their id so that sessions on different cores don't fight
+ * over the same bucket.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int MAX_STRIPES = 64;
+
+    private final int stripeMask;
+    private final AtomicLongArray counts;
+
+    LatencyHistogram() {
+        int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+        stripeMask = stripes - 1;
+        counts = new AtomicLongArray(stripes * BUCKETS);
+    }
+
+    void record(long nanos) {
+        int stripe = (int) Thread.currentThread().threadId() & stripeMask;
+        counts.getAndIncrement(stripe * BUCKETS + bucketOf(Math.max(nanos, 0)));
+    }
+
+    long count() {
+        long count = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+
+        return count;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile.
+     * @return the upper bound of the bucket holding the quantile, 0 if nothing was recorded.
+     */
+    long valueAt(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            long bucketCount = counts.get(i);
+            snapshot[i % BUCKETS] += bucketCount;
+            count += bucketCount;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+
+        return 0;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int step = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + step;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
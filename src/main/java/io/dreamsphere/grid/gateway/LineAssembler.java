@@ -0,0 +1,187 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits decoded Telnet input into lines. Input is read straight into a buffer leased from a shared
+ * pool and lines are handed out as views of it, so nothing is copied or allocated per line. The
+ * buffer goes back to the pool whenever no partial line is left in it, an idle session holds none.
+ * <p>
+ * Lines end at CR LF or CR NUL, the NVT end of line and carriage return, and also at a bare LF or
+ * CR as plenty of clients send those. A line longer than the maximum is cut there and the rest of
+ * it, up to its end of line, is dropped, so a client can't make the buffer grow.
+ * <p>
+ * Not thread safe, a session reads its lines from one thread at a time.
+ */
+final class LineAssembler {
+    static final BufferPool LINE_BUFFERS = new BufferPool(64 * 1024, 64 * 1024);
+
+    private final int maxLineLength;
+    // Null while no input is held
+    private ByteBuffer buffer;
+    // The pool tends to hand the same buffer back, the views on it are kept until it doesn't
+    private ByteBuffer viewedBuffer;
+    private ByteBuffer readView;
+    private ByteBuffer lineView;
+    private ByteBuffer lastReadView;
+    // Unconsumed input sits between start and end
+    private int start;
+    private int end;
+    // The next scan resumes here, no need to look at bytes already known not to end a line
+    private int scanned;
+    // A line ended at CR, so an LF or NUL right after it belongs to that line
+    private boolean afterCr;
+    // The current line went over the maximum and is being dropped up to its end
+    private boolean discarding;
+    private boolean truncated;
+
+    LineAssembler(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Reads more input from the connection, after moving what is left of a partial line to the
+     * front of the buffer. Take every complete line with {@link #nextLine()} before calling this
+     * again.
+     *
+     * @return bytes read, 0 if none were pending on a non-blocking connection, -1 at end of stream.
+     */
+    int readFrom(Connection connection) throws IOException {
+        if (buffer == null) {
+            lease();
+        } else if (start > 0) {
+            buffer.put(0, buffer, start, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        }
+
+        try {
+            readView.clear().position(end).limit(maxLineLength);
+            int bytesRead = connection.read(readView);
+            lastReadView.clear().position(end).limit(end + Math.max(bytesRead, 0));
+
+            if (bytesRead > 0) {
+                end += bytesRead;
+            }
+
+            return bytesRead;
+        } finally {
+            releaseIfEmpty();
+        }
+    }
+
+    /**
+     * The bytes the last {@link #readFrom(Connection)} took in, before they were split into lines.
+     * Valid until the next call to either method.
+     */
+    ByteBuffer lastRead() {
+        return lastReadView;
+    }
+
+    /**
+     * Takes the next complete line out of the input read so far.
+     *
+     * @return the line without its end of line, as a view of the assembler's buffer that stays
+     * valid until the next call to either method; null once no complete line is left.
+     */
+    ByteBuffer nextLine() {
+        if (buffer == null) {
+            return null;
+        }
+
+        if (afterCr && start < end) {
+            afterCr = false;
+
+            if (buffer.get(start) == TelnetCodes.NVT_LF || buffer.get(start) == TelnetCodes.NVT_NUL) {
+                start++;
+                scanned = start;
+            }
+        }
+
+        int lineEnd = scanned;
+
+        while (lineEnd < end && buffer.get(lineEnd) != TelnetCodes.NVT_LF && buffer.get(lineEnd) != TelnetCodes.NVT_CR) {
+            lineEnd++;
+        }
+
+        if (lineEnd == end) {
+            if (discarding) {
+                start = 0;
+                end = 0;
+                scanned = 0;
+            }
+
+            if (end - start < maxLineLength) {
+                scanned = end;
+                releaseIfEmpty();
+                return null;
+            }
+
+            // A full buffer without an end of line, hand out what fits and drop the rest of it
+            truncated = true;
+            discarding = true;
+            return takeLine(end, end);
+        }
+
+        afterCr = buffer.get(lineEnd) == TelnetCodes.NVT_CR;
+
+        if (discarding) {
+            // The end of a line that was already handed out cut short
+            discarding = false;
+            start = lineEnd + 1;
+            scanned = start;
+            return nextLine();
+        }
+
+        truncated = false;
+        return takeLine(lineEnd, lineEnd + 1);
+    }
+
+    // Whether the line last handed out was cut short at the maximum length
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    private ByteBuffer takeLine(int lineEnd, int next) {
+        lineView.clear().position(start).limit(lineEnd);
+        start = next;
+        scanned = next;
+
+        if (start == end) {
+            start = 0;
+            end = 0;
+            scanned = 0;
+        }
+
+        return lineView;
+    }
+
+    private void lease() {
+        buffer = LINE_BUFFERS.acquire(maxLineLength);
+
+        if (buffer != viewedBuffer) {
+            viewedBuffer = buffer;
+            readView = buffer.duplicate();
+            lineView = buffer.duplicate();
+            lastReadView = buffer.duplicate();
+        }
+    }
+
+    private void releaseIfEmpty() {
+        if (buffer != null && start == end) {
+            LINE_BUFFERS.release(buffer);
+            buffer = null;
+            start = 0;
+            end = 0;
+            scanned = 0;
+        }
+    }
+}
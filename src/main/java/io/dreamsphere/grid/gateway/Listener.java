@@ -9,7 +9,13 @@ package io.dreamsphere.grid.gateway;
 import java.io.IOException;
 
 interface Listener {
-    void open(int port) throws IOException;
+    /**
+     * @param backlog connections the kernel may hold on to until they are accepted, beyond which
+     *                it drops new ones and leaves the clients to try again a second later.
+     */
+    void open(int port, int backlog) throws IOException;
+    int getLocalPort();
     void close() throws IOException;
+    boolean isClosed();
     Connection getNextConnection() throws IOException;
 }
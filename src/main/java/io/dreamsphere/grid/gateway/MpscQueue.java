@@ -0,0 +1,91 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * An unbounded lock-free queue for many producers and a single consumer, after Dmitry Vyukov's
+ * intrusive MPSC node queue. Offering takes one atomic swap and never waits on another thread;
+ * polling takes no atomic operation at all.
+ *
+ * Only one thread may poll at a time, callers have to see to that. A producer that has swapped
+ * itself in but not yet linked its node hides everything behind it for that moment, so
+ * {@link #poll()} can come back empty while an offer is still under way.
+ */
+final class MpscQueue<E> {
+    private static final VarHandle TAIL;
+    private static final VarHandle NEXT;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TAIL = lookup.findVarHandle(MpscQueue.class, "tail", Node.class);
+            NEXT = lookup.findVarHandle(Node.class, "next", Node.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // The last node offered, swapped in by producers
+    private volatile Node<E> tail;
+    // The node before the first one to poll, only touched by the consumer
+    private Node<E> head;
+
+    MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = stub;
+    }
+
+    /**
+     * Adds the element at the end of the queue. Safe to call from any thread.
+     */
+    @SuppressWarnings("unchecked")
+    void offer(E element) {
+        Node<E> node = new Node<>(element);
+        Node<E> previous = (Node<E>) TAIL.getAndSet(this, node);
+        NEXT.setRelease(previous, node);
+    }
+
+    /**
+     * Tells whether anything has been offered that hasn't been polled yet, including an offer
+     * that is still under way. Only for the consumer.
+     */
+    boolean isEmpty() {
+        return tail == head;
+    }
+
+    /**
+     * Takes the first element off the queue.
+     *
+     * @return null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        Node<E> next = (Node<E>) NEXT.getAcquire(head);
+
+        if (next == null) {
+            return null;
+        }
+
+        E element = next.element;
+        next.element = null;
+        head = next;
+        return element;
+    }
+
+    private static final class Node<E> {
+        private E element;
+        private volatile Node<E> next;
+
+        private Node(E element) {
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A non-blocking connection whose channel is owned by an {@link EventLoop}. Reads never block:
+ * they return 0 when nothing is pending, and callers are expected to be driven by the
+ * {@link ReadHandler} registered through {@link #onReadable(ReadHandler)}. Sends are queued until
+ * {@link #flush()}; whatever the socket cannot take immediately is finished by the event loop when
+ * the channel becomes writable.
+ */
+class NioConnection implements Connection, SelectionHandler {
+    // What a sender has to do about the queue once it has let go of the lock
+    private static final int QUEUE_OK = 0;
+    private static final int QUEUE_FULL = 1;
+    private static final int QUEUE_STALLED = 2;
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final OutboundQueue outboundQueue;
+    private final GatewayMetrics metrics;
+    private final ConnectionActivity activity;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Operation counts for sampling latencies, guarded by readLock and writeLock respectively
+    private int reads;
+    private int flushes;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private SelectionKey key;
+    private int interestOps = 0;
+    private volatile ReadHandler readHandler;
+    private volatile Runnable drainedHandler;
+
+    NioConnection(SocketChannel channel, EventLoop eventLoop) throws IOException {
+        this(channel, eventLoop, GatewayMetrics.disabled());
+    }
+
+    NioConnection(SocketChannel channel, EventLoop eventLoop, GatewayMetrics metrics) throws IOException {
+        this(channel, eventLoop, metrics, ConnectionActivity.untracked(), OutboundLimit.unbounded());
+    }
+
+    NioConnection(SocketChannel channel, EventLoop eventLoop, GatewayMetrics metrics, ConnectionActivity activity,
+                  OutboundLimit outboundLimit) throws IOException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.metrics = metrics;
+        this.activity = activity;
+        this.outboundQueue = new OutboundQueue(outboundLimit, metrics);
+        channel.configureBlocking(false);
+        metrics.sessionOpened();
+        eventLoop.execute(this::register);
+    }
+
+    /**
+     * Installs the handler that is called on the event loop thread whenever the channel has input
+     * (or has reached the end of the stream). The handler is expected to call {@link #read(byte[])}
+     * until it returns 0 or -1.
+     */
+    void onReadable(ReadHandler handler) {
+        this.readHandler = handler;
+        updateInterest(SelectionKey.OP_READ, true);
+    }
+
+    /**
+     * Runs the task on the connection's event loop thread, after whatever it is doing now.
+     */
+    void execute(Runnable task) {
+        eventLoop.execute(task);
+    }
+
+    @Override
+    public void onIdle(Runnable handler) {
+        activity.setIdleHandler(handler);
+    }
+
+    @Override
+    public void onOutputDrained(Runnable handler) {
+        drainedHandler = handler;
+    }
+
+    @Override
+    public void send(byte[] message) throws IOException {
+        send(message, message.length);
+    }
+
+    @Override
+    public void send(byte[] message, int length) throws IOException {
+        send(ByteBuffer.wrap(message, 0, length));
+    }
+
+    @Override
+    public void send(ByteBuffer message) throws IOException {
+        int queueState;
+        writeLock.lock();
+
+        try {
+            verifyChannelOpen();
+            metrics.recordSend(message.remaining());
+            outboundQueue.add(message);
+            queueState = checkQueue();
+        } finally {
+            writeLock.unlock();
+        }
+
+        handleQueueState(queueState);
+    }
+
+    @Override
+    public void send(ByteBuffer[] messages) throws IOException {
+        int queueState;
+        writeLock.lock();
+
+        try {
+            verifyChannelOpen();
+
+            for (ByteBuffer message : messages) {
+                metrics.recordSend(message.remaining());
+                outboundQueue.add(message);
+            }
+            queueState = checkQueue();
+        } finally {
+            writeLock.unlock();
+        }
+
+        handleQueueState(queueState);
+    }
+
+    @Override
+    public void sendShared(ByteBuffer message) throws IOException {
+        int queueState;
+        writeLock.lock();
+
+        try {
+            verifyChannelOpen();
+            metrics.recordSend(message.remaining());
+            outboundQueue.addShared(message);
+            queueState = checkQueue();
+        } finally {
+            writeLock.unlock();
+        }
+
+        handleQueueState(queueState);
+    }
+
+    /**
+     * Writes the queue with a single gathering write. Whatever the socket cannot take immediately
+     * is left to the event loop, which finishes it when the channel becomes writable.
+     */
+    @Override
+    public void flush() throws IOException {
+        boolean flushed;
+        writeLock.lock();
+
+        try {
+            verifyChannelOpen();
+            long startNanos = metrics.startTimer(flushes++);
+            flushed = writeQueue();
+            metrics.recordFlush(startNanos);
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (flushed) {
+            outputDrained();
+        } else {
+            updateInterest(SelectionKey.OP_WRITE, true);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        return read(ByteBuffer.wrap(buffer));
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        readLock.lock();
+
+        try {
+            verifyChannelOpen();
+            long startNanos = metrics.startTimer(reads++);
+            int bytesRead = channel.read(buffer);
+            metrics.recordRead(bytesRead, startNanos);
+
+            if (bytesRead > 0) {
+                activity.readActivity();
+            }
+
+            return bytesRead;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * A non-blocking channel cannot cheaply tell how much input is waiting, so this always reports
+     * 0; readers find out by reading.
+     */
+    @Override
+    public int readAvailable() throws IOException {
+        verifyChannelOpen();
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            activity.closed();
+        }
+
+        writeLock.lock();
+
+        try {
+            outboundQueue.clear();
+
+            if (channel.isOpen()) {
+                channel.close();
+                metrics.sessionClosed();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void selected(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            try {
+                flushPendingWrites();
+            } catch (IOException e) {
+                // Let the reader observe the failure on its next read
+                close();
+            }
+        }
+
+        ReadHandler handler = readHandler;
+
+        if (handler != null && (key.isReadable() || !channel.isOpen())) {
+            handler.readReady();
+        }
+    }
+
+    private void register() {
+        try {
+            key = eventLoop.register(channel, interestOps, this);
+        } catch (ClosedChannelException e) {
+            // Closed before the event loop got to it, nothing to watch
+        }
+    }
+
+    // Called with writeLock held
+    private int checkQueue() {
+        if (outboundQueue.isStalled()) {
+            return QUEUE_STALLED;
+        }
+
+        // A sender that never flushes must not be able to grow the queue without bound
+        return outboundQueue.pendingBytes() >= OutboundQueue.FLUSH_THRESHOLD ? QUEUE_FULL : QUEUE_OK;
+    }
+
+    private void handleQueueState(int queueState) throws IOException {
+        if (queueState == QUEUE_STALLED) {
+            metrics.recordSlowConsumerDisconnect();
+            close();
+            throw new IOException("Client is not keeping up with its output");
+        }
+
+        if (queueState == QUEUE_FULL) {
+            flush();
+        }
+    }
+
+    private void flushPendingWrites() throws IOException {
+        writeLock.lock();
+
+        try {
+            if (!writeQueue()) {
+                return;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        updateInterest(SelectionKey.OP_WRITE, false);
+        outputDrained();
+    }
+
+    private void outputDrained() {
+        Runnable handler = drainedHandler;
+
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    // Called with writeLock held
+    private boolean writeQueue() throws IOException {
+        if (outboundQueue.isEmpty()) {
+            return true;
+        }
+
+        long pendingBefore = outboundQueue.pendingBytes();
+        boolean flushed = outboundQueue.writeTo(channel);
+
+        if (outboundQueue.pendingBytes() < pendingBefore) {
+            activity.writeProgress(!flushed);
+        } else {
+            // The client's receive window is full, the reaper watches for it staying that way
+            activity.writePending();
+        }
+
+        return flushed;
+    }
+
+    private void updateInterest(int op, boolean enabled) {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(() -> updateInterest(op, enabled));
+            return;
+        }
+
+        interestOps = enabled ? interestOps | op : interestOps & ~op;
+
+        if (key != null && key.isValid()) {
+            key.interestOps(interestOps);
+        }
+    }
+
+    private void verifyChannelOpen() throws IOException {
+        if (!channel.isOpen()) {
+            throw new IOException("Attempt to interact with a closed socket");
+        }
+    }
+}
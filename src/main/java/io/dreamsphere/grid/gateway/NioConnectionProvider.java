@@ -0,0 +1,48 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+class NioConnectionProvider implements ConnectionProvider {
+    private final EventLoopGroup eventLoopGroup;
+    private final boolean tcpNoDelay;
+    private final GatewayMetrics metrics;
+    private final IdleReaper idleReaper;
+    private final OutboundLimit outboundLimit;
+    private final AdmissionControl admissionControl;
+
+    @Inject
+    NioConnectionProvider(EventLoopGroup eventLoopGroup, GatewayConfig config, GatewayMetrics metrics,
+                          IdleReaper idleReaper, AdmissionControl admissionControl) {
+        this.eventLoopGroup = eventLoopGroup;
+        this.tcpNoDelay = config.isTcpNoDelay();
+        this.metrics = metrics;
+        this.idleReaper = idleReaper;
+        this.outboundLimit = OutboundLimit.from(config);
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    public Connection get(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+
+        if (channel == null) {
+            throw new IOException("Socket is not backed by a channel");
+        }
+
+        socket.setTcpNoDelay(tcpNoDelay);
+        ConnectionActivity activity = idleReaper.newActivity(admissionControl::sessionClosed);
+        NioConnection connection = new NioConnection(channel, eventLoopGroup.next(), metrics, activity, outboundLimit);
+        idleReaper.watch(connection, activity);
+        return connection;
+    }
+}
@@ -0,0 +1,108 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts connections on a {@link ServerSocketChannel}. Unlike {@link TcpListener} no lock is held
+ * while waiting in accept; the accepted channels are handed to the {@link ConnectionProvider},
+ * which is expected to put them on an event loop. Connections that admission control turns away
+ * are reset and never make it out of here, as are the ones that fail to be set up.
+ */
+class NioListener implements Listener {
+    private final ServerSocketChannel serverChannel;
+    private final ConnectionProvider connectionProvider;
+    private final GatewayMetrics metrics;
+    private final AdmissionControl admissionControl;
+
+    NioListener(ServerSocketChannel serverChannel, ConnectionProvider connectionProvider) {
+        this(serverChannel, connectionProvider, GatewayMetrics.disabled());
+    }
+
+    NioListener(ServerSocketChannel serverChannel, ConnectionProvider connectionProvider, GatewayMetrics metrics) {
+        this(serverChannel, connectionProvider, metrics, AdmissionControl.unlimited());
+    }
+
+    @Inject
+    NioListener(ServerSocketChannel serverChannel, ConnectionProvider connectionProvider, GatewayMetrics metrics,
+                AdmissionControl admissionControl) {
+        this.serverChannel = serverChannel;
+        this.connectionProvider = connectionProvider;
+        this.metrics = metrics;
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    public void open(int port, int backlog) throws IOException {
+        synchronized(serverChannel) {
+            if (serverChannel.socket().isBound()) {
+                throw new IOException("ServerSocketChannel is already bound");
+            }
+
+            serverChannel.configureBlocking(true);
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !serverChannel.isOpen();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public Connection getNextConnection() throws IOException {
+        if (!serverChannel.socket().isBound()) {
+            throw new IOException("Attempt to listen on an unbound socket");
+        }
+
+        if (!serverChannel.isOpen()) {
+            throw new IOException("Attempt to listen on a closed socket");
+        }
+
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            metrics.recordAccept();
+
+            if (admissionControl.admit(channel.socket().getInetAddress())) {
+                try {
+                    return connectionProvider.get(channel.socket());
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Failed to set up connection: " + e.getMessage());
+                    admissionControl.sessionClosed();
+                    closeFailedChannel(channel);
+                    continue;
+                }
+            }
+
+            AdmissionControl.reject(channel.socket());
+        }
+    }
+
+    private static void closeFailedChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Going anyway
+        }
+    }
+}
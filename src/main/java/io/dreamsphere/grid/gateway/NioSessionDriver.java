@@ -0,0 +1,83 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Inject;
+
+import java.io.IOException;
+
+/**
+ * Drives sessions from the event loop that owns their channel, so no thread is held by a session
+ * while it is idle.
+ */
+class NioSessionDriver implements SessionDriver {
+    private final GatewayMetrics metrics;
+    private final TelnetOptionPolicy optionPolicy;
+    private final CompressionControl compressionControl;
+    private final int maxLineLength;
+    private final SessionPipeline pipeline;
+
+    @Inject
+    NioSessionDriver(GatewayConfig config, GatewayMetrics metrics, CompressionControl compressionControl,
+                     SessionPipeline pipeline) {
+        this(metrics, config.getTelnetOptionPolicy(), compressionControl, config.getMaxLineLength(), pipeline);
+    }
+
+    NioSessionDriver(GatewayMetrics metrics, TelnetOptionPolicy optionPolicy, CompressionControl compressionControl,
+                     int maxLineLength) {
+        this(metrics, optionPolicy, compressionControl, maxLineLength, SessionPipeline.defaultPipeline());
+    }
+
+    NioSessionDriver(GatewayMetrics metrics, TelnetOptionPolicy optionPolicy, CompressionControl compressionControl,
+                     int maxLineLength, SessionPipeline pipeline) {
+        this.metrics = metrics;
+        this.optionPolicy = optionPolicy;
+        this.compressionControl = compressionControl;
+        this.maxLineLength = maxLineLength;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public void start(Connection connection) throws IOException {
+        if (!(connection instanceof NioConnection)) {
+            throw new IOException("Event loop sessions require a non-blocking connection");
+        }
+
+        NioConnection nioConnection = (NioConnection) connection;
+        TelnetConnection telnetConnection = new TelnetConnection(nioConnection, metrics, optionPolicy, compressionControl);
+        // Offloaded work hands its results back to the loop, so handlers only ever run on it
+        GatewaySession session = new GatewaySession(telnetConnection, maxLineLength, pipeline, nioConnection::execute);
+        nioConnection.onIdle(session::idle);
+
+        try {
+            session.open();
+        } catch (RuntimeException e) {
+            session.close();
+            throw new IOException("Session failed to open: " + e, e);
+        }
+
+        nioConnection.onReadable(() -> {
+            int bytesRead;
+
+            try {
+                do {
+                    bytesRead = session.process();
+                } while (bytesRead > 0);
+            } catch (IOException e) {
+                bytesRead = -1;
+            } catch (RuntimeException e) {
+                // Left to the event loop, the connection would be dropped without the session knowing
+                System.out.println("Session failed: " + e);
+                bytesRead = -1;
+            }
+
+            if (bytesRead < 0) {
+                session.close();
+            }
+        });
+    }
+}
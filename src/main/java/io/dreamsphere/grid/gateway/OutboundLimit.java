@@ -0,0 +1,63 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How much unwritten output a connection may hold, and what happens to a client that falls further
+ * behind than that.
+ */
+final class OutboundLimit {
+    private static final OutboundLimit UNBOUNDED = new OutboundLimit(GatewayConfig.SlowConsumerPolicy.DISCONNECT, 0, 0);
+
+    private final GatewayConfig.SlowConsumerPolicy policy;
+    private final long highWaterBytes;
+    private final long disconnectAfterNanos;
+
+    OutboundLimit(GatewayConfig.SlowConsumerPolicy policy, long highWaterBytes, long disconnectAfterMillis) {
+        this.policy = policy;
+        this.highWaterBytes = highWaterBytes;
+        this.disconnectAfterNanos = TimeUnit.MILLISECONDS.toNanos(disconnectAfterMillis);
+    }
+
+    static OutboundLimit unbounded() {
+        return UNBOUNDED;
+    }
+
+    static OutboundLimit from(GatewayConfig config) {
+        return new OutboundLimit(config.getSlowConsumerPolicy(), config.getOutboundHighWaterBytes(),
+                config.getSlowConsumerMillis());
+    }
+
+    boolean isBounded() {
+        return highWaterBytes > 0;
+    }
+
+    /**
+     * Whether the queue gives up messages to stay under the mark, rather than letting the client go.
+     */
+    boolean dropsMessages() {
+        return isBounded() && policy != GatewayConfig.SlowConsumerPolicy.DISCONNECT;
+    }
+
+    boolean disconnects() {
+        return isBounded() && policy == GatewayConfig.SlowConsumerPolicy.DISCONNECT;
+    }
+
+    GatewayConfig.SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    long getDisconnectAfterNanos() {
+        return disconnectAfterNanos;
+    }
+}
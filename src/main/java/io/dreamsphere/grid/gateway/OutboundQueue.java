@@ -0,0 +1,425 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Bytes sent on a connection but not yet written to the socket. Messages are copied in as they are
+ * sent, small ones packed back to back into shared chunks, so that a flush turns any number of
+ * sends into a single gathering write. Every chunk is kept ready for reading: position marks the
+ * first unwritten byte and limit the end of the data. Messages shared between connections are not
+ * copied but queued as read-only chunks of their own, which are never written into or reused.
+ * A message never spans two chunks.
+ *
+ * The queue is held to its {@link OutboundLimit}: under the drop policies it keeps the lengths of
+ * its messages and gives up the oldest ones that haven't started going out to stay under the
+ * high-water mark; under the disconnect policy it only reports how long it has been over it.
+ *
+ * Not thread safe, connections guard it with their write lock. The one exception is the write of
+ * the in-flight chunks, see {@link #beginWrite()}.
+ */
+final class OutboundQueue {
+    static final int CHUNK_SIZE = 4096;
+    // Connections write out on their own once this much is pending, flushed or not
+    static final int FLUSH_THRESHOLD = 64 * 1024;
+    // Enough for a flush cycle's worth of chunks without growing the gather array
+    private static final int INITIAL_GATHER_SIZE = 16;
+    private static final int INITIAL_MESSAGE_SLOTS = 64;
+
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private final OutboundLimit limit;
+    private final GatewayMetrics metrics;
+    private ByteBuffer[] gather = new ByteBuffer[INITIAL_GATHER_SIZE];
+    private ByteBuffer spareChunk;
+    // Read-only chunks have no accessible array, streams get their bytes through this
+    private byte[] transferBuffer;
+    private long pendingBytes;
+    // The chunks at the head that a blocking write is working on, untouchable until it finishes
+    private int inFlightChunks;
+    private long inFlightBytes;
+    private int inFlightMessages;
+    // Ring of the queued messages' lengths, oldest first; only kept when messages can be dropped
+    private int[] messageLengths;
+    private int firstMessage;
+    private int messageCount;
+    // How much of the oldest message a partial channel write has already sent
+    private int firstMessageWritten;
+    private boolean overHighWater;
+    private long overHighWaterSince;
+
+    OutboundQueue() {
+        this(OutboundLimit.unbounded(), GatewayMetrics.disabled());
+    }
+
+    OutboundQueue(OutboundLimit limit, GatewayMetrics metrics) {
+        this.limit = limit;
+        this.metrics = metrics;
+        this.messageLengths = limit.dropsMessages() ? new int[INITIAL_MESSAGE_SLOTS] : null;
+    }
+
+    boolean isEmpty() {
+        return pendingBytes == 0;
+    }
+
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Copies the remaining bytes of the message into the queue and advances its position to the
+     * limit.
+     */
+    void add(ByteBuffer message) {
+        int length = message.remaining();
+
+        if (length == 0) {
+            return;
+        }
+
+        makeRoom(length);
+        ByteBuffer tail = chunks.size() > inFlightChunks ? chunks.peekLast() : null;
+
+        if (tail == null || tail.isReadOnly() || tail.capacity() - tail.limit() < length) {
+            tail = allocateChunk(length);
+            chunks.add(tail);
+        }
+
+        int end = tail.limit();
+        tail.limit(end + length);
+        tail.put(end, message, message.position(), length);
+        message.position(message.limit());
+        queued(length);
+    }
+
+    /**
+     * Queues the remaining bytes of a shared buffer without copying them, leaving its position
+     * alone. The bytes must stay unchanged until they have been written.
+     */
+    void addShared(ByteBuffer message) {
+        int length = message.remaining();
+
+        if (length == 0) {
+            return;
+        }
+
+        makeRoom(length);
+        // A view of our own to track how much of it has been written
+        chunks.add(message.asReadOnlyBuffer());
+        queued(length);
+    }
+
+    /**
+     * Writes as much of the queue as the channel takes in one gathering write.
+     *
+     * @return true if everything was written.
+     */
+    boolean writeTo(GatheringByteChannel channel) throws IOException {
+        if (isEmpty()) {
+            return true;
+        }
+
+        int count = fillGather();
+        long bytesWritten = channel.write(gather, 0, count);
+        // Don't hang on to chunks that are about to be released
+        Arrays.fill(gather, 0, count, null);
+        written(bytesWritten);
+        return isEmpty();
+    }
+
+    /**
+     * Writes the whole queue to a blocking stream, see {@link #beginWrite()}.
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        int count = beginWrite();
+        writeInFlight(outputStream, count);
+        finishWrite(count);
+    }
+
+    /**
+     * Hands everything queued so far to a blocking write. The chunks stay in the queue, but sends
+     * no longer pack into them and the overflow policy leaves them alone, so the writer can call
+     * {@link #writeInFlight(OutputStream, int)} without holding the lock while others keep
+     * sending. Only one write may be in flight at a time.
+     *
+     * @return the number of chunks in flight, to pass on to the other two calls.
+     */
+    int beginWrite() {
+        if (isEmpty()) {
+            return 0;
+        }
+
+        inFlightChunks = fillGather();
+        inFlightBytes = pendingBytes;
+        inFlightMessages = messageCount;
+        return inFlightChunks;
+    }
+
+    /**
+     * Writes the in-flight chunks to the stream, one write per chunk. Streams have no gathering
+     * write, but since small messages share chunks this still takes one write per chunk rather than
+     * one per message. Leaves the queue itself alone, so it may run without the lock.
+     */
+    void writeInFlight(OutputStream outputStream, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            ByteBuffer chunk = gather[i];
+
+            if (chunk.hasArray()) {
+                outputStream.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            } else {
+                writeThroughTransferBuffer(chunk, outputStream);
+            }
+        }
+
+        outputStream.flush();
+    }
+
+    /**
+     * Takes the in-flight chunks out of the queue once they have been written.
+     */
+    void finishWrite(int count) {
+        for (int i = 0; i < count; i++) {
+            gather[i].position(gather[i].limit());
+            gather[i] = null;
+        }
+
+        // Cleared while the write was going on
+        if (inFlightChunks == 0) {
+            return;
+        }
+
+        long bytesWritten = inFlightBytes;
+        inFlightChunks = 0;
+        inFlightBytes = 0;
+        inFlightMessages = 0;
+        written(bytesWritten);
+    }
+
+    /**
+     * Tells whether the queue has been over the high-water mark for longer than the limit allows.
+     * Only ever true under the disconnect policy; the clock is only read while over the mark.
+     */
+    boolean isStalled() {
+        if (!limit.disconnects() || pendingBytes <= limit.getHighWaterBytes()) {
+            overHighWater = false;
+            return false;
+        }
+
+        long now = System.nanoTime();
+
+        if (!overHighWater) {
+            overHighWater = true;
+            overHighWaterSince = now;
+            return false;
+        }
+
+        return now - overHighWaterSince >= limit.getDisconnectAfterNanos();
+    }
+
+    void clear() {
+        metrics.recordQueued(-pendingBytes);
+        chunks.clear();
+        pendingBytes = 0;
+        inFlightChunks = 0;
+        inFlightBytes = 0;
+        inFlightMessages = 0;
+        firstMessage = 0;
+        messageCount = 0;
+        firstMessageWritten = 0;
+        overHighWater = false;
+    }
+
+    private int fillGather() {
+        int count = chunks.size();
+
+        if (gather.length < count) {
+            gather = new ByteBuffer[Math.max(count, gather.length * 2)];
+        }
+
+        chunks.toArray(gather);
+        return count;
+    }
+
+    private void queued(int length) {
+        pendingBytes += length;
+        metrics.recordQueued(length);
+
+        if (messageLengths != null) {
+            addMessageLength(length);
+        }
+    }
+
+    private void written(long bytesWritten) {
+        pendingBytes -= bytesWritten;
+        metrics.recordQueued(-bytesWritten);
+        releaseWrittenChunks();
+
+        if (messageLengths != null) {
+            long remaining = firstMessageWritten + bytesWritten;
+
+            while (messageCount > 0 && remaining >= messageLength(0)) {
+                remaining -= messageLength(0);
+                removeMessageLength(0);
+            }
+
+            firstMessageWritten = (int) remaining;
+        }
+
+        if (pendingBytes <= limit.getHighWaterBytes()) {
+            overHighWater = false;
+        }
+    }
+
+    private void makeRoom(int length) {
+        if (messageLengths == null || queuedBytes() + length <= limit.getHighWaterBytes()) {
+            return;
+        }
+
+        int dropped = 0;
+
+        if (limit.getPolicy() == GatewayConfig.SlowConsumerPolicy.COALESCE) {
+            // Everything that hasn't started going out makes way for the newest message
+            while (dropOldest()) {
+                dropped++;
+            }
+        } else {
+            while (queuedBytes() + length > limit.getHighWaterBytes() && dropOldest()) {
+                dropped++;
+            }
+        }
+
+        if (dropped > 0) {
+            metrics.recordDropped(dropped);
+        }
+    }
+
+    // Bytes that the overflow policy has a say over
+    private long queuedBytes() {
+        return pendingBytes - inFlightBytes;
+    }
+
+    /**
+     * Drops the oldest message that no write has touched yet.
+     *
+     * @return false if there is no such message.
+     */
+    private boolean dropOldest() {
+        int index = Math.max(inFlightMessages, firstMessageWritten > 0 ? 1 : 0);
+
+        if (index >= messageCount) {
+            return false;
+        }
+
+        int length = messageLength(index);
+        // Unwritten bytes in front of the message outside of the in-flight chunks, which can only
+        // be the rest of a partly written first message
+        int skip = firstMessageWritten > 0 ? messageLength(0) - firstMessageWritten : 0;
+        Iterator<ByteBuffer> iterator = chunks.iterator();
+
+        for (int i = 0; i < inFlightChunks; i++) {
+            iterator.next();
+        }
+
+        ByteBuffer chunk = iterator.next();
+
+        while (skip >= chunk.remaining()) {
+            skip -= chunk.remaining();
+            chunk = iterator.next();
+        }
+
+        if (skip == 0) {
+            chunk.position(chunk.position() + length);
+        } else {
+            // In the middle of a packed chunk, close the gap behind the partly written message
+            int start = chunk.arrayOffset() + chunk.position() + skip;
+            int tail = chunk.limit() - chunk.position() - skip - length;
+            System.arraycopy(chunk.array(), start + length, chunk.array(), start, tail);
+            chunk.limit(chunk.limit() - length);
+        }
+
+        removeMessageLength(index);
+        pendingBytes -= length;
+        metrics.recordQueued(-length);
+        return true;
+    }
+
+    private int messageLength(int index) {
+        return messageLengths[(firstMessage + index) & (messageLengths.length - 1)];
+    }
+
+    private void addMessageLength(int length) {
+        if (messageCount == messageLengths.length) {
+            int[] grown = new int[messageLengths.length * 2];
+
+            for (int i = 0; i < messageCount; i++) {
+                grown[i] = messageLength(i);
+            }
+
+            messageLengths = grown;
+            firstMessage = 0;
+        }
+
+        messageLengths[(firstMessage + messageCount) & (messageLengths.length - 1)] = length;
+        messageCount++;
+    }
+
+    private void removeMessageLength(int index) {
+        int mask = messageLengths.length - 1;
+
+        // Shift the older ones up over it, the index is near the front
+        for (int i = index; i > 0; i--) {
+            messageLengths[(firstMessage + i) & mask] = messageLengths[(firstMessage + i - 1) & mask];
+        }
+
+        firstMessage = (firstMessage + 1) & mask;
+        messageCount--;
+    }
+
+    private void writeThroughTransferBuffer(ByteBuffer chunk, OutputStream outputStream) throws IOException {
+        if (transferBuffer == null) {
+            transferBuffer = new byte[CHUNK_SIZE];
+        }
+
+        for (int index = chunk.position(); index < chunk.limit(); ) {
+            int length = Math.min(chunk.limit() - index, transferBuffer.length);
+            chunk.get(index, transferBuffer, 0, length);
+            outputStream.write(transferBuffer, 0, length);
+            index += length;
+        }
+    }
+
+    private ByteBuffer allocateChunk(int length) {
+        if (length <= CHUNK_SIZE && spareChunk != null) {
+            ByteBuffer chunk = spareChunk;
+            spareChunk = null;
+            return chunk;
+        }
+
+        return ByteBuffer.allocate(Math.max(length, CHUNK_SIZE)).limit(0);
+    }
+
+    private void releaseWrittenChunks() {
+        ByteBuffer chunk;
+
+        while ((chunk = chunks.peek()) != null && !chunk.hasRemaining()) {
+            chunks.poll();
+
+            // One standard chunk is kept back, it covers the common case of a connection that
+            // drains everything on every flush
+            if (chunk.capacity() == CHUNK_SIZE && !chunk.isReadOnly()) {
+                chunk.position(0).limit(0);
+                spareChunk = chunk;
+            }
+        }
+    }
+}
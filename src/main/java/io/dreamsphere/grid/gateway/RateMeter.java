@@ -0,0 +1,64 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Events per second as a one minute exponentially weighted moving average, the same measure as
+ * the Unix load average. Marking is a striped increment; the average is brought up to date lazily
+ * in five second ticks by whichever thread happens to mark or read it after a tick is due.
+ */
+final class RateMeter {
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick;
+    private volatile double ratePerNano;
+    private volatile boolean initialised;
+
+    RateMeter() {
+        lastTick = new AtomicLong(System.nanoTime());
+    }
+
+    void mark() {
+        tickIfDue();
+        uncounted.increment();
+    }
+
+    double perSecond() {
+        tickIfDue();
+        return ratePerNano * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private void tickIfDue() {
+        long oldTick = lastTick.get();
+        long ticks = (System.nanoTime() - oldTick) / TICK_NANOS;
+
+        // Only the thread that moves lastTick on gets to apply the ticks
+        if (ticks > 0 && lastTick.compareAndSet(oldTick, oldTick + ticks * TICK_NANOS)) {
+            for (long i = 0; i < ticks; i++) {
+                tick();
+            }
+        }
+    }
+
+    private void tick() {
+        double instantRate = (double) uncounted.sumThenReset() / TICK_NANOS;
+
+        if (initialised) {
+            double rate = ratePerNano;
+            ratePerNano = rate + ALPHA * (instantRate - rate);
+        } else {
+            ratePerNano = instantRate;
+            initialised = true;
+        }
+    }
+}
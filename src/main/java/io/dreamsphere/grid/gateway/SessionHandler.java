@@ -0,0 +1,54 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Session logic, one stage of a {@link SessionPipeline}. Callbacks are made by whatever drives the
+ * session, the event loop that owns its channel or the session's own thread, and never overlap for
+ * one session. They must not block: an event loop serves thousands of sessions, so slow work goes
+ * through {@link GatewaySession#offload}. Whatever a callback sends is flushed once it returns.
+ * <p>
+ * One handler serves every session, state of a session's own belongs in its attachment. A callback
+ * that throws fails the session, which is then closed.
+ */
+interface SessionHandler {
+    // The session is open and the option offers are on their way
+    default void connected(GatewaySession session) throws IOException {
+    }
+
+    /**
+     * A line of input, without its end of line.
+     *
+     * @param line a view that is only valid during the call; its position is put back for the next handler.
+     * @param truncated whether the line went over the maximum length and was cut short.
+     * @return true to keep the line from the handlers after this one.
+     */
+    default boolean lineReceived(GatewaySession session, ByteBuffer line, boolean truncated) throws IOException {
+        return false;
+    }
+
+    default void windowSizeChanged(GatewaySession session, int columns, int rows) throws IOException {
+    }
+
+    default void terminalTypeReceived(GatewaySession session, String terminalType) throws IOException {
+    }
+
+    default void environmentReceived(GatewaySession session, Map<String, String> variables) throws IOException {
+    }
+
+    // Nothing came or went for the idle timeout, the session is closed once every handler has seen this
+    default void idle(GatewaySession session) throws IOException {
+    }
+
+    // The connection is already closed, nothing more can be sent
+    default void closed(GatewaySession session) {
+    }
+}
@@ -0,0 +1,99 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The handlers every session passes its events through, in order, along with the executor that
+ * blocking work is offloaded to. One pipeline serves all sessions.
+ */
+final class SessionPipeline {
+    // Offloaded work mostly waits on something, which is what virtual threads are for
+    private static final Executor OFFLOAD_EXECUTOR =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("offload-", 0).factory());
+    private static final SessionPipeline DEFAULT = new SessionPipeline(OFFLOAD_EXECUTOR, new DefaultSessionHandler());
+
+    private final Executor offloadExecutor;
+    private final SessionHandler[] handlers;
+
+    SessionPipeline(Executor offloadExecutor, SessionHandler... handlers) {
+        this.offloadExecutor = offloadExecutor;
+        this.handlers = handlers.clone();
+    }
+
+    SessionPipeline(SessionHandler... handlers) {
+        this(OFFLOAD_EXECUTOR, handlers);
+    }
+
+    // What the gateway does out of the box, see DefaultSessionHandler
+    static SessionPipeline defaultPipeline() {
+        return DEFAULT;
+    }
+
+    Executor offloadExecutor() {
+        return offloadExecutor;
+    }
+
+    void connected(GatewaySession session) throws IOException {
+        for (SessionHandler handler : handlers) {
+            handler.connected(session);
+        }
+    }
+
+    void lineReceived(GatewaySession session, ByteBuffer line, boolean truncated) throws IOException {
+        int position = line.position();
+        int limit = line.limit();
+
+        for (SessionHandler handler : handlers) {
+            if (handler.lineReceived(session, line, truncated)) {
+                return;
+            }
+
+            line.limit(limit).position(position);
+        }
+    }
+
+    void windowSizeChanged(GatewaySession session, int columns, int rows) throws IOException {
+        for (SessionHandler handler : handlers) {
+            handler.windowSizeChanged(session, columns, rows);
+        }
+    }
+
+    void terminalTypeReceived(GatewaySession session, String terminalType) throws IOException {
+        for (SessionHandler handler : handlers) {
+            handler.terminalTypeReceived(session, terminalType);
+        }
+    }
+
+    void environmentReceived(GatewaySession session, Map<String, String> variables) throws IOException {
+        for (SessionHandler handler : handlers) {
+            handler.environmentReceived(session, variables);
+        }
+    }
+
+    void idle(GatewaySession session) throws IOException {
+        for (SessionHandler handler : handlers) {
+            handler.idle(session);
+        }
+    }
+
+    // Every handler hears about the close, even if one before it fails
+    void closed(GatewaySession session) {
+        for (SessionHandler handler : handlers) {
+            try {
+                handler.closed(session);
+            } catch (RuntimeException e) {
+                System.out.println("Close handler failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A message encoded for the wire once and then queued on any number of connections without being
+ * copied again. The bytes sit in a read-only buffer that every connection reads through a view of
+ * its own, so the message stays intact for as long as any of them still has it queued.
+ */
+final class SharedMessage {
+    private final ByteBuffer data;
+
+    private SharedMessage(byte[] encoded) {
+        this.data = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes the message as Telnet data, doubling any IAC in it.
+     */
+    static SharedMessage telnet(byte[] message) {
+        return telnet(message, message.length);
+    }
+
+    static SharedMessage telnet(byte[] message, int length) {
+        int iac = TelnetEscaping.indexOfIac(message, 0, length);
+        // Either way the caller's array is copied exactly once, it is free to reuse it
+        return new SharedMessage(iac == length
+                ? Arrays.copyOf(message, length)
+                : TelnetEscaping.escape(message, 0, length, iac));
+    }
+
+    int length() {
+        return data.remaining();
+    }
+
+    /**
+     * The encoded bytes. Connections queue views of the buffer, its position and limit must be left
+     * alone.
+     */
+    ByteBuffer data() {
+        return data;
+    }
+}
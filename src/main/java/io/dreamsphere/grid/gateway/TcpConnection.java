@@ -10,16 +10,87 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A connection over a blocking socket. Sends are queued until {@link #flush()}, which writes them
+ * on the calling thread. Only one thread writes at a time: a flush that finds another thread's
+ * write under way returns at once and leaves its data to that thread, so senders never wait behind
+ * a client that is slow to take its output.
+ *
+ * Senders don't wait for each other either. The outbound queue is only ever held for a short
+ * stretch of copying or bookkeeping, never across a write, and taken without blocking: a sender
+ * that finds it free packs its message straight in, one that finds it taken copies the message
+ * and hands it over through a lock-free queue, for whoever next holds the outbound queue to move
+ * across.
+ */
 class TcpConnection implements Connection {
+    private static final int MAX_TRANSFER_BUFFER_SIZE = 8192;
+    private static final int SPINS_BEFORE_YIELDING = 100;
+    private static final int MAX_BYTES_AHEAD_OF_WRITER = 2 * OutboundQueue.FLUSH_THRESHOLD;
+    // What a sender has to do about the queue once it has let go of it
+    private static final int QUEUE_OK = 0;
+    private static final int QUEUE_FULL = 1;
+    private static final int QUEUE_STALLED = 2;
+    // Writes that callers hand off rather than wait for, each parked on its client for as long as it takes
+    private static final Executor BACKGROUND_WRITERS =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("flush-", 0).factory());
+
     private final Socket socket;
     private final OutputStream outputStream;
     private final InputStream inputStream;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final MpscQueue<ByteBuffer> submitted = new MpscQueue<>();
+    private final OutboundQueue outboundQueue;
+    private final OutboundLimit outboundLimit;
+    private final GatewayMetrics metrics;
+    private final ConnectionActivity activity;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Bytes handed over through the submitted queue that haven't been moved across yet
+    private final AtomicLong submittedBytes = new AtomicLong();
+    // Held by whichever thread is touching the outbound queue
+    private final AtomicBoolean queueOwned = new AtomicBoolean();
+    // Held by the one thread that writes the queue to the stream
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // Set from when a background write is handed off until it starts, so a burst of broadcasts hands off one
+    private final AtomicBoolean backgroundWriteScheduled = new AtomicBoolean();
+    private final Executor backgroundWriters;
+    // Operation counts for sampling latencies, guarded by readLock and the writing flag respectively
+    private int reads;
+    private int flushes;
+    // Streams only deal in arrays, direct buffers are read through this
+    private byte[] readTransferBuffer = new byte[0];
+    private volatile Runnable drainedHandler;
 
     TcpConnection(Socket socket) throws IOException {
+        this(socket, GatewayMetrics.disabled());
+    }
+
+    TcpConnection(Socket socket, GatewayMetrics metrics) throws IOException {
+        this(socket, metrics, ConnectionActivity.untracked(), OutboundLimit.unbounded());
+    }
+
+    TcpConnection(Socket socket, GatewayMetrics metrics, ConnectionActivity activity, OutboundLimit outboundLimit)
+            throws IOException {
+        this(socket, metrics, activity, outboundLimit, BACKGROUND_WRITERS);
+    }
+
+    TcpConnection(Socket socket, GatewayMetrics metrics, ConnectionActivity activity, OutboundLimit outboundLimit,
+            Executor backgroundWriters) throws IOException {
         this.socket = socket;
         this.outputStream = socket.getOutputStream();
         this.inputStream = socket.getInputStream();
+        this.metrics = metrics;
+        this.activity = activity;
+        this.outboundLimit = outboundLimit;
+        this.backgroundWriters = backgroundWriters;
+        this.outboundQueue = new OutboundQueue(outboundLimit, metrics);
+        metrics.sessionOpened();
     }
 
     @Override
@@ -29,39 +100,467 @@ class TcpConnection implements Connection {
 
     @Override
     public void send(byte[] message, int length) throws IOException {
-        synchronized(outputStream) {
-            verifySocketOpen();
-            outputStream.write(message, 0, length);
+        send(ByteBuffer.wrap(message, 0, length));
+    }
+
+    @Override
+    public void send(ByteBuffer message) throws IOException {
+        verifySocketOpen();
+        int length = message.remaining();
+        metrics.recordSend(length);
+
+        int queueState;
+
+        if (takeQueueIfFree()) {
+            try {
+                outboundQueue.add(message);
+                queueState = checkQueue();
+            } finally {
+                queueOwned.set(false);
+            }
+        } else {
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(message).flip();
+            queueState = submit(copy);
+        }
+
+        handleQueueState(queueState);
+    }
+
+    /**
+     * Sends the messages as one, so another sender's message can't land in between them.
+     */
+    @Override
+    public void send(ByteBuffer[] messages) throws IOException {
+        verifySocketOpen();
+        int length = 0;
+
+        for (ByteBuffer message : messages) {
+            metrics.recordSend(message.remaining());
+            length += message.remaining();
+        }
+
+        int queueState;
+
+        if (takeQueueIfFree()) {
+            try {
+                for (ByteBuffer message : messages) {
+                    outboundQueue.add(message);
+                }
+
+                queueState = checkQueue();
+            } finally {
+                queueOwned.set(false);
+            }
+        } else {
+            ByteBuffer copy = ByteBuffer.allocate(length);
+
+            for (ByteBuffer message : messages) {
+                copy.put(message);
+            }
+
+            copy.flip();
+            queueState = submit(copy);
+        }
+
+        handleQueueState(queueState);
+    }
+
+    @Override
+    public void sendShared(ByteBuffer message) throws IOException {
+        verifySocketOpen();
+        metrics.recordSend(message.remaining());
+
+        int queueState;
+
+        if (takeQueueIfFree()) {
+            try {
+                outboundQueue.addShared(message);
+                queueState = checkQueue();
+            } finally {
+                queueOwned.set(false);
+            }
+        } else {
+            // Read-only is how a submitted shared message is told apart from a private copy
+            queueState = submit(message.isReadOnly() ? message : message.asReadOnlyBuffer());
+        }
+
+        handleQueueState(queueState);
+    }
+
+    /**
+     * Hands the write to a background thread, provided there is anything to write and no other
+     * thread is already at it or about to be, in which case that thread takes care of this one's
+     * data as well.
+     */
+    @Override
+    public void flushWithoutBlocking() throws IOException {
+        verifySocketOpen();
+
+        if (!writing.get() && !backgroundWriteScheduled.get() && hasPendingWrites()
+                && backgroundWriteScheduled.compareAndSet(false, true)) {
+            backgroundWriters.execute(this::flushInBackground);
+        }
+    }
+
+    /**
+     * Writes the queue, unless another thread is already at it, in which case that thread takes
+     * care of this one's data as well.
+     */
+    @Override
+    public void flush() throws IOException {
+        verifySocketOpen();
+
+        while (writing.compareAndSet(false, true)) {
+            try {
+                drainQueue();
+            } finally {
+                writing.set(false);
+            }
+
+            if (closed.get()) {
+                break;
+            }
+
+            // A sender may have queued after the last look but found the writer still busy
+            if (!hasPendingWrites()) {
+                outputDrained();
+                break;
+            }
         }
     }
 
     @Override
     public int read(byte[] buffer) throws IOException {
-        synchronized(inputStream) {
+        readLock.lock();
+
+        try {
+            verifySocketOpen();
+            long startNanos = startReadTimer();
+            int bytesRead = inputStream.read(buffer);
+            metrics.recordRead(bytesRead, startNanos);
+            recordReadActivity(bytesRead);
+            return bytesRead;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        readLock.lock();
+
+        try {
             verifySocketOpen();
-            return inputStream.read(buffer);
+            long startNanos = startReadTimer();
+            int bytesRead = readFromStream(buffer);
+            metrics.recordRead(bytesRead, startNanos);
+            recordReadActivity(bytesRead);
+            return bytesRead;
+        } finally {
+            readLock.unlock();
         }
     }
 
     @Override
     public int readAvailable() throws IOException {
-        synchronized(inputStream) {
+        readLock.lock();
+
+        try {
             verifySocketOpen();
             return inputStream.available();
+        } finally {
+            readLock.unlock();
         }
     }
 
+    @Override
+    public void onIdle(Runnable handler) {
+        activity.setIdleHandler(handler);
+    }
+
+    @Override
+    public void onOutputDrained(Runnable handler) {
+        drainedHandler = handler;
+    }
+
+    /**
+     * Closes the socket straight away, without waiting for a reader or writer blocked on it; they
+     * fail out of their call instead. This is how the idle reaper gets rid of a connection whose
+     * session thread is stuck in a read.
+     */
     @Override
     public void close() throws IOException {
-        synchronized(socket) {
-            synchronized(inputStream) {
-                synchronized (outputStream) {
-                    if (!socket.isClosed()) {
-                        socket.close();
-                    }
+        if (closed.compareAndSet(false, true)) {
+            activity.closed();
+
+            if (!socket.isClosed()) {
+                try {
+                    socket.close();
+                } finally {
+                    metrics.sessionClosed();
                 }
             }
         }
+
+        acquireQueue();
+
+        try {
+            outboundQueue.clear();
+
+            while (submitted.poll() != null) {
+                // Nobody is going to write these now
+            }
+
+            submittedBytes.set(0);
+        } finally {
+            queueOwned.set(false);
+        }
+    }
+
+    // A read that has to wait would time the client's typing rather than the gateway, so only the
+    // sampled reads that find input already waiting are timed
+    private long startReadTimer() throws IOException {
+        long startNanos = metrics.startTimer(reads++);
+
+        if (startNanos != GatewayMetrics.NOT_TIMED && inputStream.available() == 0) {
+            return GatewayMetrics.NOT_TIMED;
+        }
+
+        return startNanos;
+    }
+
+    private int readFromStream(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            int bytesRead = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+
+            if (bytesRead > 0) {
+                buffer.position(buffer.position() + bytesRead);
+            }
+
+            return bytesRead;
+        }
+
+        int length = Math.min(buffer.remaining(), MAX_TRANSFER_BUFFER_SIZE);
+
+        // Readers refill with the same size every time, so this settles on a single array
+        if (readTransferBuffer.length != length) {
+            readTransferBuffer = new byte[length];
+        }
+
+        int bytesRead = inputStream.read(readTransferBuffer);
+
+        if (bytesRead > 0) {
+            buffer.put(readTransferBuffer, 0, bytesRead);
+        }
+
+        return bytesRead;
+    }
+
+    private int submit(ByteBuffer message) {
+        int length = message.remaining();
+
+        if (length == 0) {
+            return QUEUE_OK;
+        }
+
+        submitted.offer(message);
+        long backlog = submittedBytes.addAndGet(length);
+
+        // Past the high-water mark the policy has to see the message now rather than whenever the
+        // queue is next free, which may be a while with several senders at it
+        if (outboundLimit.isBounded() && backlog > outboundLimit.getHighWaterBytes() && isStalled()) {
+            return QUEUE_STALLED;
+        }
+
+        return backlog >= OutboundQueue.FLUSH_THRESHOLD ? QUEUE_FULL : QUEUE_OK;
+    }
+
+    // Called with the outbound queue held
+    private int checkQueue() {
+        if (outboundQueue.isStalled()) {
+            return QUEUE_STALLED;
+        }
+
+        // A sender that never flushes must not be able to grow the queue without bound
+        return outboundQueue.pendingBytes() >= OutboundQueue.FLUSH_THRESHOLD ? QUEUE_FULL : QUEUE_OK;
+    }
+
+    private void handleQueueState(int queueState) throws IOException {
+        if (queueState == QUEUE_STALLED) {
+            metrics.recordSlowConsumerDisconnect();
+            close();
+            throw new IOException("Client is not keeping up with its output");
+        }
+
+        if (queueState == QUEUE_FULL) {
+            flush();
+
+            // Senders are never held up, so several of them can outrun the one writer. One that
+            // finds it that far behind gives up its time slice rather than pile on more.
+            if (submittedBytes.get() >= MAX_BYTES_AHEAD_OF_WRITER) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Takes the outbound queue, provided nobody holds it and nothing submitted earlier is left
+     * waiting to go in ahead of the caller's message.
+     */
+    private boolean takeQueueIfFree() {
+        if (!queueOwned.compareAndSet(false, true)) {
+            return false;
+        }
+
+        if (transferSubmitted()) {
+            return true;
+        }
+
+        queueOwned.set(false);
+        return false;
+    }
+
+    /**
+     * Moves what has been submitted into the outbound queue, unless another thread holds it.
+     *
+     * @return true if the queue has been over the high-water mark for too long.
+     */
+    private boolean isStalled() {
+        if (!queueOwned.compareAndSet(false, true)) {
+            return false;
+        }
+
+        try {
+            transferSubmitted();
+            return outboundQueue.isStalled();
+        } finally {
+            queueOwned.set(false);
+        }
+    }
+
+    /**
+     * Moves submitted messages into the outbound queue, at most about a flush worth at a time, or
+     * the writer would never get round to writing while senders keep up the pace. Called with the
+     * outbound queue held.
+     *
+     * @return true if nothing submitted is left over.
+     */
+    private boolean transferSubmitted() {
+        long transferred = 0;
+        ByteBuffer message = null;
+
+        while (transferred < OutboundQueue.FLUSH_THRESHOLD && (message = submitted.poll()) != null) {
+            transferred += message.remaining();
+
+            if (message.isReadOnly()) {
+                outboundQueue.addShared(message);
+            } else {
+                outboundQueue.add(message);
+            }
+        }
+
+        if (transferred > 0) {
+            submittedBytes.addAndGet(-transferred);
+        }
+
+        return message == null;
+    }
+
+    // Called by the thread holding the writing flag
+    private void drainQueue() throws IOException {
+        long startNanos = metrics.startTimer(flushes++);
+        int chunks;
+
+        while ((chunks = beginWrite()) > 0) {
+            // The stream blocks until the client takes the data, the reaper watches for that never
+            // happening
+            activity.writePending();
+            outboundQueue.writeInFlight(outputStream, chunks);
+            finishWrite(chunks);
+            activity.writeProgress(false);
+        }
+
+        metrics.recordFlush(startNanos);
+    }
+
+    private int beginWrite() {
+        acquireQueue();
+
+        try {
+            transferSubmitted();
+            return outboundQueue.beginWrite();
+        } finally {
+            queueOwned.set(false);
+        }
+    }
+
+    private void finishWrite(int chunks) {
+        acquireQueue();
+
+        try {
+            outboundQueue.finishWrite(chunks);
+        } finally {
+            queueOwned.set(false);
+        }
+    }
+
+    private void outputDrained() {
+        Runnable handler = drainedHandler;
+
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    private boolean hasPendingWrites() {
+        acquireQueue();
+
+        try {
+            return !outboundQueue.isEmpty() || !submitted.isEmpty();
+        } finally {
+            queueOwned.set(false);
+        }
+    }
+
+    /**
+     * Waits for the outbound queue. Nobody holds it for longer than it takes to copy what has been
+     * submitted, so this spins, and yields in case the holder is waiting for a CPU.
+     */
+    private void acquireQueue() {
+        for (int spins = 0; !queueOwned.compareAndSet(false, true); spins++) {
+            if (spins < SPINS_BEFORE_YIELDING) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    // Nobody waits on a background write to hear of its failure, so it closes the connection and
+    // the session's next read finds out
+    private void flushInBackground() {
+        // Cleared first, so data queued from here on either goes out with this write or hands off another
+        backgroundWriteScheduled.set(false);
+
+        try {
+            flush();
+        } catch (IOException e) {
+            System.out.println("Background flush failed: " + e.getMessage());
+
+            try {
+                close();
+            } catch (IOException closeFailure) {
+                System.out.println("Failed to close connection: " + closeFailure.getMessage());
+            }
+        }
+    }
+
+    private void recordReadActivity(int bytesRead) {
+        if (bytesRead > 0) {
+            activity.readActivity();
+        }
     }
 
     private void verifySocketOpen() throws IOException {
@@ -6,12 +6,38 @@
 
 package io.dreamsphere.grid.gateway;
 
+import com.google.inject.Inject;
+
 import java.io.IOException;
 import java.net.Socket;
 
 class TcpConnectionProvider implements ConnectionProvider {
+    private final boolean tcpNoDelay;
+    private final GatewayMetrics metrics;
+    private final IdleReaper idleReaper;
+    private final OutboundLimit outboundLimit;
+    private final AdmissionControl admissionControl;
+
+    TcpConnectionProvider(GatewayConfig config, GatewayMetrics metrics, IdleReaper idleReaper) {
+        this(config, metrics, idleReaper, AdmissionControl.unlimited());
+    }
+
+    @Inject
+    TcpConnectionProvider(GatewayConfig config, GatewayMetrics metrics, IdleReaper idleReaper,
+                          AdmissionControl admissionControl) {
+        this.tcpNoDelay = config.isTcpNoDelay();
+        this.metrics = metrics;
+        this.idleReaper = idleReaper;
+        this.outboundLimit = OutboundLimit.from(config);
+        this.admissionControl = admissionControl;
+    }
+
     @Override
     public Connection get(Socket socket) throws IOException {
-        return new TcpConnection(socket);
+        socket.setTcpNoDelay(tcpNoDelay);
+        ConnectionActivity activity = idleReaper.newActivity(admissionControl::sessionClosed);
+        TcpConnection connection = new TcpConnection(socket, metrics, activity, outboundLimit);
+        idleReaper.watch(connection, activity);
+        return connection;
     }
 }
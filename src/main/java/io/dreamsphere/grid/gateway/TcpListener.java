@@ -16,21 +16,34 @@ import java.net.Socket;
 class TcpListener implements Listener {
     private final ServerSocket serverSocket;
     private final ConnectionProvider connectionProvider;
+    private final GatewayMetrics metrics;
+    private final AdmissionControl admissionControl;
 
-    @Inject
     TcpListener(ServerSocket serverSocket, ConnectionProvider connectionProvider) {
+        this(serverSocket, connectionProvider, GatewayMetrics.disabled());
+    }
+
+    TcpListener(ServerSocket serverSocket, ConnectionProvider connectionProvider, GatewayMetrics metrics) {
+        this(serverSocket, connectionProvider, metrics, AdmissionControl.unlimited());
+    }
+
+    @Inject
+    TcpListener(ServerSocket serverSocket, ConnectionProvider connectionProvider, GatewayMetrics metrics,
+                AdmissionControl admissionControl) {
         this.serverSocket = serverSocket;
         this.connectionProvider = connectionProvider;
+        this.metrics = metrics;
+        this.admissionControl = admissionControl;
     }
 
     @Override
-    public void open(int port) throws IOException {
+    public void open(int port, int backlog) throws IOException {
         synchronized(serverSocket) {
             if (serverSocket.isBound()) {
                 throw new IOException("ServerSocket is already bound");
             }
 
-            serverSocket.bind(new InetSocketAddress(port));
+            serverSocket.bind(new InetSocketAddress(port), backlog);
         }
     }
 
@@ -43,19 +56,56 @@ class TcpListener implements Listener {
         }
     }
 
+    @Override
+    public boolean isClosed() {
+        return serverSocket.isClosed();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Safe to call from several threads at once, they all wait on the same accept queue. No lock is
+     * held while waiting, so closing doesn't wait for the next connection to come in. Connections
+     * that admission control turns away are reset and never make it out of here, as are the ones
+     * that fail to be set up, so one broken client doesn't stop the listener.
+     */
     @Override
     public Connection getNextConnection() throws IOException {
-        synchronized(serverSocket) {
-            if (!serverSocket.isBound()) {
-                throw new IOException("Attempt to listen on an unbound socket");
-            }
+        if (!serverSocket.isBound()) {
+            throw new IOException("Attempt to listen on an unbound socket");
+        }
 
-            if (serverSocket.isClosed()) {
-                throw new IOException("Attempt to listen on a closed socket");
-            }
+        if (serverSocket.isClosed()) {
+            throw new IOException("Attempt to listen on a closed socket");
+        }
 
+        while (true) {
             Socket socket = serverSocket.accept();
-            return connectionProvider.get(socket);
+            metrics.recordAccept();
+
+            if (admissionControl.admit(socket.getInetAddress())) {
+                try {
+                    return connectionProvider.get(socket);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Failed to set up connection: " + e.getMessage());
+                    admissionControl.sessionClosed();
+                    closeFailedSocket(socket);
+                    continue;
+                }
+            }
+
+            AdmissionControl.reject(socket);
+        }
+    }
+
+    private static void closeFailedSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Going anyway
         }
     }
 }
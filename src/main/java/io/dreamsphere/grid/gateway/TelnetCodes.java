@@ -19,16 +19,19 @@ class TelnetCodes {
     final static byte NVT_NAK = 21;
 
     // Telnet options (unsupported ones commented out)
-    //final static byte OPT_SUPPRESS_GO_AHEAD = 3;
+    final static byte OPT_SUPPRESS_GO_AHEAD = 3;
     //final static byte OPT_STATUS = 5;
-    //final static byte OPT_ECHO = 1;
+    final static byte OPT_ECHO = 1;
     //final static byte OPT_TIMING_MARK = 6;
-    //final static byte OPT_TERMINAL_TYPE = 24;
-    //final static byte OPT_WINDOW_SIZE = 31;
+    final static byte OPT_TERMINAL_TYPE = 24;
+    final static byte OPT_WINDOW_SIZE = 31;
     //final static byte OPT_TERMINAL_SPEED = 32;
     //final static byte OPT_REMOTE_FLOW_CONTROL = 33;
     //final static byte OPT_LINEMODE = 34;
     final static byte OPT_ENVIRONMENT_VARIABLES = 36;
+    final static byte OPT_NEW_ENVIRONMENT = 39;
+    // MUD Client Compression Protocol v2
+    final static byte OPT_COMPRESS2 = 86;
 
     // Telnet commands
     final static byte CMD_SE = (byte) 240;
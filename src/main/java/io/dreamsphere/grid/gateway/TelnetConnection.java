@@ -7,12 +7,21 @@
 package io.dreamsphere.grid.gateway;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 class TelnetConnection implements Connection {
     private static final int DEFAULT_READ_BUFFER_SIZE = 1024;
+    private static final int NO_DATA = -1;
+    // Longer subnegotiations are cut short, the rest of their bytes are dropped
+    private static final int MAX_SUBNEGOTIATION_LENGTH = 512;
+    // IAC SB COMPRESS2 IAC SE, the last bytes before the output turns into a zlib stream
+    private static final byte[] MCCP2_START = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_COMPRESS2,
+            TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE};
+    // Arrays are only borrowed between SB and SE, so a few dozen cover a great many connections
+    private static final ByteArrayPool SUBNEGOTIATION_BUFFERS = new ByteArrayPool(64, MAX_SUBNEGOTIATION_LENGTH);
+    // Read buffers are only held while they have input left to decode, which idle connections don't
+    static final BufferPool READ_BUFFERS = new BufferPool(64 * 1024, 64 * 1024);
 
     private enum State {
         READY,
@@ -24,17 +33,69 @@ class TelnetConnection implements Connection {
     }
 
     private final Connection connection;
-    private final Map<Byte, Boolean> telnetClientOptions = new HashMap<>();
-    private final Map<Byte, Boolean> telnetServerOptions = new HashMap<>();
-    private final byte[] readBuffer;
+    private final GatewayMetrics metrics;
+    private final TelnetOptionPolicy optionPolicy;
+    // Set when the policy offers MCCP2, output then goes through it and connection is the same object
+    private final CompressingConnection compressingConnection;
+    // Option state is guarded by readLock, almost all of it changes while decoding input
+    private final TelnetOptionTable telnetOptions = new TelnetOptionTable();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final int readBufferSize;
+    // Leased from READ_BUFFERS for a refill and handed back once everything in it has been decoded
+    private ByteBuffer readBuffer;
+    private byte[] wrappedReadArray;
+    private ByteBuffer wrappedReadBuffer;
     private int readBufferPosMark = 0;
     private int readBufferPos = 0;
+    // Whether the last refill took as much as the readBuffer holds, the only case where more input
+    // is likely to be waiting already
+    private boolean readBufferFilled;
     private State state = State.READY;
     private boolean subnegotation = false;
+    private byte[] subnegotiationPayload;
+    private int subnegotiationLength;
+    private boolean subnegotiationTruncated;
+    // A client can send oversized subnegotiations as fast as it likes, so only its first makes the log
+    private boolean truncationLogged;
+    private TelnetOptionListener optionListener = TelnetOptionListener.IGNORE;
+    // Negotiation replies queued while decoding, flushed before the next blocking read
+    private boolean repliesPending = false;
+
+    TelnetConnection(Connection connection, int readBufferSize, GatewayMetrics metrics,
+                     TelnetOptionPolicy optionPolicy, CompressionControl compressionControl) {
+        this.compressingConnection = optionPolicy.allowsLocally(TelnetCodes.OPT_COMPRESS2)
+                ? new CompressingConnection(connection, compressionControl, metrics)
+                : null;
+        this.connection = compressingConnection != null ? compressingConnection : connection;
+        this.metrics = metrics;
+        this.optionPolicy = optionPolicy;
+        this.readBufferSize = readBufferSize;
+    }
+
+    TelnetConnection(Connection connection, int readBufferSize, GatewayMetrics metrics,
+                     TelnetOptionPolicy optionPolicy) {
+        this(connection, readBufferSize, metrics, optionPolicy, CompressionControl.disabled());
+    }
+
+    TelnetConnection(Connection connection, GatewayMetrics metrics, TelnetOptionPolicy optionPolicy,
+                     CompressionControl compressionControl) {
+        this(connection, DEFAULT_READ_BUFFER_SIZE, metrics, optionPolicy, compressionControl);
+    }
+
+    TelnetConnection(Connection connection, int readBufferSize, GatewayMetrics metrics) {
+        this(connection, readBufferSize, metrics, TelnetOptionPolicy.refuseAll());
+    }
+
+    TelnetConnection(Connection connection, GatewayMetrics metrics, TelnetOptionPolicy optionPolicy) {
+        this(connection, DEFAULT_READ_BUFFER_SIZE, metrics, optionPolicy);
+    }
 
     TelnetConnection(Connection connection, int readBufferSize) {
-        this.connection = connection;
-        readBuffer = new byte[readBufferSize];
+        this(connection, readBufferSize, GatewayMetrics.disabled());
+    }
+
+    TelnetConnection(Connection connection, GatewayMetrics metrics) {
+        this(connection, DEFAULT_READ_BUFFER_SIZE, metrics);
     }
 
     TelnetConnection(Connection connection) {
@@ -43,12 +104,92 @@ class TelnetConnection implements Connection {
 
     @Override
     public void send(byte[] message) throws IOException {
-        connection.send(message);
+        send(message, message.length);
     }
 
+    /**
+     * Sends the message as Telnet data, doubling any IAC in it. Messages without an IAC, which is
+     * nearly all of them, are handed to the connection as they are.
+     */
     @Override
     public void send(byte[] message, int length) throws IOException {
-        connection.send(message, length);
+        int iac = TelnetEscaping.indexOfIac(message, 0, length);
+
+        if (iac == length) {
+            connection.send(message, length);
+        } else {
+            connection.send(TelnetEscaping.escape(message, 0, length, iac));
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer message) throws IOException {
+        int iac = TelnetEscaping.indexOfIac(message, message.position(), message.limit());
+
+        if (iac == message.limit()) {
+            connection.send(message);
+        } else {
+            connection.send(TelnetEscaping.escape(message, iac));
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer[] messages) throws IOException {
+        ByteBuffer[] escapedMessages = messages;
+
+        for (int i = 0; i < messages.length; i++) {
+            ByteBuffer message = messages[i];
+            int iac = TelnetEscaping.indexOfIac(message, message.position(), message.limit());
+
+            if (iac < message.limit()) {
+                // Only copy the array once something in it has to change, the caller's stays as it is
+                if (escapedMessages == messages) {
+                    escapedMessages = messages.clone();
+                }
+
+                escapedMessages[i] = TelnetEscaping.escape(message, iac);
+            }
+        }
+
+        connection.send(escapedMessages);
+    }
+
+    /**
+     * Shared buffers get the same escaping as any other send; one with an IAC in it ends up copied,
+     * which {@link #send(SharedMessage)} avoids by escaping up front.
+     */
+    @Override
+    public void sendShared(ByteBuffer message) throws IOException {
+        int iac = TelnetEscaping.indexOfIac(message, message.position(), message.limit());
+
+        if (iac == message.limit()) {
+            connection.sendShared(message);
+        } else {
+            connection.send(TelnetEscaping.escape(message.duplicate(), iac));
+        }
+    }
+
+    /**
+     * Queues a message that was encoded for Telnet once for all of its recipients, without copying
+     * or scanning it again.
+     */
+    void send(SharedMessage message) throws IOException {
+        connection.sendShared(message.data());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        connection.flush();
+    }
+
+    @Override
+    public void flushWithoutBlocking() throws IOException {
+        connection.flushWithoutBlocking();
+    }
+
+    @Override
+    public void onOutputDrained(Runnable handler) {
+        connection.onOutputDrained(handler);
     }
 
     /**
@@ -66,50 +207,123 @@ class TelnetConnection implements Connection {
      */
     @Override
     public int read(byte[] buffer) throws IOException {
+        readLock.lock();
+
+        try {
+            // Callers hand in the same array every time, so its wrapper is kept rather than
+            // allocated on every read
+            if (wrappedReadArray != buffer) {
+                wrappedReadArray = buffer;
+                wrappedReadBuffer = ByteBuffer.wrap(buffer);
+            }
+
+            wrappedReadBuffer.clear();
+            return read(wrappedReadBuffer);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #read(byte[])}, decoding into the buffer between its position and limit. The
+     * position is advanced past the bytes written.
+     */
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
         int result;
+        readLock.lock();
 
-        synchronized (readBuffer) {
+        try {
             // We already reached the end of the stream last time this method was called, no need to do anything
             if (readBufferPosMark == -1) {
                 return -1;
             }
 
-            int bufferPos = 0;
+            int start = buffer.position();
 
             do {
                 // If the readBuffer is empty, top it up from the underlying stream
                 if (readBufferPos >= readBufferPosMark) {
+                    // The client may well be waiting on our replies before it sends anything else
+                    flushReplies();
+                    if (readBuffer == null) {
+                        readBuffer = READ_BUFFERS.acquire(readBufferSize);
+                    }
+
+                    // Pooled buffers may be larger than asked for, reads stick to the configured size
+                    readBuffer.clear().limit(readBufferSize);
                     readBufferPosMark = connection.read(readBuffer);
                     readBufferPos = 0;
+                    readBufferFilled = readBufferPosMark == readBufferSize;
                 }
 
-                // Process the next byte in the read buffer if there is one available
-                if (readBufferPos < readBufferPosMark) {
-                    byte nextByte = readBuffer[readBufferPos++];
-                    Optional<Byte> byteToStream = processByteFromInputStream(nextByte);
+                decode(buffer);
 
-                    if (byteToStream.isPresent()) {
-                        buffer[bufferPos++] = byteToStream.get();
-                    }
-                }
+                // Keep going while there is still space in the result buffer and data in the
+                // readBuffer, or nothing has been decoded yet, or the last refill filled the
+                // readBuffer and the connection has more. That makes at most one availability
+                // check per refill, and none after a short refill since that read took everything
+                // there was; non-blocking connections answer it without a syscall.
+            } while (buffer.hasRemaining() && (readBufferPos < readBufferPosMark ||
+                    (readBufferPosMark > 0 && (buffer.position() == start ||
+                            (readBufferFilled && connection.readAvailable() > 0)))));
 
-                // Keep going while there is still data either in the readBuffer or the underlying
-                // inputStream or we haven't written anything yet and we still have space in the
-                // result buffer
-            } while (bufferPos < buffer.length && (readBufferPos < readBufferPosMark ||
-                    (readBufferPosMark > 0 && (connection.readAvailable() > 0 || bufferPos == 0))));
+            flushReplies();
 
             // If the read call returned 0 or -1 and we had no buffered data to send, send that result instead
-            result = bufferPos > 0 ? bufferPos : readBufferPosMark;
+            int bytesDecoded = buffer.position() - start;
+            result = bytesDecoded > 0 ? bytesDecoded : readBufferPosMark;
+        } finally {
+            try {
+                if (readBufferPos >= readBufferPosMark) {
+                    releaseReadBuffer();
+                }
+            } finally {
+                readLock.unlock();
+            }
         }
 
         return result;
     }
 
-    private Optional<Byte> processByteFromInputStream(byte byteRead) throws IOException {
+    /**
+     * Decodes as much of the readBuffer as fits into the result buffer. Runs of plain data between
+     * IACs are copied across in bulk, only the bytes of a Telnet command go through the state engine.
+     */
+    private void decode(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && readBufferPos < readBufferPosMark) {
+            if (state != State.READY) {
+                int decoded = processByteFromInputStream(readBuffer.get(readBufferPos++));
+
+                if (decoded != NO_DATA) {
+                    buffer.put((byte) decoded);
+                }
+
+                continue;
+            }
+
+            int iacPos = TelnetEscaping.indexOfIac(readBuffer, readBufferPos, readBufferPosMark);
+
+            if (subnegotation) {
+                // Subnegotiation parameters are not passed on to the stream
+                captureSubnegotiation(iacPos);
+                readBufferPos = iacPos;
+            } else {
+                int runLength = Math.min(iacPos - readBufferPos, buffer.remaining());
+                buffer.put(buffer.position(), readBuffer, readBufferPos, runLength);
+                buffer.position(buffer.position() + runLength);
+                readBufferPos += runLength;
+            }
+
+            if (readBufferPos < readBufferPosMark && readBufferPos == iacPos) {
+                state = State.IAC_RECEIVED;
+                readBufferPos++;
+            }
+        }
+    }
+
+    private int processByteFromInputStream(byte byteRead) throws IOException {
         switch (state) {
-            case READY:
-                return processByteFromReadyState(byteRead);
             case IAC_RECEIVED:
                 return processByteFromIacReceivedState(byteRead);
             case WILL_RECEIVED:
@@ -124,54 +338,52 @@ class TelnetConnection implements Connection {
             case DONT_RECEIVED:
                 receivedDont(byteRead);
                 break;
+            default:
+                // READY never gets here, plain data is copied in bulk by decode
+                break;
         }
 
         state = State.READY;
-        return Optional.empty();
+        return NO_DATA;
     }
 
-    private Optional<Byte> processByteFromReadyState(byte byteRead) {
-        switch (byteRead) {
-            case TelnetCodes.CMD_IAC:
-                state = State.IAC_RECEIVED;
-                return Optional.empty();
-            default:
-                return subnegotation ? Optional.empty() : Optional.of(byteRead);
+    private int processByteFromIacReceivedState(byte byteRead) throws IOException {
+        // IAC IAC is an escaped data byte rather than a command
+        if (byteRead != TelnetCodes.CMD_IAC) {
+            metrics.recordIacCommand();
         }
-    }
 
-    private Optional<Byte> processByteFromIacReceivedState(byte byteRead) throws IOException {
         switch (byteRead) {
             case TelnetCodes.CMD_WILL:
                 state = State.WILL_RECEIVED;
-                return Optional.empty();
+                return NO_DATA;
             case TelnetCodes.CMD_WONT:
                 state = State.WONT_RECEIVED;
-                return Optional.empty();
+                return NO_DATA;
             case TelnetCodes.CMD_DO:
                 state = State.DO_RECEIVED;
-                return Optional.empty();
+                return NO_DATA;
             case TelnetCodes.CMD_DONT:
                 state = State.DONT_RECEIVED;
-                return Optional.empty();
+                return NO_DATA;
             case TelnetCodes.CMD_AYT:
                 sendNul();
                 state = State.READY;
-                return Optional.empty();
+                return NO_DATA;
             case TelnetCodes.CMD_EC:
                 state = State.READY;
-                return Optional.of(TelnetCodes.NVT_BS);
+                return TelnetCodes.NVT_BS;
             case TelnetCodes.CMD_EL:
                 state = State.READY;
-                return Optional.of(TelnetCodes.NVT_NAK);
+                return TelnetCodes.NVT_NAK;
             case TelnetCodes.CMD_SB:
-                subnegotation = true;
+                beginSubnegotiation();
                 state = State.READY;
-                return Optional.empty();
+                return NO_DATA;
             case TelnetCodes.CMD_SE:
-                subnegotation = false;
+                endSubnegotiation();
                 state = State.READY;
-                return Optional.empty();
+                return NO_DATA;
             case TelnetCodes.CMD_NOP:
             case TelnetCodes.CMD_DM:
             case TelnetCodes.CMD_BRK:
@@ -179,92 +391,400 @@ class TelnetConnection implements Connection {
             case TelnetCodes.CMD_AO:
             case TelnetCodes.CMD_GA:
                 state = State.READY;
-                return Optional.empty();
+                return NO_DATA;
             default:
-                return subnegotation ? Optional.empty() : Optional.of(byteRead);
+                // Includes IAC IAC, the escape for a literal 255 data byte
+                state = State.READY;
+
+                if (subnegotation) {
+                    if (byteRead == TelnetCodes.CMD_IAC) {
+                        captureSubnegotiation(byteRead);
+                    }
+
+                    return NO_DATA;
+                }
+
+                return byteRead & 0xFF;
         }
     }
 
-    private void receivedWill(byte option) throws IOException {
-        synchronized(telnetClientOptions) {
-            if (telnetClientOptions.get(option) == null) {
-                telnetClientOptions.put(option, false);
-                sendDont(option);
+    /**
+     * Has option reports from the client, such as its window size and terminal type, delivered to
+     * the listener from now on.
+     */
+    void setOptionListener(TelnetOptionListener optionListener) {
+        readLock.lock();
+
+        try {
+            this.optionListener = optionListener;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void beginSubnegotiation() {
+        // An SB without an SE before it starts over, reusing the array already borrowed
+        if (subnegotiationPayload == null) {
+            subnegotiationPayload = SUBNEGOTIATION_BUFFERS.acquire();
+        }
+
+        subnegotation = true;
+        subnegotiationLength = 0;
+        subnegotiationTruncated = false;
+    }
+
+    // Copies the plain run of payload up to the next IAC
+    private void captureSubnegotiation(int end) {
+        int length = end - readBufferPos;
+        int room = subnegotiationPayload.length - subnegotiationLength;
+
+        if (length > room) {
+            length = room;
+            subnegotiationTruncated = true;
+        }
+
+        readBuffer.get(readBufferPos, subnegotiationPayload, subnegotiationLength, length);
+        subnegotiationLength += length;
+    }
+
+    private void captureSubnegotiation(byte b) {
+        if (subnegotiationLength < subnegotiationPayload.length) {
+            subnegotiationPayload[subnegotiationLength++] = b;
+        } else {
+            subnegotiationTruncated = true;
+        }
+    }
+
+    private void endSubnegotiation() {
+        if (!subnegotation) {
+            return;
+        }
+
+        if (subnegotiationTruncated) {
+            metrics.recordTruncatedSubnegotiation();
+
+            if (!truncationLogged) {
+                truncationLogged = true;
+                System.out.println(String.format("Subnegotiation for option [%d] cut short at %d bytes",
+                        subnegotiationPayload[0] & 0xFF, subnegotiationLength));
             }
         }
+
+        subnegotation = false;
+        byte[] payload = subnegotiationPayload;
+        subnegotiationPayload = null;
+
+        try {
+            TelnetSubnegotiation.dispatch(payload, subnegotiationLength, optionListener);
+        } finally {
+            SUBNEGOTIATION_BUFFERS.release(payload);
+        }
+    }
+
+    private void receivedWill(byte option) throws IOException {
+        metrics.recordNegotiation();
+        receivedEnable(TelnetOptionTable.HIM, option);
     }
 
     private void receivedWont(byte option) throws IOException {
-        synchronized(telnetClientOptions) {
-            if (telnetClientOptions.get(option) == null) {
-                telnetClientOptions.put(option, false);
-                sendDont(option);
+        metrics.recordNegotiation();
+        receivedDisable(TelnetOptionTable.HIM, option);
+    }
+
+    private void receivedDo(byte option) throws IOException {
+        metrics.recordNegotiation();
+        receivedEnable(TelnetOptionTable.US, option);
+    }
+
+    private void receivedDont(byte option) throws IOException {
+        metrics.recordNegotiation();
+        receivedDisable(TelnetOptionTable.US, option);
+    }
+
+    /**
+     * Queues the policy's offers, WILL for each option the server enables and DO for each one the
+     * client is asked to, as a single send. Meant to be called once, before the first read, so the
+     * offers go out in the same write as whatever the session sends next.
+     */
+    void sendInitialOffers() throws IOException {
+        readLock.lock();
+
+        try {
+            for (int option = 0; option < 256; option++) {
+                if (optionPolicy.allowsLocally((byte) option)) {
+                    telnetOptions.setState(TelnetOptionTable.US, (byte) option, TelnetOptionTable.WANTYES);
+                }
+
+                if (optionPolicy.allowsRemotely((byte) option)) {
+                    telnetOptions.setState(TelnetOptionTable.HIM, (byte) option, TelnetOptionTable.WANTYES);
+                }
+            }
+
+            byte[] offers = optionPolicy.initialOffers();
+
+            if (offers.length > 0) {
+                connection.send(offers);
             }
+        } finally {
+            readLock.unlock();
         }
     }
 
-    private void receivedDo(byte option) throws IOException {
-        synchronized(telnetServerOptions) {
-            if (telnetServerOptions.get(option) == null) {
-                telnetServerOptions.put(option, false);
-                sendWont(option);
+    // Whether the server has the option enabled, as agreed with the client
+    boolean isEnabledLocally(byte option) {
+        return isEnabled(TelnetOptionTable.US, option);
+    }
+
+    // Whether the client has the option enabled, as agreed with the server
+    boolean isEnabledRemotely(byte option) {
+        return isEnabled(TelnetOptionTable.HIM, option);
+    }
+
+    /**
+     * Asks to turn one of the server's own options on or off. Replies go out with the next flush.
+     */
+    void requestLocal(byte option, boolean enable) throws IOException {
+        request(TelnetOptionTable.US, option, enable);
+    }
+
+    /**
+     * Asks the client to turn one of its options on or off. Replies go out with the next flush.
+     */
+    void requestRemote(byte option, boolean enable) throws IOException {
+        request(TelnetOptionTable.HIM, option, enable);
+    }
+
+    // No lock, a blocking reader holds readLock for as long as it waits on the client
+    private boolean isEnabled(int side, byte option) {
+        return telnetOptions.getState(side, option) == TelnetOptionTable.YES;
+    }
+
+    private boolean allows(int side, byte option) {
+        if (side == TelnetOptionTable.HIM) {
+            return optionPolicy.allowsRemotely(option);
+        }
+
+        // Sessions over the compressor cap turn MCCP2 down straight away
+        return optionPolicy.allowsLocally(option)
+                && (option != TelnetCodes.OPT_COMPRESS2 || compressingConnection.isAvailable());
+    }
+
+    /*
+     * The RFC 1143 Q method. Every option has a state on each side, plus a queue bit that remembers
+     * a change of mind while a request is still waiting for its answer, so neither end can start a
+     * negotiation loop.
+     */
+    private void receivedEnable(int side, byte option) throws IOException {
+        int previousState = telnetOptions.getState(side, option);
+
+        switch (previousState) {
+            case TelnetOptionTable.NO:
+                if (allows(side, option)) {
+                    telnetOptions.setState(side, option, TelnetOptionTable.YES);
+                    sendEnable(side, option);
+                } else if (!telnetOptions.isNegotiated(side, option)) {
+                    // Refusing is always safe, but clients that keep asking only get told once
+                    telnetOptions.markNegotiated(side, option);
+                    sendDisable(side, option);
+                }
+                break;
+            case TelnetOptionTable.WANTNO:
+                // Our disable was answered with an enable, which the RFC counts as an error. Take
+                // it as a refusal, unless an enable was queued behind the disable anyway.
+                if (telnetOptions.isQueued(side, option)) {
+                    telnetOptions.setState(side, option, TelnetOptionTable.YES);
+                    telnetOptions.setQueued(side, option, false);
+                } else {
+                    telnetOptions.setState(side, option, TelnetOptionTable.NO);
+                }
+                break;
+            case TelnetOptionTable.WANTYES:
+                if (telnetOptions.isQueued(side, option)) {
+                    telnetOptions.setState(side, option, TelnetOptionTable.WANTNO);
+                    telnetOptions.setQueued(side, option, false);
+                    sendDisable(side, option);
+                } else {
+                    telnetOptions.setState(side, option, TelnetOptionTable.YES);
+                }
+                break;
+            case TelnetOptionTable.YES:
+            default:
+                break;
+        }
+
+        if (previousState != TelnetOptionTable.YES && telnetOptions.getState(side, option) == TelnetOptionTable.YES) {
+            optionEnabled(side, option);
+        }
+    }
+
+    private void optionEnabled(int side, byte option) throws IOException {
+        if (side == TelnetOptionTable.US) {
+            if (option == TelnetCodes.OPT_COMPRESS2) {
+                if (compressingConnection.start(MCCP2_START)) {
+                    repliesPending = true;
+                } else {
+                    // Another session took the last compressor since we agreed
+                    request(TelnetOptionTable.US, option, false);
+                }
             }
+
+            return;
+        }
+
+        // Options the client only reports when asked get asked for as soon as they are agreed on
+        switch (option) {
+            case TelnetCodes.OPT_TERMINAL_TYPE:
+            case TelnetCodes.OPT_NEW_ENVIRONMENT:
+            case TelnetCodes.OPT_ENVIRONMENT_VARIABLES:
+                connection.send(TelnetSubnegotiation.send(option));
+                repliesPending = true;
+                break;
+            default:
+                break;
         }
     }
 
-    private void receivedDont(byte option) throws IOException {
-        synchronized(telnetServerOptions) {
-            if (telnetServerOptions.get(option) == null) {
-                telnetServerOptions.put(option, false);
-                sendWont(option);
+    // Called before the disable goes out, so that it leaves after the end of the compressed stream
+    private void optionDisabled(int side, byte option) throws IOException {
+        if (side == TelnetOptionTable.US && option == TelnetCodes.OPT_COMPRESS2) {
+            compressingConnection.finish();
+        }
+    }
+
+    private void receivedDisable(int side, byte option) throws IOException {
+        switch (telnetOptions.getState(side, option)) {
+            case TelnetOptionTable.YES:
+                telnetOptions.setState(side, option, TelnetOptionTable.NO);
+                optionDisabled(side, option);
+                sendDisable(side, option);
+                break;
+            case TelnetOptionTable.WANTNO:
+                if (telnetOptions.isQueued(side, option)) {
+                    telnetOptions.setState(side, option, TelnetOptionTable.WANTYES);
+                    telnetOptions.setQueued(side, option, false);
+                    sendEnable(side, option);
+                } else {
+                    telnetOptions.setState(side, option, TelnetOptionTable.NO);
+                }
+                break;
+            case TelnetOptionTable.WANTYES:
+                telnetOptions.setState(side, option, TelnetOptionTable.NO);
+                telnetOptions.setQueued(side, option, false);
+                break;
+            case TelnetOptionTable.NO:
+            default:
+                // Already disabled, answering would only start a loop
+                break;
+        }
+    }
+
+    private void request(int side, byte option, boolean enable) throws IOException {
+        readLock.lock();
+
+        try {
+            int state = telnetOptions.getState(side, option);
+            boolean queued = telnetOptions.isQueued(side, option);
+
+            if (enable) {
+                if (state == TelnetOptionTable.NO) {
+                    telnetOptions.setState(side, option, TelnetOptionTable.WANTYES);
+                    sendEnable(side, option);
+                } else if (state == TelnetOptionTable.WANTNO && !queued) {
+                    telnetOptions.setQueued(side, option, true);
+                } else if (state == TelnetOptionTable.WANTYES && queued) {
+                    telnetOptions.setQueued(side, option, false);
+                }
+            } else {
+                if (state == TelnetOptionTable.YES) {
+                    telnetOptions.setState(side, option, TelnetOptionTable.WANTNO);
+                    optionDisabled(side, option);
+                    sendDisable(side, option);
+                } else if (state == TelnetOptionTable.WANTYES && !queued) {
+                    telnetOptions.setQueued(side, option, true);
+                } else if (state == TelnetOptionTable.WANTNO && queued) {
+                    telnetOptions.setQueued(side, option, false);
+                }
             }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void flushReplies() throws IOException {
+        if (repliesPending) {
+            repliesPending = false;
+            connection.flush();
         }
     }
 
     private void sendNul() throws IOException {
         final byte[] response = {TelnetCodes.NVT_NUL};
         connection.send(response);
+        repliesPending = true;
     }
 
-    /*
-    private void sendWill(byte option) throws IOException {
-        final byte[] response = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, option};
-        connection.send(response);
+    // WILL for our own options, DO for the client's
+    private void sendEnable(int side, byte option) throws IOException {
+        sendCommand(side == TelnetOptionTable.US ? TelnetCodes.CMD_WILL : TelnetCodes.CMD_DO, option);
     }
-    */
-
-    private void sendWont(byte option) throws IOException {
-        System.out.println(String.format("<- WONT [%d]", option));
 
-        final byte[] response = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_WONT, option};
-        connection.send(response);
+    // WONT for our own options, DONT for the client's
+    private void sendDisable(int side, byte option) throws IOException {
+        sendCommand(side == TelnetOptionTable.US ? TelnetCodes.CMD_WONT : TelnetCodes.CMD_DONT, option);
     }
 
-    /*
-    private void sendDo(byte option) throws IOException {
-        final byte[] response = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, option};
+    private void sendCommand(byte command, byte option) throws IOException {
+        System.out.println(String.format("<- %s [%d]", commandName(command), option & 0xFF));
+
+        final byte[] response = {TelnetCodes.CMD_IAC, command, option};
         connection.send(response);
+        repliesPending = true;
     }
-    */
 
-    private void sendDont(byte option) throws IOException {
-        System.out.println(String.format("<- DONT [%d]", option));
-
-        final byte[] response = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_DONT, option};
-        connection.send(response);
+    private static String commandName(byte command) {
+        switch (command) {
+            case TelnetCodes.CMD_WILL:
+                return "WILL";
+            case TelnetCodes.CMD_WONT:
+                return "WONT";
+            case TelnetCodes.CMD_DO:
+                return "DO";
+            default:
+                return "DONT";
+        }
     }
 
     @Override
     public void close() throws IOException {
+        // A reader blocked in the connection still has the buffer, it gives it back when its read fails
+        if (readLock.tryLock()) {
+            try {
+                readBufferPos = Math.max(readBufferPosMark, 0);
+                releaseReadBuffer();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
         connection.close();
     }
 
+    private void releaseReadBuffer() {
+        if (readBuffer != null) {
+            READ_BUFFERS.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
     @Override
     public int readAvailable() throws IOException {
         int result;
+        readLock.lock();
 
-        synchronized (readBuffer) {
+        try {
             result = connection.readAvailable() + (readBufferPosMark - readBufferPos);
+        } finally {
+            readLock.unlock();
         }
 
         return result;
@@ -0,0 +1,142 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finding and doubling IAC bytes in data. The scans test eight bytes at a time and only look at
+ * single bytes inside a word that is known to hold an IAC, so text and most binary payloads are
+ * checked at close to memory speed.
+ */
+final class TelnetEscaping {
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private TelnetEscaping() {
+    }
+
+    /**
+     * @return the index of the first IAC in data[from, to), or to if there is none.
+     */
+    static int indexOfIac(byte[] data, int from, int to) {
+        int i = from;
+
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            if (hasIac((long) LONG_VIEW.get(data, i))) {
+                break;
+            }
+        }
+
+        for (; i < to; i++) {
+            if (data[i] == TelnetCodes.CMD_IAC) {
+                return i;
+            }
+        }
+
+        return to;
+    }
+
+    /**
+     * Same as {@link #indexOfIac(byte[], int, int)} using absolute indexes into the buffer, its
+     * position is left alone.
+     */
+    static int indexOfIac(ByteBuffer data, int from, int to) {
+        int i = from;
+
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            if (hasIac(data.getLong(i))) {
+                break;
+            }
+        }
+
+        for (; i < to; i++) {
+            if (data.get(i) == TelnetCodes.CMD_IAC) {
+                return i;
+            }
+        }
+
+        return to;
+    }
+
+    /**
+     * Copies data[from, to) with every IAC doubled. The first IAC is already known, the scan starts
+     * there.
+     */
+    static byte[] escape(byte[] data, int from, int to, int firstIac) {
+        byte[] escaped = new byte[to - from + countIac(data, firstIac, to)];
+        int escapedPos = 0;
+        int start = from;
+        int iac = firstIac;
+
+        while (iac < to) {
+            // Copy up to and including the IAC, then start the next run on the same IAC
+            int runLength = iac + 1 - start;
+            System.arraycopy(data, start, escaped, escapedPos, runLength);
+            escapedPos += runLength;
+            start = iac;
+            iac = indexOfIac(data, iac + 1, to);
+        }
+
+        System.arraycopy(data, start, escaped, escapedPos, to - start);
+        return escaped;
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer with every IAC doubled and advances its position to
+     * the limit.
+     */
+    static ByteBuffer escape(ByteBuffer data, int firstIac) {
+        int to = data.limit();
+        ByteBuffer escaped = ByteBuffer.allocate(data.remaining() + countIac(data, firstIac, to));
+        int start = data.position();
+        int iac = firstIac;
+
+        while (iac < to) {
+            int runLength = iac + 1 - start;
+            escaped.put(escaped.position(), data, start, runLength);
+            escaped.position(escaped.position() + runLength);
+            start = iac;
+            iac = indexOfIac(data, iac + 1, to);
+        }
+
+        escaped.put(escaped.position(), data, start, to - start);
+        data.position(to);
+        return escaped.clear();
+    }
+
+    private static int countIac(byte[] data, int from, int to) {
+        int count = 0;
+
+        for (int iac = indexOfIac(data, from, to); iac < to; iac = indexOfIac(data, iac + 1, to)) {
+            count++;
+        }
+
+        return count;
+    }
+
+    private static int countIac(ByteBuffer data, int from, int to) {
+        int count = 0;
+
+        for (int iac = indexOfIac(data, from, to); iac < to; iac = indexOfIac(data, iac + 1, to)) {
+            count++;
+        }
+
+        return count;
+    }
+
+    // Inverting turns IAC into the only byte value that is zero, then the usual zero byte test
+    private static boolean hasIac(long word) {
+        long inverted = ~word;
+        return ((inverted - ONES) & ~inverted & HIGH_BITS) != 0;
+    }
+}
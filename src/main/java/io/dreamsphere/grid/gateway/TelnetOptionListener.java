@@ -0,0 +1,30 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.util.Map;
+
+/**
+ * Receives what clients report through Telnet subnegotiation. Calls are made on the thread reading
+ * the connection, while it decodes the input.
+ */
+interface TelnetOptionListener {
+    TelnetOptionListener IGNORE = new TelnetOptionListener() {
+    };
+
+    // NAWS, sent whenever the client's window changes size; 0 means the client does not know
+    default void windowSizeChanged(int columns, int rows) {
+    }
+
+    // TTYPE, one name per SEND the server makes, such as "XTERM-256COLOR"
+    default void terminalTypeReceived(String terminalType) {
+    }
+
+    // NEW-ENVIRON, well known and user variables alike; variables sent without a value map to ""
+    default void environmentReceived(Map<String, String> variables) {
+    }
+}
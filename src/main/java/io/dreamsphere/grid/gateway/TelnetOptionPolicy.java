@@ -0,0 +1,110 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Which Telnet options a connection agrees to: the ones the server enables itself when asked with
+ * DO, and the ones it lets the client enable with WILL. Every option the policy allows is also
+ * offered as soon as the session opens, so the usual handshake completes within one round trip.
+ */
+final class TelnetOptionPolicy {
+    private static final TelnetOptionPolicy REFUSE_ALL = new TelnetOptionPolicy(new byte[0], new byte[0]);
+
+    private final long[] local = new long[4];
+    private final long[] remote = new long[4];
+    private final byte[] initialOffers;
+
+    TelnetOptionPolicy(byte[] localOptions, byte[] remoteOptions) {
+        ByteArrayOutputStream offers = new ByteArrayOutputStream();
+
+        for (byte option : localOptions) {
+            set(local, option);
+            offers.write(TelnetCodes.CMD_IAC);
+            offers.write(TelnetCodes.CMD_WILL);
+            offers.write(option);
+        }
+
+        for (byte option : remoteOptions) {
+            set(remote, option);
+            offers.write(TelnetCodes.CMD_IAC);
+            offers.write(TelnetCodes.CMD_DO);
+            offers.write(option);
+        }
+
+        initialOffers = offers.toByteArray();
+    }
+
+    /**
+     * Suppresses go-ahead and echoes input on the server, and asks the client for its window size
+     * and terminal type.
+     */
+    static TelnetOptionPolicy defaultPolicy() {
+        return new TelnetOptionPolicy(
+                new byte[] {TelnetCodes.OPT_SUPPRESS_GO_AHEAD, TelnetCodes.OPT_ECHO},
+                new byte[] {TelnetCodes.OPT_WINDOW_SIZE, TelnetCodes.OPT_TERMINAL_TYPE});
+    }
+
+    // Offers nothing and turns every request down
+    static TelnetOptionPolicy refuseAll() {
+        return REFUSE_ALL;
+    }
+
+    /**
+     * Reads a policy from two comma-separated lists of option codes, such as "3,1" and "31,24".
+     */
+    static TelnetOptionPolicy parse(String localOptions, String remoteOptions) {
+        return new TelnetOptionPolicy(parseOptions(localOptions), parseOptions(remoteOptions));
+    }
+
+    boolean allowsLocally(byte option) {
+        return isSet(local, option);
+    }
+
+    boolean allowsRemotely(byte option) {
+        return isSet(remote, option);
+    }
+
+    // IAC WILL and IAC DO for every allowed option, ready to go out in a single send
+    byte[] initialOffers() {
+        return initialOffers.clone();
+    }
+
+    private static byte[] parseOptions(String options) {
+        String trimmed = options.trim();
+
+        if (trimmed.isEmpty()) {
+            return new byte[0];
+        }
+
+        String[] codes = trimmed.split(",");
+        byte[] result = new byte[codes.length];
+
+        for (int i = 0; i < codes.length; i++) {
+            int code = Integer.parseInt(codes[i].trim());
+
+            if (code < 0 || code > 255) {
+                throw new IllegalArgumentException("Telnet option codes go from 0 to 255: " + code);
+            }
+
+            result[i] = (byte) code;
+        }
+
+        return result;
+    }
+
+    private static void set(long[] bits, byte option) {
+        int index = option & 0xFF;
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static boolean isSet(long[] bits, byte option) {
+        int index = option & 0xFF;
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+}
@@ -0,0 +1,80 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Negotiation state of all 256 Telnet options for both ends of one connection: the options the
+ * server enables ({@link #US}) and the ones the client enables ({@link #HIM}). Every option takes
+ * one byte of a long word, four bits per side:
+ * <pre>
+ *   bits 0-1  RFC 1143 state (NO, YES, WANTNO, WANTYES)
+ *   bit  2    RFC 1143 queue bit (set means OPPOSITE)
+ *   bit  3    the option has been negotiated at least once
+ * </pre>
+ * The whole table is 32 longs. Callers have to guard changes to it, but states can be read from
+ * any thread without a lock.
+ */
+final class TelnetOptionTable {
+    static final int US = 0;
+    static final int HIM = 4;
+
+    static final int NO = 0;
+    static final int YES = 1;
+    static final int WANTNO = 2;
+    static final int WANTYES = 3;
+
+    private static final int STATE_MASK = 0x3;
+    private static final int QUEUE_BIT = 0x4;
+    private static final int NEGOTIATED_BIT = 0x8;
+    private static final int OPTIONS_PER_WORD = 8;
+    private static final int BITS_PER_OPTION = 8;
+
+    private final AtomicLongArray words = new AtomicLongArray(256 / OPTIONS_PER_WORD);
+
+    int getState(int side, byte option) {
+        return getBits(side, option) & STATE_MASK;
+    }
+
+    void setState(int side, byte option, int state) {
+        setBits(side, option, (getBits(side, option) & ~STATE_MASK) | state);
+    }
+
+    boolean isQueued(int side, byte option) {
+        return (getBits(side, option) & QUEUE_BIT) != 0;
+    }
+
+    void setQueued(int side, byte option, boolean queued) {
+        int bits = getBits(side, option);
+        setBits(side, option, queued ? bits | QUEUE_BIT : bits & ~QUEUE_BIT);
+    }
+
+    boolean isNegotiated(int side, byte option) {
+        return (getBits(side, option) & NEGOTIATED_BIT) != 0;
+    }
+
+    void markNegotiated(int side, byte option) {
+        setBits(side, option, getBits(side, option) | NEGOTIATED_BIT);
+    }
+
+    private int getBits(int side, byte option) {
+        int index = option & 0xFF;
+        return (int) (words.get(index / OPTIONS_PER_WORD) >>> shift(side, index)) & 0xF;
+    }
+
+    private void setBits(int side, byte option, int bits) {
+        int index = option & 0xFF;
+        int shift = shift(side, index);
+        int word = index / OPTIONS_PER_WORD;
+        words.set(word, (words.get(word) & ~(0xFL << shift)) | ((long) bits << shift));
+    }
+
+    private static int shift(int side, int index) {
+        return (index & (OPTIONS_PER_WORD - 1)) * BITS_PER_OPTION + side;
+    }
+}
@@ -0,0 +1,108 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns the payload of a subnegotiation, from the option code up to but not including IAC SE and
+ * with doubled IACs already undone, into calls on a {@link TelnetOptionListener}. Payloads of
+ * options it does not know, or that are too short for their option, are dropped.
+ */
+final class TelnetSubnegotiation {
+    static final byte IS = 0;
+    static final byte SEND = 1;
+    static final byte INFO = 2;
+
+    // NEW-ENVIRON type codes, RFC 1572
+    private static final byte VAR = 0;
+    private static final byte VALUE = 1;
+    private static final byte ESC = 2;
+    private static final byte USERVAR = 3;
+
+    private TelnetSubnegotiation() {
+    }
+
+    static void dispatch(byte[] payload, int length, TelnetOptionListener listener) {
+        if (length < 1) {
+            return;
+        }
+
+        switch (payload[0]) {
+            case TelnetCodes.OPT_WINDOW_SIZE:
+                // Fixed size, so it is read straight out of the payload without allocating
+                if (length >= 5) {
+                    listener.windowSizeChanged(unsignedShort(payload, 1), unsignedShort(payload, 3));
+                }
+                break;
+            case TelnetCodes.OPT_TERMINAL_TYPE:
+                if (length >= 2 && payload[1] == IS) {
+                    listener.terminalTypeReceived(new String(payload, 2, length - 2, StandardCharsets.US_ASCII));
+                }
+                break;
+            case TelnetCodes.OPT_NEW_ENVIRONMENT:
+            case TelnetCodes.OPT_ENVIRONMENT_VARIABLES:
+                if (length >= 2 && (payload[1] == IS || payload[1] == INFO)) {
+                    listener.environmentReceived(parseEnvironment(payload, 2, length));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The subnegotiation asking the client to report an option, IAC SB option SEND IAC SE.
+     */
+    static byte[] send(byte option) {
+        return new byte[] {TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, option, SEND,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE};
+    }
+
+    private static Map<String, String> parseEnvironment(byte[] payload, int start, int end) {
+        Map<String, String> variables = new LinkedHashMap<>();
+        StringBuilder name = null;
+        StringBuilder value = null;
+        StringBuilder current = null;
+
+        for (int i = start; i < end; i++) {
+            byte b = payload[i];
+
+            if (b == VAR || b == USERVAR) {
+                put(variables, name, value);
+                name = new StringBuilder();
+                value = null;
+                current = name;
+            } else if (b == VALUE && name != null) {
+                value = new StringBuilder();
+                current = value;
+            } else if (current != null) {
+                if (b == ESC && i + 1 < end) {
+                    b = payload[++i];
+                }
+
+                current.append((char) (b & 0xFF));
+            }
+        }
+
+        put(variables, name, value);
+        return Collections.unmodifiableMap(variables);
+    }
+
+    private static void put(Map<String, String> variables, StringBuilder name, StringBuilder value) {
+        if (name != null) {
+            variables.put(name.toString(), value == null ? "" : value.toString());
+        }
+    }
+
+    private static int unsignedShort(byte[] payload, int offset) {
+        return (payload[offset] & 0xFF) << 8 | (payload[offset + 1] & 0xFF);
+    }
+}
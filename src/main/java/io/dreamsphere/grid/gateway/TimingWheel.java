@@ -0,0 +1,209 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: a ring of buckets, one per tick, with a timeout filed under the bucket its
+ * deadline falls in. Scheduling and cancelling are O(1) whatever the number of timeouts, at the
+ * price of firing up to a tick late, which suits timeouts measured in seconds.
+ *
+ * Only the wheel thread touches the buckets. Other threads hand their schedules and cancellations
+ * over through queues that are drained on every tick, and timeout tasks run on the wheel thread,
+ * so they have to be quick.
+ */
+class TimingWheel {
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Timeout.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile long currentTick;
+    private volatile boolean running = true;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two. Timeouts further out than
+     *                  a full turn simply sit out the turns in between.
+     */
+    TimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick duration and wheel size have to be positive");
+        }
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(wheelSize * 2 - 1);
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * The number of ticks since the wheel started, a coarse clock that is much cheaper to read
+     * than {@link System#nanoTime()}.
+     */
+    long currentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Runs the task on the wheel thread once the given number of ticks has passed.
+     */
+    Timeout schedule(Runnable task, long delayTicks) {
+        Timeout timeout = new Timeout(task, currentTick + Math.max(delayTicks, 1));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long startNanos = System.nanoTime();
+
+        while (running) {
+            long tick = currentTick + 1;
+            long sleepNanos = startNanos + tick * tickNanos - System.nanoTime();
+
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+
+            removeCancelled();
+            fileScheduled(tick);
+            currentTick = tick;
+            expire(tick);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+
+        while ((timeout = cancelled.poll()) != null) {
+            // Timeouts that are still in the scheduled queue are dropped when they come out of it
+            if (timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    private void fileScheduled(long tick) {
+        Timeout timeout;
+
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state == Timeout.CANCELLED) {
+                continue;
+            }
+
+            // Anything that should have gone off already goes off on this tick
+            int bucket = (int) (Math.max(timeout.deadline, tick) & mask);
+            timeout.bucket = bucket;
+            timeout.next = buckets[bucket];
+
+            if (timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+
+            buckets[bucket] = timeout;
+        }
+    }
+
+    private void expire(long tick) {
+        Timeout timeout = buckets[(int) (tick & mask)];
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+
+            if (timeout.deadline <= tick) {
+                unlink(timeout);
+
+                if (timeout.expire()) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timeout task failed on " + thread.getName() + ": " + e);
+                    }
+                }
+            }
+
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else if (buckets[timeout.bucket] == timeout) {
+            buckets[timeout.bucket] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+
+        timeout.bucket = -1;
+        timeout.next = null;
+        timeout.previous = null;
+    }
+
+    final class Timeout {
+        private static final int PENDING = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = PENDING;
+        // Bucket links, only touched by the wheel thread
+        private int bucket = -1;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running if it hasn't already. Safe to call from any thread, and more
+         * than once.
+         */
+        void cancel() {
+            if (STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                cancelled.add(this);
+            }
+        }
+
+        private boolean expire() {
+            return STATE.compareAndSet(this, PENDING, EXPIRED);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token buckets for source addresses, in a fixed table of packed longs that any number of threads
+ * can update at once. A bucket holds a burst of tokens and refills at a steady rate. It is kept as
+ * the one time that matters, the point at which it would be full again (the "theoretical arrival
+ * time" of GCRA), so a whole bucket fits into one word together with a fingerprint of its address:
+ * <pre>
+ *   bits 48-63  fingerprint of the address, never 0
+ *   bits  0-47  when the bucket is full again, in microseconds, which lasts the clock about 8 years
+ * </pre>
+ * Microseconds rather than milliseconds keep the rate what it was set to when it doesn't divide a
+ * second evenly: at 300 a second a millisecond interval would come to 3 and let in 333.
+ * Every address has two candidate slots. One that finds neither of them its own takes over
+ * whichever of the two has been quiet the longest, so the table never grows, and the entries that
+ * go are the ones whose buckets have refilled anyway.
+ */
+final class TokenBucketTable {
+    private static final int FINGERPRINT_SHIFT = 48;
+    private static final long MICROS_PER_SECOND = 1_000_000;
+    private static final long TIME_MASK = (1L << FINGERPRINT_SHIFT) - 1;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long intervalMicros;
+    private final long toleranceMicros;
+
+    /**
+     * @param slots number of buckets, rounded up to a power of two.
+     */
+    TokenBucketTable(int slots, int tokensPerSecond, int burst) {
+        if (slots < 2 || tokensPerSecond < 1 || burst < 1) {
+            throw new IllegalArgumentException("Slots, rate and burst have to be positive");
+        }
+
+        int size = Integer.highestOneBit(slots * 2 - 1);
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.intervalMicros = Math.max(1, Math.round((double) MICROS_PER_SECOND / tokensPerSecond));
+        this.toleranceMicros = (burst - 1) * intervalMicros;
+    }
+
+    /**
+     * Takes a token from the address's bucket.
+     *
+     * @param nowMicros a clock that never goes backwards, in microseconds.
+     * @return false if the bucket is empty.
+     */
+    boolean tryAcquire(InetAddress address, long nowMicros) {
+        long hash = mix(address.hashCode());
+        int first = (int) hash & mask;
+        int second = (int) (hash >>> 32) & mask;
+        long fingerprint = (hash >>> FINGERPRINT_SHIFT) | 1;
+
+        while (true) {
+            long firstState = slots.get(first);
+            long secondState = slots.get(second);
+            int index;
+            long state;
+            long fullAt;
+
+            if (fingerprint(firstState) == fingerprint) {
+                index = first;
+                state = firstState;
+                fullAt = Math.max(fullAt(state), nowMicros);
+            } else if (fingerprint(secondState) == fingerprint) {
+                index = second;
+                state = secondState;
+                fullAt = Math.max(fullAt(state), nowMicros);
+            } else {
+                // A new address starts with a full bucket, in the quieter slot
+                index = fullAt(firstState) <= fullAt(secondState) ? first : second;
+                state = index == first ? firstState : secondState;
+                fullAt = nowMicros;
+            }
+
+            if (fullAt - nowMicros > toleranceMicros) {
+                return false;
+            }
+
+            if (slots.compareAndSet(index, state, fingerprint << FINGERPRINT_SHIFT | (fullAt + intervalMicros))) {
+                return true;
+            }
+        }
+    }
+
+    private static long fingerprint(long state) {
+        return state >>> FINGERPRINT_SHIFT;
+    }
+
+    private static long fullAt(long state) {
+        return state & TIME_MASK;
+    }
+
+    // Spreads the address's hash code over all 64 bits, as in MurmurHash3's finalizer
+    private static long mix(int hashCode) {
+        long hash = hashCode;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
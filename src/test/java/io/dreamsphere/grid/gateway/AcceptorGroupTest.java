@@ -0,0 +1,172 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AcceptorGroupTest {
+    private final List<TcpListener> listeners = new ArrayList<>();
+    private AcceptorGroup acceptorGroup;
+
+    @After
+    public void closeAcceptorGroup() throws IOException {
+        if (acceptorGroup != null) {
+            acceptorGroup.close();
+        }
+    }
+
+    @Test
+    public void portReuseGivesEveryAcceptorItsOwnListenerOnTheSamePort() throws IOException {
+        acceptorGroup = new AcceptorGroup(() -> createListener(true, mock(Connection.class)),
+                connection -> { }, 3, true, 50);
+        acceptorGroup.open(0);
+
+        assertThat(listeners.size(), is(3));
+
+        for (TcpListener listener : listeners) {
+            assertThat(listener.getLocalPort(), is(acceptorGroup.getLocalPort()));
+        }
+    }
+
+    @Test
+    public void acceptorsShareOneListenerWithoutPortReuse() throws IOException {
+        acceptorGroup = new AcceptorGroup(() -> createListener(false, mock(Connection.class)),
+                connection -> { }, 3, false, 50);
+        acceptorGroup.open(0);
+
+        assertThat(listeners.size(), is(1));
+    }
+
+    @Test(timeout = 10000)
+    public void everyAcceptedConnectionReachesTheSessionDriver() throws Exception {
+        int clients = 20;
+        CountDownLatch started = new CountDownLatch(clients);
+        acceptorGroup = new AcceptorGroup(() -> createListener(true, mock(Connection.class)),
+                connection -> started.countDown(), 4, true, 50);
+        acceptorGroup.open(0);
+        startAccepting();
+
+        for (int i = 0; i < clients; i++) {
+            new Socket(InetAddress.getLoopbackAddress(), acceptorGroup.getLocalPort()).close();
+        }
+
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test(timeout = 10000)
+    public void connectionIsClosedIfItsSessionFailsToStart() throws Exception {
+        Connection connection = mock(Connection.class);
+        acceptorGroup = new AcceptorGroup(() -> createListener(false, connection),
+                accepted -> {
+                    throw new IOException("No session for you");
+                }, 2, false, 50);
+        acceptorGroup.open(0);
+        startAccepting();
+
+        new Socket(InetAddress.getLoopbackAddress(), acceptorGroup.getLocalPort()).close();
+
+        verify(connection, timeout(5000)).close();
+    }
+
+    @Test(timeout = 10000)
+    public void failedAcceptDoesNotStopTheAcceptor() throws IOException {
+        Listener listener = mock(Listener.class);
+        Connection connection = mock(Connection.class);
+        SessionDriver sessionDriver = mock(SessionDriver.class);
+        when(listener.getNextConnection())
+                .thenThrow(new IOException("Too many open files"))
+                .thenReturn(connection)
+                .thenThrow(new IOException("Socket closed"));
+        when(listener.isClosed()).thenReturn(false, true);
+        acceptorGroup = new AcceptorGroup(() -> listener, sessionDriver, 1, false, 50);
+        acceptorGroup.open(0);
+
+        try {
+            acceptorGroup.run();
+            fail("Acceptor kept going after its listener was closed");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Socket closed"));
+        }
+
+        verify(sessionDriver).start(connection);
+    }
+
+    @Test(timeout = 10000)
+    public void connectionThatFailsEveryWayDoesNotStopTheAcceptor() throws IOException {
+        Listener listener = mock(Listener.class);
+        Connection rejected = mock(Connection.class);
+        Connection next = mock(Connection.class);
+        SessionDriver sessionDriver = mock(SessionDriver.class);
+        when(listener.getNextConnection())
+                .thenReturn(rejected)
+                .thenReturn(next)
+                .thenThrow(new IOException("Socket closed"));
+        when(listener.isClosed()).thenReturn(true);
+        doThrow(new RejectedExecutionException("Shutting down")).when(sessionDriver).start(rejected);
+        doThrow(new IOException("Already reset")).when(rejected).close();
+        acceptorGroup = new AcceptorGroup(() -> listener, sessionDriver, 1, false, 50);
+        acceptorGroup.open(0);
+
+        try {
+            acceptorGroup.run();
+            fail("Acceptor kept going after its listener was closed");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Socket closed"));
+        }
+
+        verify(rejected).close();
+        verify(sessionDriver).start(next);
+    }
+
+    private Listener createListener(boolean reusePort, Connection connection) {
+        try {
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, reusePort);
+            TcpListener listener = new TcpListener(serverSocket, socket -> {
+                socket.close();
+                return connection;
+            });
+            listeners.add(listener);
+            return listener;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void startAccepting() {
+        Thread acceptor = new Thread(() -> {
+            try {
+                acceptorGroup.run();
+            } catch (IOException e) {
+                // Closed at the end of the test
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+}
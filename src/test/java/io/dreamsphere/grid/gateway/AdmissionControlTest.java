@@ -0,0 +1,55 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AdmissionControlTest {
+    private final GatewayMetrics metrics = new GatewayMetrics();
+
+    @Test
+    public void sessionsOverTheCapAreTurnedAwayUntilOneCloses() throws Exception {
+        AdmissionControl admissionControl = new AdmissionControl(0, 1, 2, metrics);
+        InetAddress address = InetAddress.getLoopbackAddress();
+
+        assertThat(admissionControl.admit(address), is(true));
+        assertThat(admissionControl.admit(address), is(true));
+        assertThat(admissionControl.admit(address), is(false));
+        assertThat(metrics.getOverCapacityConnections(), is(1L));
+
+        admissionControl.sessionClosed();
+        assertThat(admissionControl.admit(address), is(true));
+        assertThat(admissionControl.getSessions(), is(2));
+    }
+
+    @Test
+    public void hostOverItsRateIsTurnedAway() throws Exception {
+        AdmissionControl admissionControl = new AdmissionControl(1, 2, 0, metrics);
+        InetAddress address = InetAddress.getLoopbackAddress();
+
+        assertThat(admissionControl.admit(address), is(true));
+        assertThat(admissionControl.admit(address), is(true));
+        assertThat(admissionControl.admit(address), is(false));
+        assertThat(metrics.getRateLimitedConnections(), is(1L));
+    }
+
+    @Test
+    public void closingAConnectionGivesItsPlaceBack() throws Exception {
+        AdmissionControl admissionControl = new AdmissionControl(0, 1, 1, metrics);
+        assertThat(admissionControl.admit(InetAddress.getLoopbackAddress()), is(true));
+        ConnectionActivity activity = ConnectionActivity.untracked(admissionControl::sessionClosed);
+
+        activity.closed();
+
+        assertThat(admissionControl.getSessions(), is(0));
+    }
+}
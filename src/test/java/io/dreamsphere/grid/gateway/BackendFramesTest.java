@@ -0,0 +1,54 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class BackendFramesTest {
+    private final List<String> frames = new ArrayList<>();
+
+    @Test
+    public void frameCutShortWaitsForTheRest() throws IOException {
+        ByteBuffer encoded = ByteBuffer.allocate(64);
+        BackendFrames.encode(encoded, 7, BackendFrames.DATA, ByteBuffer.wrap(new byte[] {'h', 'i'}));
+        BackendFrames.encode(encoded, 8, BackendFrames.CLOSE, ByteBuffer.allocate(0));
+        encoded.flip();
+        ByteBuffer partial = encoded.duplicate().limit(BackendFrames.HEADER_BYTES + 2 + 3);
+
+        BackendFrames.decode(partial, this::record);
+        assertThat(frames, contains("7/2/hi"));
+        assertThat(partial.position(), is(BackendFrames.HEADER_BYTES + 2));
+
+        encoded.position(partial.position());
+        BackendFrames.decode(encoded, this::record);
+        assertThat(frames, contains("7/2/hi", "8/4/"));
+        assertThat(encoded.hasRemaining(), is(false));
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedFrameIsRejected() throws IOException {
+        ByteBuffer encoded = ByteBuffer.allocate(4).putInt(0, BackendFrames.HEADER_BYTES + BackendFrames.MAX_PAYLOAD);
+
+        BackendFrames.decode(encoded, this::record);
+    }
+
+    private void record(int sessionId, byte type, ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        frames.add(sessionId + "/" + type + "/" + new String(bytes, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,208 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class BackendLinkTest {
+    private final StandInGridServer server;
+    private final List<AutoCloseable> toClose = new ArrayList<>();
+
+    public BackendLinkTest() throws IOException {
+        server = new StandInGridServer();
+        toClose.add(server);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable closeable : toClose) {
+            closeable.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void manySessionsShareOneLink() throws Exception {
+        BackendPool pool = connectPool(1);
+        List<Receiver> receivers = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            Receiver receiver = new Receiver();
+            receiver.channel = pool.open(receiver);
+            receivers.add(receiver);
+        }
+
+        for (int i = 0; i < receivers.size(); i++) {
+            receivers.get(i).channel.send(utf8("hello " + i + "\r\n"));
+        }
+
+        for (int i = 0; i < receivers.size(); i++) {
+            receivers.get(i).awaitReceived(StandInGridServer.GREETING + "You said: hello " + i + "\n\r");
+        }
+
+        assertThat(server.getLinksAccepted(), is(1));
+    }
+
+    @Test(timeout = 10000)
+    public void framesQueuedDuringAWriteGoOutTogether() throws Exception {
+        BackendLink link = BackendLink.connect(server.getAddress(), "test-link", () -> { });
+        toClose.add(link::close);
+        BackendChannel channel = link.open(new Receiver());
+
+        for (int i = 0; i < 1000; i++) {
+            channel.send(utf8("n\r\n"));
+        }
+
+        awaitTrue(() -> server.inputOf(channel.getSessionId()).length() == 3000);
+        assertThat(link.getWrites(), lessThan(link.getFramesSent() / 2));
+    }
+
+    @Test(timeout = 10000)
+    public void inputBeyondTheWindowWaitsForCredit() throws Exception {
+        BackendPool pool = connectPool(1);
+        Receiver receiver = new Receiver();
+        BackendChannel channel = pool.open(receiver);
+        server.withholdCredit(true);
+        byte[] input = new byte[BackendFrames.INITIAL_WINDOW + 100];
+        Arrays.fill(input, (byte) 'x');
+
+        channel.send(ByteBuffer.wrap(input));
+
+        awaitTrue(() -> server.inputOf(channel.getSessionId()).length() == BackendFrames.INITIAL_WINDOW);
+        Thread.sleep(100);
+        assertThat(server.inputOf(channel.getSessionId()).length(), is(BackendFrames.INITIAL_WINDOW));
+
+        server.withholdCredit(false);
+        awaitTrue(() -> server.inputOf(channel.getSessionId()).length() == input.length);
+    }
+
+    @Test(timeout = 10000, expected = IOException.class)
+    public void backendThatGrantsNoRoomFailsTheSession() throws Exception {
+        BackendPool pool = connectPool(1);
+        BackendChannel channel = pool.open(new Receiver());
+        server.withholdCredit(true);
+
+        channel.send(ByteBuffer.allocate(BackendFrames.INITIAL_WINDOW + BackendChannel.MAX_BACKLOG_BYTES + 1));
+    }
+
+    @Test(timeout = 10000)
+    public void consumedOutputIsCreditedBack() throws Exception {
+        BackendPool pool = connectPool(1);
+        Receiver receiver = new Receiver();
+        receiver.channel = pool.open(receiver);
+        receiver.awaitReceived(StandInGridServer.GREETING);
+
+        // The greeting and this fill the window the session started with
+        server.send(receiver.channel.getSessionId(),
+                new byte[BackendFrames.INITIAL_WINDOW - StandInGridServer.GREETING.length()]);
+
+        awaitTrue(() -> server.creditFrom(receiver.channel.getSessionId()) == BackendFrames.INITIAL_WINDOW);
+    }
+
+    @Test(timeout = 10000)
+    public void closedSessionIsClosedOnTheBackend() throws Exception {
+        BackendPool pool = connectPool(1);
+        BackendChannel channel = pool.open(new Receiver());
+
+        channel.close();
+
+        awaitTrue(() -> server.isClosed(channel.getSessionId()));
+    }
+
+    @Test(timeout = 10000)
+    public void failedLinkClosesItsSessionsAndIsReconnected() throws Exception {
+        BackendPool pool = connectPool(1);
+        Receiver receiver = new Receiver();
+        receiver.channel = pool.open(receiver);
+
+        server.dropLinks();
+
+        assertTrue(receiver.closed.await(5, TimeUnit.SECONDS));
+        awaitTrue(() -> server.getLinksAccepted() == 2);
+        Receiver reconnected = new Receiver();
+        reconnected.channel = awaitOpen(pool, reconnected);
+        reconnected.awaitReceived(StandInGridServer.GREETING);
+    }
+
+    private BackendPool connectPool(int links) {
+        BackendPool pool = new BackendPool(server.getAddress(), links);
+        pool.connect();
+        toClose.add(pool::close);
+        return pool;
+    }
+
+    private static BackendChannel awaitOpen(BackendPool pool, Receiver receiver) throws InterruptedException {
+        while (true) {
+            try {
+                return pool.open(receiver);
+            } catch (IOException e) {
+                // The new link isn't in the pool yet
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static ByteBuffer utf8(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Consumes everything at once, as a session would after writing it to its client
+    private static final class Receiver implements BackendChannel.Listener {
+        private final StringBuilder received = new StringBuilder();
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile BackendChannel channel;
+
+        @Override
+        public void dataReceived(BackendChannel channel, ByteBuffer data) {
+            int length = data.remaining();
+
+            synchronized (received) {
+                received.append(StandardCharsets.UTF_8.decode(data));
+            }
+
+            try {
+                channel.consumed(length);
+            } catch (IOException e) {
+                channel.close();
+            }
+        }
+
+        @Override
+        public void closed(BackendChannel channel) {
+            closed.countDown();
+        }
+
+        void awaitReceived(String expected) throws InterruptedException {
+            awaitTrue(() -> {
+                synchronized (received) {
+                    return received.toString().equals(expected);
+                }
+            });
+        }
+    }
+}
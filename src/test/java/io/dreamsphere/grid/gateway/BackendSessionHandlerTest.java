@@ -0,0 +1,148 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BackendSessionHandlerTest {
+    private final StandInGridServer server;
+    private final List<AutoCloseable> toClose = new ArrayList<>();
+
+    public BackendSessionHandlerTest() throws IOException {
+        server = new StandInGridServer();
+        toClose.add(server);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable closeable : toClose) {
+            closeable.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void clientThatStopsReadingGrantsTheBackendNoCredit() throws Exception {
+        StallingClient client = new StallingClient();
+        toClose.add(client::resume);
+        GatewaySession session = openSession(client);
+        awaitTrue(() -> client.received().equals(StandInGridServer.GREETING));
+        int sessionId = BackendSessionHandler.channelOf(session).getSessionId();
+        client.stall();
+
+        // The greeting and this fill the window the session started with
+        server.send(sessionId, new byte[BackendFrames.INITIAL_WINDOW - StandInGridServer.GREETING.length()]);
+
+        awaitTrue(client::isStalled);
+        Thread.sleep(100);
+        assertThat(server.creditFrom(sessionId), is(0));
+
+        client.resume();
+        awaitTrue(() -> server.creditFrom(sessionId) == BackendFrames.INITIAL_WINDOW);
+    }
+
+    @Test(timeout = 10000)
+    public void relayedOutputHandsItsBuffersBack() throws Exception {
+        int inUse = BackendSessionHandler.OUTPUT_BUFFERS.buffersInUse();
+        StallingClient client = new StallingClient();
+        GatewaySession session = openSession(client);
+        awaitTrue(() -> client.received().equals(StandInGridServer.GREETING));
+        int sessionId = BackendSessionHandler.channelOf(session).getSessionId();
+
+        server.send(sessionId, "You are in a maze\n\r".getBytes(StandardCharsets.UTF_8));
+
+        awaitTrue(() -> client.received().endsWith("You are in a maze\n\r"));
+        assertThat(BackendSessionHandler.OUTPUT_BUFFERS.buffersInUse(), is(inUse));
+    }
+
+    private GatewaySession openSession(StallingClient client) throws IOException {
+        BackendPool pool = new BackendPool(server.getAddress(), 1);
+        pool.connect();
+        toClose.add(pool::close);
+        Socket socket = mock(Socket.class);
+        when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(socket.getOutputStream()).thenReturn(client);
+        when(socket.isConnected()).thenReturn(true);
+        GatewaySession session = new GatewaySession(new TelnetConnection(new TcpConnection(socket)),
+                GatewaySession.DEFAULT_MAX_LINE_LENGTH, new SessionPipeline(new BackendSessionHandler(pool)),
+                task -> Thread.ofVirtual().start(task));
+        session.open();
+        return session;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    // A client that takes its output until told to stall, after which every write waits for it to resume
+    private static final class StallingClient extends OutputStream {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final CountDownLatch resumed = new CountDownLatch(1);
+        private volatile boolean stall;
+        private volatile boolean stalled;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (stall) {
+                stalled = true;
+
+                try {
+                    resumed.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            synchronized (received) {
+                received.write(b, off, len);
+            }
+        }
+
+        String received() {
+            synchronized (received) {
+                return received.toString(StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        void stall() {
+            stall = true;
+        }
+
+        // A write is waiting for the client
+        boolean isStalled() {
+            return stalled;
+        }
+
+        void resume() {
+            resumed.countDown();
+        }
+    }
+}
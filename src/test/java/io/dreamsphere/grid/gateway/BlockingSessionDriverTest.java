@@ -0,0 +1,117 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BlockingSessionDriverTest {
+    @Mock private Connection mockConnection;
+    @Mock private Connection otherMockConnection;
+
+    private BlockingSessionDriver sessionDriver;
+
+    @After
+    public void shutdownSessionDriver() {
+        sessionDriver.shutdown();
+    }
+
+    @Test
+    public void virtualModeRunsSessionsOnVirtualThreads() throws Exception {
+        sessionDriver = createSessionDriver(GatewayConfig.SessionThreads.VIRTUAL);
+        CountDownLatch sessionRead = new CountDownLatch(1);
+        boolean[] virtual = new boolean[1];
+        when(mockConnection.read(any(ByteBuffer.class))).thenAnswer(invocation -> {
+            virtual[0] = Thread.currentThread().isVirtual();
+            sessionRead.countDown();
+            return -1;
+        });
+        sessionDriver.start(mockConnection);
+        assertTrue(sessionRead.await(5, TimeUnit.SECONDS));
+        assertThat(virtual[0], is(true));
+    }
+
+    @Test
+    public void platformModeRunsSessionsOnPlatformThreads() throws Exception {
+        sessionDriver = createSessionDriver(GatewayConfig.SessionThreads.PLATFORM);
+        CountDownLatch sessionRead = new CountDownLatch(1);
+        boolean[] virtual = new boolean[1];
+        when(mockConnection.read(any(ByteBuffer.class))).thenAnswer(invocation -> {
+            virtual[0] = Thread.currentThread().isVirtual();
+            sessionRead.countDown();
+            return -1;
+        });
+        sessionDriver.start(mockConnection);
+        assertTrue(sessionRead.await(5, TimeUnit.SECONDS));
+        assertThat(virtual[0], is(false));
+    }
+
+    @Test
+    public void sessionsAreServedConcurrently() throws Exception {
+        sessionDriver = createSessionDriver(GatewayConfig.SessionThreads.VIRTUAL);
+        CountDownLatch bothReading = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        when(mockConnection.read(any(ByteBuffer.class))).thenAnswer(invocation -> blockUntilReleased(bothReading, release));
+        when(otherMockConnection.read(any(ByteBuffer.class))).thenAnswer(invocation -> blockUntilReleased(bothReading, release));
+        sessionDriver.start(mockConnection);
+        sessionDriver.start(otherMockConnection);
+        assertTrue(bothReading.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void sessionIsClosedWhenClientGoesAway() throws IOException {
+        sessionDriver = createSessionDriver(GatewayConfig.SessionThreads.VIRTUAL);
+        when(mockConnection.read(any(ByteBuffer.class))).thenReturn(-1);
+        sessionDriver.start(mockConnection);
+        verify(mockConnection, timeout(5000)).close();
+    }
+
+    @Test
+    public void sessionIsClosedWhenConnectionFails() throws IOException {
+        sessionDriver = createSessionDriver(GatewayConfig.SessionThreads.VIRTUAL);
+        when(mockConnection.read(any(ByteBuffer.class))).thenThrow(new IOException("Connection reset"));
+        sessionDriver.start(mockConnection);
+        verify(mockConnection, timeout(5000)).close();
+    }
+
+    private static BlockingSessionDriver createSessionDriver(GatewayConfig.SessionThreads sessionThreads) {
+        return new BlockingSessionDriver(GatewayConfig.builder().sessionThreads(sessionThreads).build(),
+                GatewayMetrics.disabled(), CompressionControl.disabled(), SessionPipeline.defaultPipeline());
+    }
+
+    private static int blockUntilReleased(CountDownLatch reading, CountDownLatch release) {
+        reading.countDown();
+
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // Shut down at the end of the test. Letting this escape would have the session thread
+            // print it while pinned to its carrier, which can starve every later virtual thread.
+            Thread.currentThread().interrupt();
+        }
+
+        return -1;
+    }
+}
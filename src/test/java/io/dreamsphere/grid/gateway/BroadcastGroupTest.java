@@ -0,0 +1,168 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BroadcastGroupTest {
+    @Mock Connection firstConnection;
+    @Mock Connection secondConnection;
+    private final BroadcastGroup group = new BroadcastGroup();
+
+    private static Socket mockSocket(OutputStream client) throws IOException {
+        Socket socket = mock(Socket.class);
+        when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(socket.getOutputStream()).thenReturn(client);
+        return socket;
+    }
+
+    @Test
+    public void messageIsEncodedOnceAndSharedByAllMembers() throws IOException {
+        group.join(new TelnetConnection(firstConnection));
+        group.join(new TelnetConnection(secondConnection));
+
+        int delivered = group.broadcast(new byte[] {'x', TelnetCodes.CMD_IAC});
+
+        assertThat(delivered, is(2));
+        ArgumentCaptor<ByteBuffer> first = ArgumentCaptor.forClass(ByteBuffer.class);
+        ArgumentCaptor<ByteBuffer> second = ArgumentCaptor.forClass(ByteBuffer.class);
+        verify(firstConnection).sendShared(first.capture());
+        verify(secondConnection).sendShared(second.capture());
+        verify(firstConnection).flushWithoutBlocking();
+        verify(secondConnection).flushWithoutBlocking();
+        assertThat(first.getValue(), is(sameInstance(second.getValue())));
+        assertThat(first.getValue().isReadOnly(), is(true));
+
+        byte[] encoded = new byte[first.getValue().remaining()];
+        first.getValue().duplicate().get(encoded);
+        assertThat(encoded, equalTo(new byte[] {'x', TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC}));
+    }
+
+    @Test
+    public void failedMemberIsDroppedAndTheRestStillReceive() throws IOException {
+        doThrow(new IOException("Broken pipe")).when(firstConnection).sendShared(any(ByteBuffer.class));
+        group.join(new TelnetConnection(firstConnection));
+        group.join(new TelnetConnection(secondConnection));
+
+        int delivered = group.broadcast("update".getBytes("UTF-8"));
+
+        assertThat(delivered, is(1));
+        assertThat(group.size(), is(1));
+        verify(secondConnection).flushWithoutBlocking();
+    }
+
+    @Test(timeout = 10000)
+    public void stalledMemberDoesNotHoldUpTheOthers() throws Exception {
+        CountDownLatch releaseStalled = new CountDownLatch(1);
+        OutputStream stalledClient = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    // A client whose receive window is full
+                    releaseStalled.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        ByteArrayOutputStream healthyClient = new ByteArrayOutputStream();
+        group.join(new TelnetConnection(new TcpConnection(mockSocket(stalledClient))));
+        group.join(new TelnetConnection(new TcpConnection(mockSocket(healthyClient))));
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertThat(group.broadcast("tick".getBytes("UTF-8")), is(2));
+            }
+
+            while (healthyClient.size() < 12) {
+                Thread.sleep(10);
+            }
+
+            assertThat(healthyClient.toString("UTF-8"), is("tickticktick"));
+        } finally {
+            releaseStalled.countDown();
+        }
+    }
+
+    @Test
+    public void membersGetOneBackgroundWriteForAnyNumberOfBroadcasts() throws IOException {
+        // Holds on to the writes rather than run them, so none of them has started yet
+        List<Runnable> writers = new ArrayList<>();
+        ByteArrayOutputStream firstClient = new ByteArrayOutputStream();
+        ByteArrayOutputStream secondClient = new ByteArrayOutputStream();
+        TcpConnection first = new TcpConnection(mockSocket(firstClient), GatewayMetrics.disabled(),
+                ConnectionActivity.untracked(), OutboundLimit.unbounded(), writers::add);
+        TcpConnection second = new TcpConnection(mockSocket(secondClient), GatewayMetrics.disabled(),
+                ConnectionActivity.untracked(), OutboundLimit.unbounded(), writers::add);
+        group.join(new TelnetConnection(first));
+        group.join(new TelnetConnection(second));
+
+        for (int i = 0; i < 3; i++) {
+            group.broadcast("tick".getBytes("UTF-8"));
+        }
+
+        assertThat(writers.size(), is(2));
+
+        for (Runnable writer : writers) {
+            writer.run();
+        }
+
+        assertThat(firstClient.toString("UTF-8"), is("tickticktick"));
+        assertThat(secondClient.toString("UTF-8"), is("tickticktick"));
+
+        // Nothing left to write
+        first.flushWithoutBlocking();
+        second.flushWithoutBlocking();
+        assertThat(writers.size(), is(2));
+
+        group.broadcast("tock".getBytes("UTF-8"));
+        assertThat(writers.size(), is(4));
+    }
+
+    @Test
+    public void sharedMessageCopiesTheCallersArray() throws IOException {
+        byte[] message = "abc".getBytes("UTF-8");
+        SharedMessage shared = SharedMessage.telnet(message);
+        Arrays.fill(message, (byte) 'z');
+
+        byte[] encoded = new byte[shared.length()];
+        shared.data().duplicate().get(encoded);
+        assertThat(encoded, equalTo("abc".getBytes("UTF-8")));
+    }
+}
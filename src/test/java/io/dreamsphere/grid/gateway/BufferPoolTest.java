@@ -0,0 +1,63 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BufferPoolTest {
+    private final BufferPool pool = new BufferPool(1024, 4096);
+
+    @Test
+    public void buffersAreRoundedUpToTheirSizeClass() {
+        assertThat(pool.acquire(1).capacity(), is(64));
+        assertThat(pool.acquire(100).capacity(), is(128));
+        assertThat(pool.acquire(1024).capacity(), is(1024));
+    }
+
+    @Test
+    public void returnedBuffersAreHandedOutAgainCleared() {
+        ByteBuffer buffer = pool.acquire(512);
+        buffer.put((byte) 1).limit(10);
+        pool.release(buffer);
+
+        ByteBuffer again = pool.acquire(500);
+        assertThat(again, sameInstance(buffer));
+        assertThat(again.position(), is(0));
+        assertThat(again.limit(), is(512));
+        assertThat(pool.buffersInUse(), is(1));
+    }
+
+    @Test
+    public void classesGrowOneSlabAtATime() {
+        for (int i = 0; i < 5; i++) {
+            pool.acquire(1024);
+        }
+
+        assertThat(pool.buffersInUse(), is(5));
+        assertThat(pool.allocatedBytes(), is(8192L));
+    }
+
+    @Test
+    public void oversizedAndForeignBuffersAreNotTakenBack() {
+        ByteBuffer oversized = pool.acquire(2048);
+        assertThat(oversized.capacity(), is(2048));
+
+        pool.release(oversized);
+        pool.release(ByteBuffer.allocate(256));
+        pool.release(ByteBuffer.allocateDirect(256));
+
+        assertThat(pool.allocatedBytes(), is(0L));
+        assertThat(pool.acquire(256), not(sameInstance(oversized)));
+    }
+}
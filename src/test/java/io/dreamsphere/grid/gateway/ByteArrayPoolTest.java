@@ -0,0 +1,56 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ByteArrayPoolTest {
+    private final ByteArrayPool pool = new ByteArrayPool(2, 16);
+
+    @Test
+    public void returnedArraysAreHandedOutAgain() {
+        byte[] array = pool.acquire();
+        pool.release(array);
+
+        assertThat(pool.acquire(), sameInstance(array));
+    }
+
+    @Test
+    public void emptyPoolHandsOutFreshArrays() {
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+
+        assertThat(second, not(sameInstance(first)));
+        assertThat(second.length, is(16));
+    }
+
+    @Test
+    public void fullPoolKeepsNoMoreThanItsSize() {
+        byte[] first = new byte[16];
+        byte[] second = new byte[16];
+        pool.release(first);
+        pool.release(second);
+        pool.release(new byte[16]);
+
+        assertThat(pool.acquire(), sameInstance(first));
+        assertThat(pool.acquire(), sameInstance(second));
+        assertThat(pool.acquire(), not(sameInstance(first)));
+    }
+
+    @Test
+    public void arraysOfAnotherSizeAreNotTakenBack() {
+        byte[] wrongSize = new byte[8];
+        pool.release(wrongSize);
+
+        assertThat(pool.acquire().length, is(16));
+    }
+}
@@ -0,0 +1,145 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CompressingConnectionTest {
+    private static final byte[] MARKER = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_COMPRESS2,
+            TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE};
+
+    @Mock Socket mockSocket;
+    @Mock InputStream mockInputStream;
+    private final ByteArrayOutputStream fakeOutputStream = new ByteArrayOutputStream();
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final CompressionControl compressionControl = new CompressionControl(6, 1, metrics);
+    private CompressingConnection connection;
+
+    @Before
+    public void createConnection() throws IOException {
+        when(mockSocket.getInputStream()).thenReturn(mockInputStream);
+        when(mockSocket.getOutputStream()).thenReturn(fakeOutputStream);
+        when(mockSocket.isConnected()).thenReturn(true);
+        connection = new CompressingConnection(new TcpConnection(mockSocket), compressionControl, metrics);
+    }
+
+    @Test
+    public void outputPassesThroughUntilCompressionStarts() throws IOException {
+        connection.send("plain".getBytes("UTF-8"));
+        connection.flush();
+
+        assertThat(fakeOutputStream.toByteArray(), equalTo("plain".getBytes("UTF-8")));
+        assertThat(connection.isCompressing(), is(false));
+    }
+
+    @Test
+    public void everyFlushLeavesAWholeCompressedBatch() throws Exception {
+        Inflater inflater = new Inflater();
+        assertThat(connection.start(MARKER), is(true));
+        connection.send("one ".getBytes("UTF-8"));
+        connection.send(ByteBuffer.wrap("two ".getBytes("UTF-8")));
+        connection.flush();
+
+        byte[] written = fakeOutputStream.toByteArray();
+        assertThat(Arrays.copyOf(written, MARKER.length), equalTo(MARKER));
+        assertThat(inflate(inflater, Arrays.copyOfRange(written, MARKER.length, written.length)), is("one two "));
+
+        fakeOutputStream.reset();
+        connection.send("three".getBytes("UTF-8"));
+        connection.flush();
+
+        // The second batch carries on the same stream
+        assertThat(inflate(inflater, fakeOutputStream.toByteArray()), is("three"));
+    }
+
+    @Test
+    public void finishEndsTheStreamAndLaterOutputIsPlain() throws Exception {
+        Inflater inflater = new Inflater();
+        connection.start(MARKER);
+        connection.send("packed".getBytes("UTF-8"));
+        connection.finish();
+        connection.send("plain".getBytes("UTF-8"));
+        connection.flush();
+
+        byte[] written = fakeOutputStream.toByteArray();
+        byte[] stream = Arrays.copyOfRange(written, MARKER.length, written.length);
+        assertThat(inflate(inflater, stream), is("packed"));
+        assertThat(inflater.finished(), is(true));
+        int plainStart = stream.length - inflater.getRemaining();
+        assertThat(new String(stream, plainStart, stream.length - plainStart, "UTF-8"), is("plain"));
+        assertThat(compressionControl.getCompressors(), is(0));
+    }
+
+    @Test
+    public void sessionsOverTheCapAreNotCompressed() throws IOException {
+        CompressingConnection other = new CompressingConnection(new TcpConnection(mockSocket), compressionControl,
+                metrics);
+        assertThat(connection.start(MARKER), is(true));
+
+        assertThat(other.isAvailable(), is(false));
+        assertThat(other.start(MARKER), is(false));
+
+        connection.close();
+        assertThat(other.start(MARKER), is(true));
+    }
+
+    @Test
+    public void sharedMessagesAreLeftAsTheyWere() throws Exception {
+        ByteBuffer shared = ByteBuffer.wrap("shared".getBytes("UTF-8")).asReadOnlyBuffer();
+        connection.start(MARKER);
+        connection.sendShared(shared);
+        connection.flush();
+
+        byte[] written = fakeOutputStream.toByteArray();
+        assertThat(inflate(new Inflater(), Arrays.copyOfRange(written, MARKER.length, written.length)),
+                is("shared"));
+        assertThat(shared.remaining(), is(6));
+    }
+
+    @Test
+    public void repetitiveOutputShrinksAndIsCounted() throws IOException {
+        byte[] line = "\u001b[1;32mThe grid hums quietly around you.\u001b[0m\r\n".getBytes("UTF-8");
+        connection.start(MARKER);
+
+        for (int i = 0; i < 100; i++) {
+            connection.send(line);
+        }
+
+        connection.flush();
+
+        assertThat(metrics.getCompressionBytesIn(), is(100L * line.length));
+        assertThat(metrics.getCompressionRatio(), greaterThan(10.0));
+        assertThat(metrics.getActiveCompressors(), is(1L));
+    }
+
+    private static String inflate(Inflater inflater, byte[] compressed) throws DataFormatException, IOException {
+        inflater.setInput(compressed);
+        byte[] out = new byte[4096];
+        int length = inflater.inflate(out);
+        return new String(out, 0, length, "UTF-8");
+    }
+}
@@ -0,0 +1,89 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GatewayMetricsTest {
+    @Mock private Socket mockSocket;
+
+    private final GatewayMetrics metrics = new GatewayMetrics();
+
+    @Test
+    public void connectionsRecordTrafficAndTelnetCommands() throws IOException {
+        byte[] input = {'a', 'b', TelnetCodes.CMD_IAC, TelnetCodes.CMD_NOP, TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_ENVIRONMENT_VARIABLES};
+        when(mockSocket.getInputStream()).thenReturn(new ByteArrayInputStream(input));
+        when(mockSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        TelnetConnection telnetConnection = new TelnetConnection(new TcpConnection(mockSocket, metrics), metrics);
+
+        telnetConnection.read(new byte[10]);
+        telnetConnection.send("hello".getBytes("UTF-8"));
+
+        assertThat(metrics.getBytesIn(), is((long) input.length));
+        assertThat(metrics.getMessagesIn(), is(1L));
+        // The WONT reply to the DO plus the message
+        assertThat(metrics.getBytesOut(), is(3L + 5L));
+        assertThat(metrics.getMessagesOut(), is(2L));
+        assertThat(metrics.getIacCommands(), is(2L));
+        assertThat(metrics.getNegotiations(), is(1L));
+    }
+
+    @Test
+    public void liveSessionsFollowConnectionsOpeningAndClosing() throws IOException {
+        when(mockSocket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        TcpConnection tcpConnection = new TcpConnection(mockSocket, metrics);
+        assertThat(metrics.getLiveSessions(), is(1L));
+
+        tcpConnection.close();
+        when(mockSocket.isClosed()).thenReturn(true);
+        tcpConnection.close();
+        assertThat(metrics.getLiveSessions(), is(0L));
+    }
+
+    @Test
+    public void disabledMetricsRecordNothing() {
+        GatewayMetrics disabled = GatewayMetrics.disabled();
+        disabled.recordSend(10);
+        disabled.recordAccept();
+        disabled.sessionOpened();
+        assertThat(disabled.getBytesOut(), is(0L));
+        assertThat(disabled.getAcceptedConnections(), is(0L));
+        assertThat(disabled.getLiveSessions(), is(0L));
+    }
+
+    @Test
+    public void metricsArePublishedOverJmx() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        metrics.recordAccept();
+        metrics.register(server);
+        ObjectName name = new ObjectName(GatewayMetrics.OBJECT_NAME);
+        assertThat(server.getAttribute(name, "AcceptedConnections"), is(1L));
+
+        // A second gateway in the same JVM takes the name over
+        GatewayMetrics replacement = new GatewayMetrics();
+        replacement.register(server);
+        assertThat(server.getAttribute(name, "AcceptedConnections"), is(0L));
+    }
+}
@@ -0,0 +1,129 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import com.google.inject.Guice;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertThat;
+
+public class GatewayTest {
+    private Gateway gateway;
+
+    @After
+    public void closeGateway() throws IOException {
+        if (gateway != null) {
+            gateway.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void plainWiringServesBlockingSessions() throws Exception {
+        gateway = Gateway.create(config(GatewayConfig.Transport.BLOCKING));
+        assertServesBanner();
+    }
+
+    @Test(timeout = 10000)
+    public void plainWiringServesEventLoopSessions() throws Exception {
+        gateway = Gateway.create(config(GatewayConfig.Transport.NIO));
+        assertServesBanner();
+    }
+
+    @Test(timeout = 10000)
+    public void injectorWiringServesBlockingSessions() throws Exception {
+        gateway = Guice.createInjector(Gateway.createModule(config(GatewayConfig.Transport.BLOCKING)))
+                .getInstance(Gateway.class);
+        assertServesBanner();
+    }
+
+    @Test(timeout = 10000)
+    public void injectorWiringServesEventLoopSessions() throws Exception {
+        gateway = Guice.createInjector(Gateway.createModule(config(GatewayConfig.Transport.NIO)))
+                .getInstance(Gateway.class);
+        assertServesBanner();
+    }
+
+    @Test(timeout = 10000)
+    public void blockingSessionsAreRelayedToTheBackend() throws Exception {
+        assertRelaysToBackend(GatewayConfig.Transport.BLOCKING);
+    }
+
+    @Test(timeout = 10000)
+    public void eventLoopSessionsAreRelayedToTheBackend() throws Exception {
+        assertRelaysToBackend(GatewayConfig.Transport.NIO);
+    }
+
+    private static GatewayConfig config(GatewayConfig.Transport transport) {
+        return GatewayConfig.builder().port(0).transport(transport).build();
+    }
+
+    private void assertRelaysToBackend(GatewayConfig.Transport transport) throws Exception {
+        try (StandInGridServer server = new StandInGridServer()) {
+            gateway = Gateway.create(GatewayConfig.builder()
+                    .port(0)
+                    .transport(transport)
+                    .backend("localhost:" + server.getAddress().getPort())
+                    .backendLinks(2)
+                    .build());
+            startGateway();
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), gateway.getLocalPort())) {
+                InputStream input = socket.getInputStream();
+                readUntil(input, StandInGridServer.GREETING);
+                socket.getOutputStream().write("look\r\n".getBytes(StandardCharsets.US_ASCII));
+                assertThat(readUntil(input, "You said: look\n\r"), containsString("You said: look\n\r"));
+            }
+        }
+    }
+
+    private void assertServesBanner() throws IOException {
+        startGateway();
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), gateway.getLocalPort())) {
+            assertThat(readUntil(socket.getInputStream(), "Welcome!"), containsString("Welcome!"));
+        }
+    }
+
+    private void startGateway() throws IOException {
+        gateway.open();
+        Thread acceptor = new Thread(() -> {
+            try {
+                gateway.run();
+            } catch (IOException e) {
+                // Closed at the end of the test
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static String readUntil(InputStream input, String expected) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+
+        while (!received.toString(StandardCharsets.ISO_8859_1).contains(expected)) {
+            int bytesRead = input.read(buffer);
+
+            if (bytesRead < 0) {
+                break;
+            }
+
+            received.write(buffer, 0, bytesRead);
+        }
+
+        return received.toString(StandardCharsets.ISO_8859_1);
+    }
+}
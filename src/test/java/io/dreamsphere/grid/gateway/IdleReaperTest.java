@@ -0,0 +1,101 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class IdleReaperTest {
+    private static final long TICK_MILLIS = 10;
+
+    private final TimingWheel wheel = new TimingWheel("test-reaper", TICK_MILLIS, TimeUnit.MILLISECONDS, 16);
+    private final GatewayMetrics metrics = new GatewayMetrics();
+    private final Connection connection = mock(Connection.class);
+
+    @After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    @Test
+    public void idleConnectionIsClosed() throws Exception {
+        IdleReaper reaper = new IdleReaper(wheel, 5, 0, metrics);
+        reaper.watch(connection, reaper.newActivity());
+
+        verify(connection, timeout(5000)).close();
+        assertThat(metrics.getIdleSessionsReaped(), is(1L));
+        assertThat(metrics.getHalfOpenSessionsReaped(), is(0L));
+    }
+
+    @Test
+    public void activityPostponesTheIdleClose() throws Exception {
+        IdleReaper reaper = new IdleReaper(wheel, 20, 0, metrics);
+        ConnectionActivity activity = reaper.newActivity();
+        reaper.watch(connection, activity);
+
+        // Keep the connection busy for well over the timeout
+        for (int i = 0; i < 40; i++) {
+            activity.readActivity();
+            Thread.sleep(TICK_MILLIS);
+        }
+
+        verify(connection, never()).close();
+        verify(connection, timeout(5000)).close();
+    }
+
+    @Test
+    public void idleHandlerIsRunInsteadOfClosing() throws Exception {
+        IdleReaper reaper = new IdleReaper(wheel, 5, 0, metrics);
+        ConnectionActivity activity = reaper.newActivity();
+        Runnable idleHandler = mock(Runnable.class);
+        activity.setIdleHandler(idleHandler);
+        reaper.watch(connection, activity);
+
+        verify(idleHandler, timeout(5000)).run();
+        verify(connection, never()).close();
+        assertThat(metrics.getIdleSessionsReaped(), is(1L));
+    }
+
+    @Test
+    public void stalledWriteIsClosedAsHalfOpen() throws Exception {
+        IdleReaper reaper = new IdleReaper(wheel, 1000, 5, metrics);
+        ConnectionActivity activity = reaper.newActivity();
+        reaper.watch(connection, activity);
+        activity.writePending();
+
+        verify(connection, timeout(5000)).close();
+        assertThat(metrics.getHalfOpenSessionsReaped(), is(1L));
+        assertThat(metrics.getIdleSessionsReaped(), is(0L));
+    }
+
+    @Test
+    public void closedConnectionIsNoLongerWatched() throws Exception {
+        IdleReaper reaper = new IdleReaper(wheel, 3, 0, metrics);
+        ConnectionActivity activity = reaper.newActivity();
+        reaper.watch(connection, activity);
+        activity.closed();
+
+        Thread.sleep(TICK_MILLIS * 20);
+        verify(connection, never()).close();
+    }
+
+    @Test
+    public void zeroTimeoutsDisableReaping() {
+        IdleReaper reaper = new IdleReaper(wheel, 0, 0, metrics);
+        assertThat(reaper.isEnabled(), is(false));
+        assertThat(reaper.newActivity(), is(ConnectionActivity.untracked()));
+    }
+}
@@ -0,0 +1,58 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        assertThat(histogram.count(), is(0L));
+        assertThat(histogram.valueAt(0.99), is(0L));
+    }
+
+    @Test
+    public void percentilesAreWithinABucketOfTheRecordedValues() {
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        assertThat(histogram.count(), is(1000L));
+        assertWithinBucket(histogram.valueAt(0.5), 500_000);
+        assertWithinBucket(histogram.valueAt(0.99), 990_000);
+        assertWithinBucket(histogram.valueAt(1.0), 1_000_000);
+    }
+
+    @Test
+    public void bucketsCoverTheWholeRange() {
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+        assertThat(histogram.valueAt(0.5), is(0L));
+        assertThat(histogram.valueAt(1.0), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void everyValueFitsItsBucket() {
+        for (long value = 1; value < 100_000; value += 7) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertThat(LatencyHistogram.upperBoundOf(bucket), greaterThanOrEqualTo(value));
+            assertThat(LatencyHistogram.upperBoundOf(bucket - 1), lessThanOrEqualTo(value - 1));
+        }
+    }
+
+    private static void assertWithinBucket(long actual, long expected) {
+        assertThat(actual, greaterThanOrEqualTo(expected));
+        assertThat(actual, lessThanOrEqualTo(expected + expected / 8));
+    }
+}
@@ -0,0 +1,118 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LineAssemblerTest {
+    private final Connection connection = mock(Connection.class);
+    private final LineAssembler lineAssembler = new LineAssembler(16);
+
+    @Test
+    public void everyNvtEndOfLineEndsALine() throws IOException {
+        input("crlf\r\ncrnul\r\0", "lf\ncr\rlast\r\n");
+
+        assertThat(nextLine(), is("crlf"));
+        assertThat(nextLine(), is("crnul"));
+        assertThat(lineAssembler.nextLine(), is(nullValue()));
+        lineAssembler.readFrom(connection);
+        assertThat(nextLine(), is("lf"));
+        assertThat(nextLine(), is("cr"));
+        assertThat(nextLine(), is("last"));
+        assertThat(lineAssembler.nextLine(), is(nullValue()));
+    }
+
+    @Test
+    public void lineSplitAcrossReadsIsJoined() throws IOException {
+        input("lo", "ok\r", "\nnorth\r\n");
+
+        assertThat(lineAssembler.nextLine(), is(nullValue()));
+        lineAssembler.readFrom(connection);
+        // The CR ends the line, the LF that follows in the next read belongs to it
+        assertThat(nextLine(), is("look"));
+        assertThat(lineAssembler.nextLine(), is(nullValue()));
+        lineAssembler.readFrom(connection);
+        assertThat(nextLine(), is("north"));
+        assertThat(lineAssembler.nextLine(), is(nullValue()));
+    }
+
+    @Test
+    public void emptyLinesAreKept() throws IOException {
+        input("\r\n\r\nx\n");
+
+        assertThat(nextLine(), is(""));
+        assertThat(nextLine(), is(""));
+        assertThat(nextLine(), is("x"));
+    }
+
+    @Test
+    public void overlongLineIsCutShortAndTheRestDropped() throws IOException {
+        input("0123456789abcdef", "ghijklmnopqrstuv", "wxyz\r\nnext\r\n");
+
+        assertThat(nextLine(), is("0123456789abcdef"));
+        assertThat(lineAssembler.isTruncated(), is(true));
+        assertThat(lineAssembler.nextLine(), is(nullValue()));
+        lineAssembler.readFrom(connection);
+        assertThat(lineAssembler.nextLine(), is(nullValue()));
+        lineAssembler.readFrom(connection);
+        assertThat(nextLine(), is("next"));
+        assertThat(lineAssembler.isTruncated(), is(false));
+    }
+
+    @Test
+    public void linesAreViewsOfOneBuffer() throws IOException {
+        input("a\nb\n");
+
+        ByteBuffer first = lineAssembler.nextLine();
+        assertThat(lineAssembler.nextLine(), sameInstance(first));
+    }
+
+    @Test
+    public void lastReadCoversTheBytesJustRead() throws IOException {
+        input("par", "tial\n");
+        lineAssembler.nextLine();
+        lineAssembler.readFrom(connection);
+
+        assertThat(StandardCharsets.US_ASCII.decode(lineAssembler.lastRead()).toString(), is("tial\n"));
+    }
+
+    @Test
+    public void endOfStreamIsPassedOn() throws IOException {
+        when(connection.read(any(ByteBuffer.class))).thenReturn(-1);
+
+        assertThat(lineAssembler.readFrom(connection), is(-1));
+        assertThat(lineAssembler.nextLine(), is(nullValue()));
+    }
+
+    // Each chunk is what one read returns, the first one is read straight away
+    private void input(String... chunks) throws IOException {
+        int[] next = new int[1];
+        when(connection.read(any(ByteBuffer.class))).thenAnswer(invocation -> {
+            ByteBuffer buffer = (ByteBuffer) invocation.getArguments()[0];
+            byte[] chunk = chunks[next[0]++].getBytes(StandardCharsets.US_ASCII);
+            buffer.put(chunk);
+            return chunk.length;
+        });
+        lineAssembler.readFrom(connection);
+    }
+
+    private String nextLine() {
+        return StandardCharsets.US_ASCII.decode(lineAssembler.nextLine()).toString();
+    }
+}
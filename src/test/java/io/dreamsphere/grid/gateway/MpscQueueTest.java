@@ -0,0 +1,68 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class MpscQueueTest {
+    private final MpscQueue<Integer> queue = new MpscQueue<>();
+
+    @Test
+    public void elementsComeOutInTheOrderTheyWentIn() {
+        assertThat(queue.poll(), is(nullValue()));
+        queue.offer(1);
+        queue.offer(2);
+        assertThat(queue.poll(), is(1));
+        queue.offer(3);
+        assertThat(queue.poll(), is(2));
+        assertThat(queue.poll(), is(3));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test(timeout = 10000)
+    public void nothingOfferedConcurrentlyIsLostOrReordered() throws InterruptedException {
+        int producers = 4;
+        int elementsPerProducer = 10000;
+        Thread[] threads = new Thread[producers];
+
+        for (int i = 0; i < producers; i++) {
+            int producer = i;
+            threads[i] = new Thread(() -> {
+                for (int element = 0; element < elementsPerProducer; element++) {
+                    queue.offer(producer * elementsPerProducer + element);
+                }
+            });
+            threads[i].start();
+        }
+
+        int[] nextElement = new int[producers];
+        int polled = 0;
+
+        while (polled < producers * elementsPerProducer) {
+            Integer element = queue.poll();
+
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+
+            int producer = element / elementsPerProducer;
+            assertThat(element % elementsPerProducer, is(nextElement[producer]++));
+            polled++;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(queue.poll(), is(nullValue()));
+    }
+}
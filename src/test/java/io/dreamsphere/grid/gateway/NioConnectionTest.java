@@ -0,0 +1,170 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class NioConnectionTest {
+    private ServerSocketChannel serverChannel;
+    private EventLoop eventLoop;
+    private Socket client;
+    private NioConnection nioConnection;
+
+    @Before
+    public void connectLoopback() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        client.setSoTimeout(5000);
+        SocketChannel channel = serverChannel.accept();
+        eventLoop = new EventLoop("test-event-loop");
+        eventLoop.start();
+        nioConnection = new NioConnection(channel, eventLoop);
+    }
+
+    @After
+    public void closeLoopback() throws IOException {
+        nioConnection.close();
+        client.close();
+        serverChannel.close();
+        eventLoop.shutdown();
+    }
+
+    @Test
+    public void sendWritesToChannel() throws IOException {
+        byte[] rawMessage = "abc123[]!@#$".getBytes("UTF-8");
+        nioConnection.send(rawMessage);
+        nioConnection.flush();
+        assertThat(readFromClient(rawMessage.length), equalTo(rawMessage));
+    }
+
+    @Test
+    public void sendCanWritePartialBuffer() throws IOException {
+        byte[] rawMessage = "abc123[]!@#$".getBytes("UTF-8");
+        nioConnection.send(rawMessage, 5);
+        nioConnection.send(rawMessage, 1);
+        nioConnection.flush();
+        assertThat(readFromClient(6), equalTo("abc12a".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void sendQueuesWhatTheSocketCannotTakeImmediately() throws IOException {
+        byte[] rawMessage = new byte[4 * 1024 * 1024];
+        Arrays.fill(rawMessage, (byte) 'x');
+        rawMessage[rawMessage.length - 1] = 'y';
+        nioConnection.send(rawMessage);
+        nioConnection.flush();
+        assertThat(readFromClient(rawMessage.length), equalTo(rawMessage));
+    }
+
+    @Test
+    public void gatheringSendWritesBuffersInOrder() throws IOException {
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put("def".getBytes("UTF-8")).flip();
+        nioConnection.send(new ByteBuffer[] { ByteBuffer.wrap("abc".getBytes("UTF-8")), direct });
+        nioConnection.flush();
+        assertThat(readFromClient(6), equalTo("abcdef".getBytes("UTF-8")));
+        assertThat(direct.hasRemaining(), is(false));
+    }
+
+    @Test
+    public void readReturnsZeroWhenNoDataIsPending() throws IOException {
+        assertThat(nioConnection.read(new byte[10]), is(0));
+    }
+
+    @Test
+    public void readHandlerIsCalledWhenDataArrives() throws Exception {
+        CountDownLatch readReady = new CountDownLatch(1);
+        byte[] buffer = new byte[10];
+        int[] bytesRead = new int[1];
+        nioConnection.onReadable(() -> {
+            bytesRead[0] = nioConnection.read(buffer);
+            readReady.countDown();
+        });
+        client.getOutputStream().write(new byte[]{1, 2, 3});
+        assertTrue(readReady.await(5, TimeUnit.SECONDS));
+        assertThat(bytesRead[0], is(3));
+        assertThat(Arrays.copyOfRange(buffer, 0, 3), equalTo(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void readDetectsEndOfStreamByReturningNegativeOne() throws Exception {
+        CountDownLatch readReady = new CountDownLatch(1);
+        int[] bytesRead = new int[1];
+        nioConnection.onReadable(() -> {
+            bytesRead[0] = nioConnection.read(new byte[10]);
+            readReady.countDown();
+        });
+        client.close();
+        assertTrue(readReady.await(5, TimeUnit.SECONDS));
+        assertThat(bytesRead[0], is(-1));
+    }
+
+    @Test
+    public void sendIsHeldBackUntilFlush() throws IOException {
+        nioConnection.send("abc".getBytes("UTF-8"));
+        nioConnection.send("def".getBytes("UTF-8"));
+        assertThat(client.getInputStream().available(), is(0));
+        nioConnection.flush();
+        assertThat(readFromClient(6), equalTo("abcdef".getBytes("UTF-8")));
+    }
+
+    @Test(expected = IOException.class)
+    public void sendOnClosedConnectionThrowsIOException() throws IOException {
+        nioConnection.close();
+        nioConnection.send(new byte[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void readOnClosedConnectionThrowsIOException() throws IOException {
+        nioConnection.close();
+        nioConnection.read(new byte[1]);
+    }
+
+    @Test
+    public void closingAnAlreadyClosedConnectionDoesNothing() throws IOException {
+        nioConnection.close();
+        nioConnection.close();
+    }
+
+    private byte[] readFromClient(int length) throws IOException {
+        byte[] received = new byte[length];
+        InputStream inputStream = client.getInputStream();
+        int offset = 0;
+
+        while (offset < length) {
+            int bytesRead = inputStream.read(received, offset, length - offset);
+
+            if (bytesRead < 0) {
+                break;
+            }
+
+            offset += bytesRead;
+        }
+
+        return received;
+    }
+}
@@ -0,0 +1,85 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class NioListenerTest {
+    @Mock private Connection mockConnection;
+    @Mock private ConnectionProvider mockConnectionProvider;
+
+    private ServerSocketChannel serverChannel;
+    private NioListener nioListener;
+
+    @Before
+    public void createNioListener() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        nioListener = new NioListener(serverChannel, mockConnectionProvider);
+    }
+
+    @After
+    public void closeNioListener() throws IOException {
+        nioListener.close();
+    }
+
+    @Test
+    public void openBindsServerChannel() throws IOException {
+        nioListener.open(0, 50);
+        assertThat(serverChannel.socket().isBound(), is(true));
+    }
+
+    @Test(expected = IOException.class)
+    public void openWhenChannelIsBoundThrowsIOException() throws IOException {
+        nioListener.open(0, 50);
+        nioListener.open(0, 50);
+    }
+
+    @Test
+    public void closeClosesServerChannel() throws IOException {
+        nioListener.close();
+        assertThat(serverChannel.isOpen(), is(false));
+    }
+
+    @Test(expected = IOException.class)
+    public void getNextConnectionThrowsIOExceptionIfChannelIsNotBound() throws IOException {
+        nioListener.getNextConnection();
+    }
+
+    @Test(expected = IOException.class)
+    public void getNextConnectionThrowsIOExceptionIfChannelIsClosed() throws IOException {
+        nioListener.open(0, 50);
+        nioListener.close();
+        nioListener.getNextConnection();
+    }
+
+    @Test
+    public void getNextConnectionUsesConnectionProviderToCreateConnection() throws IOException {
+        when(mockConnectionProvider.get(any(Socket.class))).thenReturn(mockConnection);
+        nioListener.open(0, 50);
+
+        try (Socket ignored = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort())) {
+            Connection actualConnection = nioListener.getNextConnection();
+            assertThat(actualConnection, is(mockConnection));
+        }
+    }
+}
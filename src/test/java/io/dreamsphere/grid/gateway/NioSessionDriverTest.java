@@ -0,0 +1,81 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class NioSessionDriverTest {
+    private final AdmissionControl admissionControl = new AdmissionControl(0, 0, 1, GatewayMetrics.disabled());
+    private ServerSocketChannel serverChannel;
+    private EventLoop eventLoop;
+    private Socket client;
+    private NioConnection nioConnection;
+
+    @Before
+    public void connectLoopback() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        client.setSoTimeout(5000);
+        eventLoop = new EventLoop("test-event-loop");
+        eventLoop.start();
+        admissionControl.admit(client.getLocalAddress());
+        nioConnection = new NioConnection(serverChannel.accept(), eventLoop, GatewayMetrics.disabled(),
+                ConnectionActivity.untracked(admissionControl::sessionClosed), OutboundLimit.unbounded());
+    }
+
+    @After
+    public void closeLoopback() throws IOException {
+        nioConnection.close();
+        client.close();
+        serverChannel.close();
+        eventLoop.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void handlerThatThrowsClosesTheSessionAndGivesBackItsPlace() throws IOException {
+        SessionHandler handler = mock(SessionHandler.class);
+        doThrow(new IllegalStateException("handler bug"))
+                .when(handler).lineReceived(any(GatewaySession.class), any(ByteBuffer.class), anyBoolean());
+        NioSessionDriver sessionDriver = new NioSessionDriver(GatewayMetrics.disabled(),
+                TelnetOptionPolicy.refuseAll(), CompressionControl.disabled(), GatewaySession.DEFAULT_MAX_LINE_LENGTH,
+                new SessionPipeline(Runnable::run, handler));
+        sessionDriver.start(nioConnection);
+
+        OutputStream out = client.getOutputStream();
+        out.write("look\r\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        verify(handler, timeout(5000)).closed(any(GatewaySession.class));
+        assertThat(admissionControl.getSessions(), is(0));
+
+        // Nothing but the end of the stream reaches the client once the session is closed
+        while (client.getInputStream().read() >= 0) {
+            // Skip whatever the session sent before it failed
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class OutboundQueueTest {
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+
+    @Test
+    public void smallMessagesAreCoalescedIntoOneWrite() throws IOException {
+        CountingOutputStream outputStream = new CountingOutputStream();
+
+        for (int i = 0; i < 100; i++) {
+            outboundQueue.add(ByteBuffer.wrap(new byte[] { (byte) i, (byte) i }));
+        }
+
+        assertThat(outboundQueue.pendingBytes(), is(200L));
+        outboundQueue.writeTo(outputStream);
+        assertThat(outputStream.writes, is(1));
+        assertThat(outputStream.size(), is(200));
+        assertThat(outboundQueue.isEmpty(), is(true));
+    }
+
+    @Test
+    public void addConsumesTheMessageAndCopiesIt() throws IOException {
+        ByteBuffer message = ByteBuffer.allocateDirect(3);
+        message.put("abc".getBytes("UTF-8")).flip();
+        outboundQueue.add(message);
+        assertThat(message.hasRemaining(), is(false));
+
+        // Reusing the caller's buffer must not change what was queued
+        message.clear();
+        message.put("xyz".getBytes("UTF-8"));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outboundQueue.writeTo(outputStream);
+        assertThat(outputStream.toByteArray(), equalTo("abc".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void messagesLargerThanAChunkKeepTheirOrder() throws IOException {
+        byte[] large = new byte[OutboundQueue.CHUNK_SIZE * 3];
+        Arrays.fill(large, (byte) 'x');
+        outboundQueue.add(ByteBuffer.wrap("a".getBytes("UTF-8")));
+        outboundQueue.add(ByteBuffer.wrap(large));
+        outboundQueue.add(ByteBuffer.wrap("b".getBytes("UTF-8")));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outboundQueue.writeTo(outputStream);
+        byte[] written = outputStream.toByteArray();
+        assertThat(written.length, is(large.length + 2));
+        assertThat(written[0], is((byte) 'a'));
+        assertThat(written[written.length - 1], is((byte) 'b'));
+    }
+
+    @Test
+    public void partialChannelWritesLeaveTheRestQueued() throws IOException {
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        byte[] message = new byte[4 * 1024 * 1024];
+        outboundQueue.add(ByteBuffer.wrap(message));
+
+        boolean flushed = outboundQueue.writeTo(pipe.sink());
+
+        assertThat(flushed, is(false));
+        assertThat(outboundQueue.pendingBytes() > 0, is(true));
+        assertThat(outboundQueue.pendingBytes() < message.length, is(true));
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    @Test
+    public void queueCanBeReusedAfterDraining() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outboundQueue.add(ByteBuffer.wrap("abc".getBytes("UTF-8")));
+        outboundQueue.writeTo(outputStream);
+        outboundQueue.add(ByteBuffer.wrap("def".getBytes("UTF-8")));
+        outboundQueue.writeTo(outputStream);
+        assertThat(outputStream.toByteArray(), equalTo("abcdef".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void sharedMessagesAreQueuedWithoutTouchingTheBuffer() throws IOException {
+        ByteBuffer shared = ByteBuffer.wrap("shared".getBytes("UTF-8")).asReadOnlyBuffer();
+        OutboundQueue otherQueue = new OutboundQueue();
+        outboundQueue.add(ByteBuffer.wrap("a".getBytes("UTF-8")));
+        outboundQueue.addShared(shared);
+        outboundQueue.add(ByteBuffer.wrap("b".getBytes("UTF-8")));
+        otherQueue.addShared(shared);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outboundQueue.writeTo(outputStream);
+        assertThat(outputStream.toByteArray(), equalTo("asharedb".getBytes("UTF-8")));
+        assertThat(shared.position(), is(0));
+
+        Pipe pipe = Pipe.open();
+        assertThat(otherQueue.writeTo(pipe.sink()), is(true));
+        ByteBuffer received = ByteBuffer.allocate(16);
+        pipe.source().read(received);
+        assertThat(Arrays.copyOf(received.array(), received.position()), equalTo("shared".getBytes("UTF-8")));
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    @Test
+    public void sharedChunksAreNeverReused() throws IOException {
+        ByteBuffer shared = ByteBuffer.wrap(new byte[OutboundQueue.CHUNK_SIZE]).asReadOnlyBuffer();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outboundQueue.addShared(shared);
+        outboundQueue.writeTo(outputStream);
+
+        // Would fail with a ReadOnlyBufferException if the shared chunk had been kept as the spare
+        outboundQueue.add(ByteBuffer.wrap("abc".getBytes("UTF-8")));
+        outputStream.reset();
+        outboundQueue.writeTo(outputStream);
+        assertThat(outputStream.toByteArray(), equalTo("abc".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void dropOldestKeepsTheQueueUnderTheHighWaterMark() throws IOException {
+        GatewayMetrics metrics = new GatewayMetrics();
+        OutboundQueue boundedQueue = new OutboundQueue(
+                new OutboundLimit(GatewayConfig.SlowConsumerPolicy.DROP_OLDEST, 10, 0), metrics);
+
+        for (String message : new String[] { "aaaa", "bbbb", "cccc", "dddd" }) {
+            boundedQueue.add(ByteBuffer.wrap(message.getBytes("UTF-8")));
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        boundedQueue.writeTo(outputStream);
+        assertThat(outputStream.toByteArray(), equalTo("ccccdddd".getBytes("UTF-8")));
+        assertThat(metrics.getDroppedMessages(), is(2L));
+        assertThat(metrics.getQueuedOutboundBytes(), is(0L));
+    }
+
+    @Test
+    public void coalesceKeepsOnlyTheNewestMessage() throws IOException {
+        OutboundQueue boundedQueue = new OutboundQueue(
+                new OutboundLimit(GatewayConfig.SlowConsumerPolicy.COALESCE, 10, 0), GatewayMetrics.disabled());
+
+        for (String message : new String[] { "aaaa", "bbbb", "cccc" }) {
+            boundedQueue.add(ByteBuffer.wrap(message.getBytes("UTF-8")));
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        boundedQueue.writeTo(outputStream);
+        assertThat(outputStream.toByteArray(), equalTo("cccc".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void partlyWrittenMessageIsNeverDropped() throws IOException {
+        OutboundQueue boundedQueue = new OutboundQueue(
+                new OutboundLimit(GatewayConfig.SlowConsumerPolicy.DROP_OLDEST, 8, 0), GatewayMetrics.disabled());
+        TricklingChannel channel = new TricklingChannel();
+        boundedQueue.add(ByteBuffer.wrap("aaaa".getBytes("UTF-8")));
+        boundedQueue.add(ByteBuffer.wrap("bbbb".getBytes("UTF-8")));
+        channel.allowance = 2;
+        boundedQueue.writeTo(channel);
+
+        // The rest of aaaa is owed to the client, bbbb goes instead
+        boundedQueue.add(ByteBuffer.wrap("cccc".getBytes("UTF-8")));
+        channel.allowance = Integer.MAX_VALUE;
+        assertThat(boundedQueue.writeTo(channel), is(true));
+        assertThat(channel.written.toByteArray(), equalTo("aaaacccc".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void messagesInFlightAreLeftAlone() throws IOException {
+        OutboundQueue boundedQueue = new OutboundQueue(
+                new OutboundLimit(GatewayConfig.SlowConsumerPolicy.COALESCE, 4, 0), GatewayMetrics.disabled());
+        boundedQueue.add(ByteBuffer.wrap("aaaa".getBytes("UTF-8")));
+        int chunks = boundedQueue.beginWrite();
+
+        boundedQueue.add(ByteBuffer.wrap("bbbb".getBytes("UTF-8")));
+        boundedQueue.add(ByteBuffer.wrap("cccc".getBytes("UTF-8")));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        boundedQueue.writeInFlight(outputStream, chunks);
+        boundedQueue.finishWrite(chunks);
+        assertThat(boundedQueue.pendingBytes(), is(4L));
+        boundedQueue.writeTo(outputStream);
+        assertThat(outputStream.toByteArray(), equalTo("aaaacccc".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void stallIsReportedOnceOverTheMarkForTheAllowedTime() throws IOException {
+        OutboundQueue boundedQueue = new OutboundQueue(
+                new OutboundLimit(GatewayConfig.SlowConsumerPolicy.DISCONNECT, 4, 0), GatewayMetrics.disabled());
+        boundedQueue.add(ByteBuffer.wrap("aaaa".getBytes("UTF-8")));
+        assertThat(boundedQueue.isStalled(), is(false));
+
+        boundedQueue.add(ByteBuffer.wrap("b".getBytes("UTF-8")));
+        assertThat(boundedQueue.isStalled(), is(false));
+        assertThat(boundedQueue.isStalled(), is(true));
+
+        boundedQueue.writeTo(new ByteArrayOutputStream());
+        assertThat(boundedQueue.isStalled(), is(false));
+    }
+
+    // Takes no more than its allowance on every write
+    private static final class TricklingChannel implements GatheringByteChannel {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private int allowance;
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long total = 0;
+
+            for (int i = offset; i < offset + length && allowance > 0; i++) {
+                while (sources[i].hasRemaining() && allowance > 0) {
+                    written.write(sources[i].get());
+                    allowance--;
+                    total++;
+                }
+            }
+
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] { source });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class CountingOutputStream extends ByteArrayOutputStream {
+        private int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Measures what a connected but idle session costs, which is what most sessions are at any moment.
+ */
+public class SessionFootprintTest {
+    private static final int SESSIONS = 10000;
+    private static final int READ_BUFFER_SIZE = 1024;
+    // Before buffers were pooled every session held a direct read buffer and a line buffer of its own
+    private static final int DEDICATED_BUFFER_BYTES = READ_BUFFER_SIZE + GatewaySession.DEFAULT_MAX_LINE_LENGTH;
+
+    @Test
+    public void idleSessionsHoldNoBuffers() throws IOException {
+        int readBuffersInUse = TelnetConnection.READ_BUFFERS.buffersInUse();
+        int lineBuffersInUse = LineAssembler.LINE_BUFFERS.buffersInUse();
+        long heapBefore = usedHeap();
+        long directBefore = usedDirectMemory();
+        List<GatewaySession> sessions = new ArrayList<>(SESSIONS);
+
+        for (int i = 0; i < SESSIONS; i++) {
+            GatewaySession session = new GatewaySession(new TelnetConnection(new IdleConnection(), READ_BUFFER_SIZE));
+            // Every session has been through a read that found nothing, as it would on the event loop
+            assertThat(session.process(), is(0));
+            sessions.add(session);
+        }
+
+        long heapPerSession = (usedHeap() - heapBefore) / SESSIONS;
+        long directPerSession = (usedDirectMemory() - directBefore) / SESSIONS;
+        System.out.println(String.format("Idle session footprint: %d bytes of heap and %d bytes of direct memory, "
+                + "down from %d bytes of dedicated buffers on top of the heap", heapPerSession, directPerSession,
+                DEDICATED_BUFFER_BYTES));
+
+        assertThat(TelnetConnection.READ_BUFFERS.buffersInUse(), is(readBuffersInUse));
+        assertThat(LineAssembler.LINE_BUFFERS.buffersInUse(), is(lineBuffersInUse));
+        assertThat(directPerSession, lessThan((long) READ_BUFFER_SIZE));
+        assertThat(sessions.size(), is(SESSIONS));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirectMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+
+        return 0;
+    }
+
+    // A non-blocking connection with nothing to read
+    private static class IdleConnection implements Connection {
+        @Override
+        public void send(byte[] message) {
+        }
+
+        @Override
+        public void send(byte[] message, int length) {
+        }
+
+        @Override
+        public void send(ByteBuffer message) {
+            message.position(message.limit());
+        }
+
+        @Override
+        public void send(ByteBuffer[] messages) {
+            for (ByteBuffer message : messages) {
+                send(message);
+            }
+        }
+
+        @Override
+        public void sendShared(ByteBuffer message) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public int read(byte[] buffer) {
+            return 0;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int readAvailable() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SessionPipelineTest {
+    @Mock Socket mockSocket;
+    private final ByteArrayOutputStream fakeOutputStream = new ByteArrayOutputStream();
+
+    @Test
+    public void consumedLineStopsAtItsHandler() throws IOException {
+        List<String> seen = new ArrayList<>();
+        SessionHandler reader = new SessionHandler() {
+            @Override
+            public boolean lineReceived(GatewaySession session, ByteBuffer line, boolean truncated) {
+                seen.add(StandardCharsets.UTF_8.decode(line).toString());
+                return false;
+            }
+        };
+        SessionHandler consumer = new SessionHandler() {
+            @Override
+            public boolean lineReceived(GatewaySession session, ByteBuffer line, boolean truncated) {
+                seen.add(StandardCharsets.UTF_8.decode(line).toString());
+                return true;
+            }
+        };
+        SessionHandler last = mock(SessionHandler.class);
+
+        SessionPipeline pipeline = new SessionPipeline(Runnable::run, reader, consumer, last);
+        pipeline.lineReceived(null, ByteBuffer.wrap("look".getBytes(StandardCharsets.UTF_8)), false);
+
+        // The first handler read the whole line, the second still sees all of it
+        assertThat(seen, contains("look", "look"));
+        verify(last, never()).lineReceived(any(GatewaySession.class), any(ByteBuffer.class), anyBoolean());
+    }
+
+    @Test
+    public void everyHandlerHearsOfTheCloseOnce() throws IOException {
+        SessionHandler failing = mock(SessionHandler.class);
+        SessionHandler last = mock(SessionHandler.class);
+        GatewaySession session = createSession(new byte[0], new SessionPipeline(Runnable::run, failing, last));
+        doThrow(new IllegalStateException("broken")).when(failing).closed(session);
+
+        session.close();
+        session.close();
+
+        verify(last, times(1)).closed(session);
+        verify(mockSocket).close();
+    }
+
+    @Test
+    public void offloadedResultIsSentFromTheSession() throws IOException {
+        SessionHandler lookup = new SessionHandler() {
+            @Override
+            public boolean lineReceived(GatewaySession session, ByteBuffer line, boolean truncated) {
+                String name = StandardCharsets.UTF_8.decode(line).toString();
+                session.offload(() -> "Found " + name + "\n\r", session::send);
+                return true;
+            }
+        };
+        GatewaySession session = createSession("bob\r\n".getBytes(StandardCharsets.UTF_8),
+                new SessionPipeline(Runnable::run, lookup));
+
+        session.process();
+
+        assertThat(new String(fakeOutputStream.toByteArray(), StandardCharsets.UTF_8), is("Found bob\n\r"));
+    }
+
+    @Test
+    public void failedOffloadClosesTheSession() throws IOException {
+        SessionHandler handler = mock(SessionHandler.class);
+        GatewaySession session = createSession(new byte[0], new SessionPipeline(Runnable::run, handler));
+
+        session.offload(() -> {
+            throw new IOException("database down");
+        }, result -> session.send("never"));
+
+        assertThat(session.isClosed(), is(true));
+        verify(handler).closed(session);
+    }
+
+    @Test
+    public void completionThatThrowsClosesTheSession() throws IOException {
+        SessionHandler handler = mock(SessionHandler.class);
+        GatewaySession session = createSession(new byte[0], new SessionPipeline(Runnable::run, handler));
+
+        session.offload(() -> "found", result -> {
+            throw new IllegalStateException("handler bug");
+        });
+
+        assertThat(session.isClosed(), is(true));
+        verify(handler).closed(session);
+    }
+
+    @Test
+    public void idleSessionIsToldBeforeItCloses() throws IOException {
+        SessionHandler handler = mock(SessionHandler.class);
+        GatewaySession session = createSession(new byte[0], new SessionPipeline(Runnable::run, handler));
+
+        session.idle();
+
+        InOrder order = inOrder(handler);
+        order.verify(handler).idle(session);
+        order.verify(handler).closed(session);
+        assertThat(session.isClosed(), is(true));
+    }
+
+    @Test
+    public void windowSizeReachesHandlersOnceTheReadIsDone() throws IOException {
+        byte[] command = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_WINDOW_SIZE,
+                0, 80, 0, 24,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE
+        };
+        SessionHandler handler = mock(SessionHandler.class);
+        GatewaySession session = createSession(command, new SessionPipeline(Runnable::run, handler));
+        session.open();
+
+        session.process();
+
+        verify(handler).windowSizeChanged(session, 80, 24);
+    }
+
+    private GatewaySession createSession(byte[] input, SessionPipeline pipeline) throws IOException {
+        when(mockSocket.getInputStream()).thenReturn(new ByteArrayInputStream(input));
+        when(mockSocket.getOutputStream()).thenReturn(fakeOutputStream);
+        when(mockSocket.isConnected()).thenReturn(true);
+        TelnetConnection telnetConnection = new TelnetConnection(new TcpConnection(mockSocket));
+        return new GatewaySession(telnetConnection, GatewaySession.DEFAULT_MAX_LINE_LENGTH, pipeline, Runnable::run);
+    }
+}
@@ -0,0 +1,224 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A grid server that speaks the backend framing, for tests. It greets every session, answers every
+ * line it is sent, and grants credit for its input as it reads it, unless told to hold it back.
+ * Sessions are told apart by id alone, so tests that look into them use a single link.
+ */
+final class StandInGridServer implements AutoCloseable {
+    static final String GREETING = "Welcome to the grid\n\r";
+
+    private final ServerSocket serverSocket;
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private final AtomicInteger linksAccepted = new AtomicInteger();
+    private final Map<Integer, StringBuilder> input = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> creditReceived = new ConcurrentHashMap<>();
+    private final Map<Integer, Boolean> closedSessions = new ConcurrentHashMap<>();
+    private volatile boolean withholdCredit;
+
+    StandInGridServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptUntilClosed, "stand-in-grid");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    int getLinksAccepted() {
+        return linksAccepted.get();
+    }
+
+    String inputOf(int sessionId) {
+        StringBuilder sessionInput = input.get(sessionId);
+
+        if (sessionInput == null) {
+            return "";
+        }
+
+        synchronized (sessionInput) {
+            return sessionInput.toString();
+        }
+    }
+
+    int creditFrom(int sessionId) {
+        AtomicInteger credit = creditReceived.get(sessionId);
+        return credit == null ? 0 : credit.get();
+    }
+
+    boolean isClosed(int sessionId) {
+        return closedSessions.containsKey(sessionId);
+    }
+
+    // Credit held back is granted in one frame per session once this is turned off again
+    void withholdCredit(boolean withhold) throws IOException {
+        withholdCredit = withhold;
+
+        if (!withhold) {
+            for (Link link : links) {
+                link.grantWithheldCredit();
+            }
+        }
+    }
+
+    void send(int sessionId, byte[] data) throws IOException {
+        for (Link link : links) {
+            link.sendFrame(sessionId, BackendFrames.DATA, data);
+        }
+    }
+
+    // Drops every link as if the server had gone down, but keeps accepting new ones
+    void dropLinks() throws IOException {
+        for (Link link : links) {
+            link.socket.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        dropLinks();
+    }
+
+    private void acceptUntilClosed() {
+        try {
+            while (true) {
+                Link link = new Link(serverSocket.accept());
+                links.add(link);
+                linksAccepted.incrementAndGet();
+                Thread reader = new Thread(link::readUntilClosed, "stand-in-grid-link");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            // Closed at the end of the test
+        }
+    }
+
+    private final class Link {
+        private final Socket socket;
+        private final DataOutputStream output;
+        private final Map<Integer, Integer> withheld = new ConcurrentHashMap<>();
+        // Input since the last line end, only touched by the link's reader
+        private final Map<Integer, StringBuilder> partialLines = new HashMap<>();
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = new DataOutputStream(socket.getOutputStream());
+        }
+
+        void readUntilClosed() {
+            try (DataInputStream frames = new DataInputStream(socket.getInputStream())) {
+                while (true) {
+                    int length = frames.readInt();
+                    int sessionId = frames.readInt();
+                    byte type = frames.readByte();
+                    byte[] payload = new byte[length - (BackendFrames.HEADER_BYTES - 4)];
+                    frames.readFully(payload);
+                    frameReceived(sessionId, type, payload);
+                }
+            } catch (EOFException e) {
+                // The gateway closed the link
+            } catch (IOException e) {
+                // Dropped by the test
+            }
+        }
+
+        private void frameReceived(int sessionId, byte type, byte[] payload) throws IOException {
+            switch (type) {
+                case BackendFrames.OPEN:
+                    input.put(sessionId, new StringBuilder());
+                    sendFrame(sessionId, BackendFrames.DATA, GREETING.getBytes(StandardCharsets.UTF_8));
+                    break;
+                case BackendFrames.DATA:
+                    dataReceived(sessionId, new String(payload, StandardCharsets.UTF_8));
+                    grantCredit(sessionId, payload.length);
+                    break;
+                case BackendFrames.CREDIT:
+                    creditReceived.computeIfAbsent(sessionId, id -> new AtomicInteger())
+                            .addAndGet(((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16)
+                                    | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff));
+                    break;
+                case BackendFrames.CLOSE:
+                    closedSessions.put(sessionId, true);
+                    break;
+                default:
+                    throw new IOException("Unknown frame type " + type);
+            }
+        }
+
+        private void dataReceived(int sessionId, String data) throws IOException {
+            StringBuilder sessionInput = input.computeIfAbsent(sessionId, id -> new StringBuilder());
+            StringBuilder unanswered = partialLines.computeIfAbsent(sessionId, id -> new StringBuilder());
+
+            synchronized (sessionInput) {
+                sessionInput.append(data);
+            }
+
+            unanswered.append(data);
+            int lineEnd;
+
+            while ((lineEnd = unanswered.indexOf("\r\n")) >= 0) {
+                String line = unanswered.substring(0, lineEnd);
+                unanswered.delete(0, lineEnd + 2);
+                byte[] answer = ("You said: " + line + "\n\r").getBytes(StandardCharsets.UTF_8);
+                sendFrame(sessionId, BackendFrames.DATA, answer);
+            }
+        }
+
+        private void grantCredit(int sessionId, int credit) throws IOException {
+            if (withholdCredit) {
+                withheld.merge(sessionId, credit, Integer::sum);
+            } else {
+                sendCredit(sessionId, credit);
+            }
+        }
+
+        void grantWithheldCredit() throws IOException {
+            for (Integer sessionId : withheld.keySet()) {
+                Integer credit = withheld.remove(sessionId);
+
+                if (credit != null) {
+                    sendCredit(sessionId, credit);
+                }
+            }
+        }
+
+        private void sendCredit(int sessionId, int credit) throws IOException {
+            sendFrame(sessionId, BackendFrames.CREDIT, new byte[] {
+                    (byte) (credit >>> 24), (byte) (credit >>> 16), (byte) (credit >>> 8), (byte) credit});
+        }
+
+        synchronized void sendFrame(int sessionId, byte type, byte[] payload) throws IOException {
+            output.writeInt(BackendFrames.HEADER_BYTES - 4 + payload.length);
+            output.writeInt(sessionId);
+            output.writeByte(type);
+            output.write(payload);
+            output.flush();
+        }
+    }
+}
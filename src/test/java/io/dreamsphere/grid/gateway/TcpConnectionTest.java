@@ -15,12 +15,19 @@ import org.mockito.runners.MockitoJUnitRunner;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -47,6 +54,7 @@ public class TcpConnectionTest {
         String testMessage = "abc123[]!@#$%^&()-=_+\n \tàèìòùÀÈÌÒÙáéíóúýÁÉÍÓÚÝ";
         byte[] rawMessage = testMessage.getBytes("UTF-8");
         tcpConnection.send(rawMessage);
+        tcpConnection.flush();
         byte[] actualMessage = testOutputStream.toByteArray();
         assertThat(actualMessage, equalTo(rawMessage));
     }
@@ -56,10 +64,20 @@ public class TcpConnectionTest {
         String testMessage = "abc123[]!@#$";
         byte[] rawMessage = testMessage.getBytes("UTF-8");
         tcpConnection.send(rawMessage,5);
+        tcpConnection.flush();
         byte[] actualMessage = testOutputStream.toByteArray();
         assertThat(actualMessage, equalTo("abc12".getBytes()));
     }
 
+    @Test
+    public void sendIsHeldBackUntilFlush() throws IOException {
+        tcpConnection.send("abc".getBytes("UTF-8"));
+        tcpConnection.send("def".getBytes("UTF-8"));
+        assertThat(testOutputStream.size(), is(0));
+        tcpConnection.flush();
+        assertThat(testOutputStream.toByteArray(), equalTo("abcdef".getBytes("UTF-8")));
+    }
+
     @Test
     public void closeClosesSocket() throws IOException {
         tcpConnection.close();
@@ -130,4 +148,165 @@ public class TcpConnectionTest {
         when(mockSocket.isClosed()).thenReturn(true);
         tcpConnection.readAvailable();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void sendWritesTheRemainderOfADirectBuffer() throws IOException {
+        ByteBuffer message = ByteBuffer.allocateDirect(6);
+        message.put("xabcde".getBytes("UTF-8")).flip().position(1);
+        tcpConnection.send(message);
+        tcpConnection.flush();
+        assertThat(testOutputStream.toByteArray(), equalTo("abcde".getBytes("UTF-8")));
+        assertThat(message.hasRemaining(), is(false));
+    }
+
+    @Test
+    public void gatheringSendWritesBuffersInOrder() throws IOException {
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put("def".getBytes("UTF-8")).flip();
+        tcpConnection.send(new ByteBuffer[] { ByteBuffer.wrap("abc".getBytes("UTF-8")), direct });
+        tcpConnection.flush();
+        assertThat(testOutputStream.toByteArray(), equalTo("abcdef".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void readFillsADirectBuffer() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(10);
+        int bytesRead = tcpConnection.read(buffer);
+        assertThat(bytesRead, is(testBytes.length));
+        assertThat(buffer.position(), is(testBytes.length));
+        buffer.flip();
+        byte[] actualBytes = new byte[buffer.remaining()];
+        buffer.get(actualBytes);
+        assertThat(actualBytes, equalTo(testBytes));
+    }
+
+    @Test
+    public void readThatWaitsForTheClientIsNotTimed() throws IOException {
+        InputStream typingClient = new InputStream() {
+            @Override
+            public int read() {
+                return 'a';
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    // The client thinks before typing
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+
+                b[off] = 'a';
+                return 1;
+            }
+        };
+        when(mockSocket.getInputStream()).thenReturn(typingClient);
+        GatewayMetrics metrics = new GatewayMetrics();
+        TcpConnection timedConnection = new TcpConnection(mockSocket, metrics);
+
+        timedConnection.read(new byte[1]);
+
+        assertThat(metrics.getReadLatencyP999Micros(), is(0L));
+    }
+
+    @Test
+    public void slowConsumerIsDisconnectedOnceOverTheMarkForTooLong() throws IOException {
+        TcpConnection limitedConnection = new TcpConnection(mockSocket, GatewayMetrics.disabled(),
+                ConnectionActivity.untracked(),
+                new OutboundLimit(GatewayConfig.SlowConsumerPolicy.DISCONNECT, 2, 0));
+        limitedConnection.send("abc".getBytes("UTF-8"));
+
+        try {
+            limitedConnection.send("def".getBytes("UTF-8"));
+            fail("Expected the slow consumer to be disconnected");
+        } catch (IOException e) {
+            verify(mockSocket).close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void flushDoesNotWaitForAnotherThreadsWrite() throws Exception {
+        CountDownLatch writeStarted = new CountDownLatch(1);
+        CountDownLatch releaseWrite = new CountDownLatch(1);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream stuckStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writeStarted.countDown();
+
+                try {
+                    releaseWrite.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                written.write(b, off, len);
+            }
+        };
+        when(mockSocket.getOutputStream()).thenReturn(stuckStream);
+        TcpConnection connection = new TcpConnection(mockSocket);
+
+        Thread writer = new Thread(() -> {
+            try {
+                connection.send("abc".getBytes("UTF-8"));
+                connection.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+        assertThat(writeStarted.await(5, TimeUnit.SECONDS), is(true));
+
+        // The writer is stuck on the client, this must neither block nor lose the data
+        connection.send("def".getBytes("UTF-8"));
+        connection.flush();
+        releaseWrite.countDown();
+        writer.join();
+        assertThat(written.toByteArray(), equalTo("abcdef".getBytes("UTF-8")));
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentSendersEachKeepTheirOrder() throws Exception {
+        int senders = 4;
+        int messagesPerSender = 2000;
+        Thread[] threads = new Thread[senders];
+
+        for (int i = 0; i < senders; i++) {
+            byte sender = (byte) i;
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int sequence = 0; sequence < messagesPerSender; sequence++) {
+                        tcpConnection.send(new byte[] { sender, (byte) (sequence >> 8), (byte) sequence });
+
+                        if (sequence % 10 == 0) {
+                            tcpConnection.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        tcpConnection.flush();
+        byte[] written = testOutputStream.toByteArray();
+        assertThat(written.length, is(senders * messagesPerSender * 3));
+        int[] nextSequence = new int[senders];
+
+        for (int i = 0; i < written.length; i += 3) {
+            int sequence = (written[i + 1] & 0xFF) << 8 | written[i + 2] & 0xFF;
+            assertThat(sequence, is(nextSequence[written[i]]++));
+        }
+    }
+}
@@ -17,6 +17,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -25,6 +26,7 @@ import java.net.SocketAddress;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -43,6 +45,7 @@ public class TcpListenerTest {
         protected void configure() {
             bind(ServerSocket.class).toInstance(mockServerSocket);
             bind(ConnectionProvider.class).toInstance(mockConnectionProvider);
+            bind(AdmissionControl.class).toInstance(AdmissionControl.unlimited());
         }
     }
 
@@ -55,16 +58,16 @@ public class TcpListenerTest {
     @Test
     public void openBindsServerSocket() throws IOException {
         int port = 1234;
-        tcpListener.open(port);
+        tcpListener.open(port, 50);
         SocketAddress expectedSocketAddress = new InetSocketAddress(port);
-        verify(mockServerSocket).bind(eq(expectedSocketAddress));
+        verify(mockServerSocket).bind(eq(expectedSocketAddress), eq(50));
     }
 
     @Test(expected = IOException.class)
     public void openWhenSocketIsBoundThrowsIOException() throws IOException {
         when(mockServerSocket.isBound()).thenReturn(true);
         int port = 1234;
-        tcpListener.open(port);
+        tcpListener.open(port, 50);
     }
 
     @Test
@@ -84,6 +87,7 @@ public class TcpListenerTest {
     public void getNextConnectionCallsServerSocketAccept() throws IOException {
         when(mockServerSocket.isBound()).thenReturn(true);
         when(mockServerSocket.isClosed()).thenReturn(false);
+        when(mockServerSocket.accept()).thenReturn(mockSocket);
         tcpListener.getNextConnection();
         verify(mockServerSocket).accept();
     }
@@ -111,4 +115,42 @@ public class TcpListenerTest {
         Connection actualConnection = tcpListener.getNextConnection();
         assertThat(actualConnection, is(mockConnection));
     }
+
+    @Test
+    public void rejectedConnectionIsResetAndTheNextOneReturned() throws IOException {
+        InetAddress flooder = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        InetAddress player = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+        AdmissionControl admissionControl = new AdmissionControl(1, 1, 0, GatewayMetrics.disabled());
+        admissionControl.admit(flooder);
+        Socket rejectedSocket = mock(Socket.class);
+        when(rejectedSocket.getInetAddress()).thenReturn(flooder);
+        when(mockSocket.getInetAddress()).thenReturn(player);
+        when(mockServerSocket.isBound()).thenReturn(true);
+        when(mockServerSocket.accept()).thenReturn(rejectedSocket, mockSocket);
+        when(mockConnectionProvider.get(mockSocket)).thenReturn(mockConnection);
+        TcpListener limitedListener = new TcpListener(mockServerSocket, mockConnectionProvider,
+                GatewayMetrics.disabled(), admissionControl);
+
+        assertThat(limitedListener.getNextConnection(), is(mockConnection));
+        verify(rejectedSocket).setSoLinger(true, 0);
+        verify(rejectedSocket).close();
+        verify(mockConnectionProvider, never()).get(rejectedSocket);
+    }
+
+    @Test
+    public void connectionThatFailsToBeSetUpIsClosedAndTheNextOneReturned() throws IOException {
+        // Room for one session, so the second only gets in if the first gave its place back
+        AdmissionControl admissionControl = new AdmissionControl(0, 0, 1, GatewayMetrics.disabled());
+        Socket brokenSocket = mock(Socket.class);
+        when(mockServerSocket.isBound()).thenReturn(true);
+        when(mockServerSocket.accept()).thenReturn(brokenSocket, mockSocket);
+        when(mockConnectionProvider.get(brokenSocket)).thenThrow(new IOException("Connection reset"));
+        when(mockConnectionProvider.get(mockSocket)).thenReturn(mockConnection);
+        TcpListener limitedListener = new TcpListener(mockServerSocket, mockConnectionProvider,
+                GatewayMetrics.disabled(), admissionControl);
+
+        assertThat(limitedListener.getNextConnection(), is(mockConnection));
+        verify(brokenSocket).close();
+        assertThat(admissionControl.getSessions(), is(1));
+    }
 }
@@ -8,6 +8,7 @@ package io.dreamsphere.grid.gateway;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -15,13 +16,20 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.zip.Inflater;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -48,6 +56,16 @@ public class TelnetConnectionTest {
         return new TelnetConnection(new TcpConnection(mockSocket), telnetBuffer);
     }
 
+    private TelnetConnection createNegotiatingConnection(byte[] buffer) throws IOException {
+        InputStream fakeInputStream = new ByteArrayInputStream(buffer);
+        when(mockSocket.getInputStream()).thenReturn(fakeInputStream);
+        when(mockSocket.getOutputStream()).thenReturn(fakeOutputStream);
+        when(mockSocket.isConnected()).thenReturn(true);
+        when(mockSocket.isClosed()).thenReturn(false);
+        return new TelnetConnection(new TcpConnection(mockSocket), GatewayMetrics.disabled(),
+                TelnetOptionPolicy.defaultPolicy());
+    }
+
     @Test
     public void readCanStreamNormalTextWithSmallBuffer() throws IOException {
         byte[] readBuffer = new byte[100];
@@ -77,6 +95,25 @@ public class TelnetConnectionTest {
         assertThat(actualBytesRead, is(5));
     }
 
+    @Test
+    public void readDoesNotCheckAvailabilityAfterAShortRefill() throws IOException {
+        TelnetConnection telnetConnection = createTestConnectionWithMockInput(100);
+        when(mockInputStream.read(any())).thenReturn(5);
+        int actualBytesRead = telnetConnection.read(new byte[50]);
+        assertThat(actualBytesRead, is(5));
+        verify(mockInputStream, never()).available();
+    }
+
+    @Test
+    public void readChecksAvailabilityOncePerFullRefill() throws IOException {
+        TelnetConnection telnetConnection = createTestConnectionWithMockInput(10);
+        when(mockInputStream.available()).thenReturn(0);
+        when(mockInputStream.read(any())).thenReturn(10);
+        int actualBytesRead = telnetConnection.read(new byte[50]);
+        assertThat(actualBytesRead, is(10));
+        verify(mockInputStream, times(1)).available();
+    }
+
     @Test
     public void readWillHandleUnexpectedEndOfStream() throws IOException {
         byte[] readBuffer = new byte[10];
@@ -131,6 +168,7 @@ public class TelnetConnectionTest {
         TelnetConnection telnetConnection = createTestConnection(new byte[]{},10);
         byte[] expectedMessage = "abc123[]!@#$%^&()-=_+ \t\nàèìòùÀÈÌÒÙáéíóúýÁÉÍÓÚÝ".getBytes("UTF-8");
         telnetConnection.send(expectedMessage);
+        telnetConnection.flush();
         byte[] actualMessage = fakeOutputStream.toByteArray();
         assertThat(actualMessage, equalTo(expectedMessage));
     }
@@ -140,11 +178,62 @@ public class TelnetConnectionTest {
         TelnetConnection telnetConnection = createTestConnection(new byte[]{},10);
         byte[] expectedMessage = "abc123[]!@#$%^&()-=_+ \t\nàèìòùÀÈÌÒÙáéíóúýÁÉÍÓÚÝ".getBytes("UTF-8");
         telnetConnection.send(expectedMessage, 10);
+        telnetConnection.flush();
         byte[] actualMessage = fakeOutputStream.toByteArray();
         assertThat(actualMessage, equalTo(Arrays.copyOfRange(expectedMessage, 0, 10)));
     }
 
 
+    @Test
+    public void sendDoublesIac() throws IOException {
+        TelnetConnection telnetConnection = createTestConnection(new byte[]{},10);
+        byte[] message = {'a', TelnetCodes.CMD_IAC, 'b', TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC};
+        telnetConnection.send(message);
+        telnetConnection.flush();
+        byte[] expectedMessage = {'a', TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, 'b',
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC};
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedMessage));
+    }
+
+    @Test
+    public void sendPassesHighBytesOtherThanIacThrough() throws IOException {
+        TelnetConnection telnetConnection = createTestConnection(new byte[]{},10);
+        byte[] message = new byte[255];
+
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+
+        telnetConnection.send(message);
+        telnetConnection.flush();
+        assertThat(fakeOutputStream.toByteArray(), equalTo(message));
+    }
+
+    @Test
+    public void sendDoublesIacInBuffers() throws IOException {
+        TelnetConnection telnetConnection = createTestConnection(new byte[]{},10);
+        ByteBuffer direct = ByteBuffer.allocateDirect(2);
+        direct.put(new byte[] {TelnetCodes.CMD_IAC, 'c'}).flip();
+        ByteBuffer[] messages = {ByteBuffer.wrap("ab".getBytes("UTF-8")), direct};
+        telnetConnection.send(messages);
+        telnetConnection.flush();
+        assertThat(fakeOutputStream.toByteArray(),
+                equalTo(new byte[] {'a', 'b', TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, 'c'}));
+        assertThat(messages[1], is(direct));
+        assertThat(direct.hasRemaining(), is(false));
+    }
+
+    @Test
+    public void sharedMessageIsSentAsEncoded() throws IOException {
+        TelnetConnection telnetConnection = createTestConnection(new byte[]{},10);
+        SharedMessage message = SharedMessage.telnet(new byte[] {'a', TelnetCodes.CMD_IAC, 'b'});
+        telnetConnection.send(message);
+        telnetConnection.flush();
+        assertThat(fakeOutputStream.toByteArray(),
+                equalTo(new byte[] {'a', TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, 'b'}));
+        assertThat(message.data().position(), is(0));
+    }
+
     @Test
     public void closeClosesSocket() throws IOException {
         TelnetConnection telnetConnection = createTestConnection(new byte[]{},10);
@@ -172,17 +261,13 @@ public class TelnetConnectionTest {
     }
 
     @Test
-    public void telnetConfirmsUnsupportedClientOption() throws IOException {
+    public void telnetDoesNotAnswerWontForDisabledOption() throws IOException {
         byte[] command = {
                 TelnetCodes.CMD_IAC,
                 TelnetCodes.CMD_WONT,
                 TelnetCodes.OPT_ENVIRONMENT_VARIABLES
         };
-        byte[] expectedResponse = {
-                TelnetCodes.CMD_IAC,
-                TelnetCodes.CMD_DONT,
-                TelnetCodes.OPT_ENVIRONMENT_VARIABLES
-        };
+        byte[] expectedResponse = {};
 
         TelnetConnection telnetConnection = createTestConnection(command,2);
         int bytesRead = telnetConnection.read(new byte[10]);
@@ -244,11 +329,7 @@ public class TelnetConnectionTest {
                 TelnetCodes.CMD_WONT,
                 TelnetCodes.OPT_ENVIRONMENT_VARIABLES
         };
-        byte[] expectedResponse = {
-                TelnetCodes.CMD_IAC,
-                TelnetCodes.CMD_DONT,
-                TelnetCodes.OPT_ENVIRONMENT_VARIABLES
-        };
+        byte[] expectedResponse = {};
 
         TelnetConnection telnetConnection = createTestConnection(command,2);
         int bytesRead = telnetConnection.read(new byte[10]);
@@ -276,17 +357,13 @@ public class TelnetConnectionTest {
     }
 
     @Test
-    public void telnetConfirmsUnsupportedServerOption() throws IOException {
+    public void telnetDoesNotAnswerDontForDisabledOption() throws IOException {
         byte[] command = {
                 TelnetCodes.CMD_IAC,
                 TelnetCodes.CMD_DONT,
                 TelnetCodes.OPT_ENVIRONMENT_VARIABLES
         };
-        byte[] expectedResponse = {
-                TelnetCodes.CMD_IAC,
-                TelnetCodes.CMD_WONT,
-                TelnetCodes.OPT_ENVIRONMENT_VARIABLES
-        };
+        byte[] expectedResponse = {};
 
         TelnetConnection telnetConnection = createTestConnection(command,2);
         int bytesRead = telnetConnection.read(new byte[10]);
@@ -348,11 +425,7 @@ public class TelnetConnectionTest {
                 TelnetCodes.CMD_DONT,
                 TelnetCodes.OPT_ENVIRONMENT_VARIABLES
         };
-        byte[] expectedResponse = {
-                TelnetCodes.CMD_IAC,
-                TelnetCodes.CMD_WONT,
-                TelnetCodes.OPT_ENVIRONMENT_VARIABLES
-        };
+        byte[] expectedResponse = {};
 
         TelnetConnection telnetConnection = createTestConnection(command,2);
         int bytesRead = telnetConnection.read(new byte[10]);
@@ -551,4 +624,394 @@ public class TelnetConnectionTest {
         assertThat(Arrays.copyOfRange(actualInput,0,expectedInput.length), equalTo(expectedInput));
     }
 
+    @Test
+    public void telnetTurnsEscapedIACIntoDataByte() throws IOException {
+        byte[] command = {
+                'a',
+                TelnetCodes.CMD_IAC,
+                TelnetCodes.CMD_IAC,
+                'b'
+        };
+        byte[] expectedInput = {
+                'a', TelnetCodes.CMD_IAC, 'b'
+        };
+
+        byte[] actualInput = new byte[10];
+        TelnetConnection telnetConnection = createTestConnection(command,2);
+        int bytesRead = telnetConnection.read(actualInput);
+        assertThat(bytesRead, is(3));
+        assertThat(Arrays.copyOfRange(actualInput,0,expectedInput.length), equalTo(expectedInput));
+    }
+
+    @Test
+    public void readStripsCommandsSplitAcrossBufferRefills() throws IOException {
+        byte[] command = {
+                'a', 'b', 'c',
+                TelnetCodes.CMD_IAC,
+                TelnetCodes.CMD_NOP,
+                'd', 'e',
+                TelnetCodes.CMD_IAC,
+                TelnetCodes.CMD_SB,
+                TelnetCodes.OPT_ENVIRONMENT_VARIABLES,
+                0, 'x', 'y', 'z',
+                TelnetCodes.CMD_IAC,
+                TelnetCodes.CMD_SE,
+                'f', 'g', 'h', 'i'
+        };
+        byte[] expectedInput = "abcdefghi".getBytes("UTF-8");
+
+        byte[] actualInput = new byte[100];
+        TelnetConnection telnetConnection = createTestConnection(command,3);
+        int bytesRead = telnetConnection.read(actualInput);
+        assertThat(bytesRead, is(expectedInput.length));
+        assertThat(Arrays.copyOfRange(actualInput,0,expectedInput.length), equalTo(expectedInput));
+    }
+
+    @Test
+    public void readKeepsWhatDoesNotFitInTheResultBufferForTheNextRead() throws IOException {
+        byte[] command = {
+                'a', 'b', 'c', 'd', 'e',
+                TelnetCodes.CMD_IAC,
+                TelnetCodes.CMD_NOP,
+                'f', 'g'
+        };
+
+        byte[] actualInput = new byte[3];
+        TelnetConnection telnetConnection = createTestConnection(command,100);
+        assertThat(telnetConnection.read(actualInput), is(3));
+        assertThat(actualInput, equalTo("abc".getBytes("UTF-8")));
+        assertThat(telnetConnection.read(actualInput), is(3));
+        assertThat(actualInput, equalTo("def".getBytes("UTF-8")));
+        assertThat(telnetConnection.read(actualInput), is(1));
+        assertThat(actualInput[0], equalTo((byte) 'g'));
+        assertThat(telnetConnection.read(actualInput), is(-1));
+    }
+
+    @Test
+    public void telnetAcceptsClientOptionAllowedByPolicy() throws IOException {
+        byte[] command = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_WINDOW_SIZE};
+        byte[] expectedResponse = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_WINDOW_SIZE};
+
+        TelnetConnection telnetConnection = createNegotiatingConnection(command);
+        telnetConnection.read(new byte[10]);
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedResponse));
+        assertThat(telnetConnection.isEnabledRemotely(TelnetCodes.OPT_WINDOW_SIZE), is(true));
+    }
+
+    @Test
+    public void telnetEnablesServerOptionAllowedByPolicy() throws IOException {
+        byte[] command = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_ECHO};
+        byte[] expectedResponse = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_ECHO};
+
+        TelnetConnection telnetConnection = createNegotiatingConnection(command);
+        telnetConnection.read(new byte[10]);
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedResponse));
+        assertThat(telnetConnection.isEnabledLocally(TelnetCodes.OPT_ECHO), is(true));
+    }
+
+    @Test
+    public void telnetConfirmsClientDisablingAnEnabledOption() throws IOException {
+        byte[] command = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_WINDOW_SIZE,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WONT, TelnetCodes.OPT_WINDOW_SIZE
+        };
+        byte[] expectedResponse = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_WINDOW_SIZE,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DONT, TelnetCodes.OPT_WINDOW_SIZE
+        };
+
+        TelnetConnection telnetConnection = createNegotiatingConnection(command);
+        telnetConnection.read(new byte[10]);
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedResponse));
+        assertThat(telnetConnection.isEnabledRemotely(TelnetCodes.OPT_WINDOW_SIZE), is(false));
+    }
+
+    @Test
+    public void answersToInitialOffersAreNotAcknowledgedAgain() throws IOException {
+        byte[] answers = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_SUPPRESS_GO_AHEAD,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_ECHO,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_WINDOW_SIZE,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WONT, TelnetCodes.OPT_TERMINAL_TYPE
+        };
+        byte[] expectedOffers = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_SUPPRESS_GO_AHEAD,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_ECHO,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_WINDOW_SIZE,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_TERMINAL_TYPE
+        };
+
+        TelnetConnection telnetConnection = createNegotiatingConnection(answers);
+        telnetConnection.sendInitialOffers();
+        telnetConnection.flush();
+        telnetConnection.read(new byte[10]);
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedOffers));
+        assertThat(telnetConnection.isEnabledLocally(TelnetCodes.OPT_SUPPRESS_GO_AHEAD), is(true));
+        assertThat(telnetConnection.isEnabledLocally(TelnetCodes.OPT_ECHO), is(true));
+        assertThat(telnetConnection.isEnabledRemotely(TelnetCodes.OPT_WINDOW_SIZE), is(true));
+        assertThat(telnetConnection.isEnabledRemotely(TelnetCodes.OPT_TERMINAL_TYPE), is(false));
+    }
+
+    @Test
+    public void changeOfMindWhileWaitingIsQueuedUntilTheAnswer() throws IOException {
+        byte[] answers = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_WINDOW_SIZE,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WONT, TelnetCodes.OPT_WINDOW_SIZE
+        };
+        byte[] expectedResponse = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_WINDOW_SIZE,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DONT, TelnetCodes.OPT_WINDOW_SIZE
+        };
+
+        TelnetConnection telnetConnection = createNegotiatingConnection(answers);
+        telnetConnection.requestRemote(TelnetCodes.OPT_WINDOW_SIZE, true);
+        // Nothing goes out for this until the client has answered the first request
+        telnetConnection.requestRemote(TelnetCodes.OPT_WINDOW_SIZE, false);
+        telnetConnection.read(new byte[10]);
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedResponse));
+        assertThat(telnetConnection.isEnabledRemotely(TelnetCodes.OPT_WINDOW_SIZE), is(false));
+    }
+
+    @Test
+    public void sessionSendsOffersAndBannerInOneWrite() throws IOException {
+        int[] writes = new int[1];
+        OutputStream countingOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                writes[0]++;
+                fakeOutputStream.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes[0]++;
+                fakeOutputStream.write(b, off, len);
+            }
+        };
+        when(mockSocket.getInputStream()).thenReturn(mockInputStream);
+        when(mockSocket.getOutputStream()).thenReturn(countingOutputStream);
+        when(mockSocket.isConnected()).thenReturn(true);
+        TelnetOptionPolicy policy = TelnetOptionPolicy.defaultPolicy();
+        GatewaySession session = new GatewaySession(
+                new TelnetConnection(new TcpConnection(mockSocket), GatewayMetrics.disabled(), policy));
+
+        session.open();
+
+        byte[] offers = policy.initialOffers();
+        byte[] written = fakeOutputStream.toByteArray();
+        assertThat(writes[0], is(1));
+        assertThat(Arrays.copyOf(written, offers.length), equalTo(offers));
+        assertThat(new String(written, offers.length, written.length - offers.length, "UTF-8"),
+                is("Welcome!\n\r"));
+    }
+
+    @Test
+    public void windowSizeIsReportedToTheOptionListener() throws IOException {
+        // 255 columns, which puts a doubled IAC in the payload, by 40 rows, split over several refills
+        byte[] command = {
+                'a',
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_WINDOW_SIZE,
+                0, (byte) 255, (byte) 255, 0, 40,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE,
+                'b'
+        };
+        TelnetOptionListener listener = mock(TelnetOptionListener.class);
+
+        byte[] actualInput = new byte[10];
+        TelnetConnection telnetConnection = createTestConnection(command, 3);
+        telnetConnection.setOptionListener(listener);
+        int bytesRead = telnetConnection.read(actualInput);
+        assertThat(bytesRead, is(2));
+        assertThat(Arrays.copyOf(actualInput, 2), equalTo(new byte[] {'a', 'b'}));
+        verify(listener).windowSizeChanged(255, 40);
+    }
+
+    @Test
+    public void terminalTypeIsAskedForOnceTheClientAgrees() throws IOException {
+        byte[] command = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_TERMINAL_TYPE,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_TERMINAL_TYPE, TelnetSubnegotiation.IS,
+                'X', 'T', 'E', 'R', 'M',
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE
+        };
+        byte[] expectedResponse = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_TERMINAL_TYPE,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_TERMINAL_TYPE, TelnetSubnegotiation.SEND,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE
+        };
+        TelnetOptionListener listener = mock(TelnetOptionListener.class);
+
+        TelnetConnection telnetConnection = createNegotiatingConnection(command);
+        telnetConnection.setOptionListener(listener);
+        telnetConnection.read(new byte[10]);
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedResponse));
+        verify(listener).terminalTypeReceived("XTERM");
+    }
+
+    @Test
+    public void oversizedSubnegotiationIsCutShort() throws IOException {
+        ByteArrayOutputStream command = new ByteArrayOutputStream();
+        command.write(new byte[] {TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_TERMINAL_TYPE,
+                TelnetSubnegotiation.IS});
+
+        for (int i = 0; i < 10_000; i++) {
+            command.write('x');
+        }
+
+        command.write(new byte[] {TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE, 'o', 'k'});
+        TelnetOptionListener listener = mock(TelnetOptionListener.class);
+        ArgumentCaptor<String> terminalType = ArgumentCaptor.forClass(String.class);
+
+        byte[] actualInput = new byte[10];
+        TelnetConnection telnetConnection = createTestConnection(command.toByteArray(), 1024);
+        telnetConnection.setOptionListener(listener);
+        int bytesRead = telnetConnection.read(actualInput);
+        assertThat(bytesRead, is(2));
+        assertThat(Arrays.copyOf(actualInput, 2), equalTo(new byte[] {'o', 'k'}));
+        verify(listener).terminalTypeReceived(terminalType.capture());
+        // The option code and IS take up the first two bytes of the 512 kept
+        assertThat(terminalType.getValue().length(), is(510));
+    }
+
+    @Test
+    public void truncatedSubnegotiationsAreCountedButLoggedOnce() throws IOException {
+        ByteArrayOutputStream command = new ByteArrayOutputStream();
+
+        for (int n = 0; n < 3; n++) {
+            command.write(new byte[] {TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_TERMINAL_TYPE,
+                    TelnetSubnegotiation.IS});
+
+            for (int i = 0; i < 1000; i++) {
+                command.write('x');
+            }
+
+            command.write(new byte[] {TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE});
+        }
+
+        command.write(new byte[] {'o', 'k'});
+        when(mockSocket.getInputStream()).thenReturn(new ByteArrayInputStream(command.toByteArray()));
+        when(mockSocket.getOutputStream()).thenReturn(fakeOutputStream);
+        when(mockSocket.isConnected()).thenReturn(true);
+        GatewayMetrics metrics = new GatewayMetrics();
+        TelnetConnection telnetConnection = new TelnetConnection(new TcpConnection(mockSocket), 1024, metrics);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(log, true, "UTF-8"));
+
+        try {
+            assertThat(telnetConnection.read(new byte[10]), is(2));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        assertThat(metrics.getTruncatedSubnegotiations(), is(3L));
+        assertThat(log.toString("UTF-8").split("cut short", -1).length - 1, is(1));
+    }
+
+    @Test
+    public void readBufferIsHeldOnlyWhileInputIsLeftToDecode() throws IOException {
+        TelnetConnection telnetConnection = createTestConnection("abcdef".getBytes("UTF-8"), 16);
+        int inUse = TelnetConnection.READ_BUFFERS.buffersInUse();
+        byte[] readBuffer = new byte[4];
+
+        assertThat(telnetConnection.read(readBuffer), is(4));
+        assertThat(TelnetConnection.READ_BUFFERS.buffersInUse(), is(inUse + 1));
+        assertThat(telnetConnection.read(readBuffer), is(2));
+        assertThat(TelnetConnection.READ_BUFFERS.buffersInUse(), is(inUse));
+    }
+
+    @Test
+    public void sessionAnswersEveryLineOfMergedInput() throws IOException {
+        TelnetConnection telnetConnection = createTestConnection("look\r\nnorth\r\nso".getBytes("UTF-8"), 64);
+        GatewaySession session = new GatewaySession(telnetConnection);
+
+        assertThat(session.process(), is(15));
+        // The unfinished "so" waits for the rest of its line
+        assertThat(new String(fakeOutputStream.toByteArray(), "UTF-8"), is("I agree!\n\rI agree!\n\r"));
+    }
+
+    @Test
+    public void outputIsCompressedOnceTheClientAgreesToMccp2() throws Exception {
+        byte[] command = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_COMPRESS2};
+        byte[] expectedStart = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_COMPRESS2,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_COMPRESS2,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE
+        };
+
+        TelnetConnection telnetConnection = createCompressingConnection(command, new CompressionControl(6, 1,
+                GatewayMetrics.disabled()));
+        telnetConnection.read(new byte[10]);
+        telnetConnection.send("Welcome!".getBytes("UTF-8"));
+        telnetConnection.flush();
+
+        byte[] written = fakeOutputStream.toByteArray();
+        assertThat(Arrays.copyOf(written, expectedStart.length), equalTo(expectedStart));
+        Inflater inflater = new Inflater();
+        inflater.setInput(written, expectedStart.length, written.length - expectedStart.length);
+        byte[] inflated = new byte[100];
+        assertThat(new String(inflated, 0, inflater.inflate(inflated), "UTF-8"), is("Welcome!"));
+    }
+
+    @Test
+    public void compressionStartMarkerGoesOutWhenTheOfferIsAccepted() throws IOException {
+        byte[] command = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_COMPRESS2};
+        byte[] expectedOutput = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_COMPRESS2,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SB, TelnetCodes.OPT_COMPRESS2,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_SE
+        };
+
+        TelnetConnection telnetConnection = createCompressingConnection(command, new CompressionControl(6, 1,
+                GatewayMetrics.disabled()));
+        telnetConnection.sendInitialOffers();
+        telnetConnection.flush();
+        // Agreeing to our own offer needs no answer, but the marker still has to reach the client
+        telnetConnection.read(new byte[10]);
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedOutput));
+    }
+
+    @Test
+    public void mccp2IsRefusedOverTheCompressorCap() throws IOException {
+        byte[] command = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_COMPRESS2};
+        byte[] expectedResponse = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_WONT, TelnetCodes.OPT_COMPRESS2};
+
+        TelnetConnection telnetConnection = createCompressingConnection(command, new CompressionControl(6, 0,
+                GatewayMetrics.disabled()));
+        telnetConnection.read(new byte[10]);
+        assertThat(fakeOutputStream.toByteArray(), equalTo(expectedResponse));
+    }
+
+    @Test
+    public void compressedStreamEndsBeforeConfirmingDont() throws Exception {
+        byte[] command = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_COMPRESS2,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DONT, TelnetCodes.OPT_COMPRESS2
+        };
+        byte[] expectedEnd = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_WONT, TelnetCodes.OPT_COMPRESS2};
+        CompressionControl compressionControl = new CompressionControl(6, 1, GatewayMetrics.disabled());
+
+        TelnetConnection telnetConnection = createCompressingConnection(command, compressionControl);
+        telnetConnection.read(new byte[10]);
+
+        byte[] written = fakeOutputStream.toByteArray();
+        Inflater inflater = new Inflater();
+        inflater.setInput(written, 8, written.length - 8);
+        inflater.inflate(new byte[100]);
+        assertThat(inflater.finished(), is(true));
+        assertThat(Arrays.copyOfRange(written, written.length - inflater.getRemaining(), written.length),
+                equalTo(expectedEnd));
+        assertThat(compressionControl.getCompressors(), is(0));
+    }
+
+    private TelnetConnection createCompressingConnection(byte[] buffer, CompressionControl compressionControl)
+            throws IOException {
+        InputStream fakeInputStream = new ByteArrayInputStream(buffer);
+        when(mockSocket.getInputStream()).thenReturn(fakeInputStream);
+        when(mockSocket.getOutputStream()).thenReturn(fakeOutputStream);
+        when(mockSocket.isConnected()).thenReturn(true);
+        when(mockSocket.isClosed()).thenReturn(false);
+        return new TelnetConnection(new TcpConnection(mockSocket), GatewayMetrics.disabled(),
+                TelnetOptionPolicy.parse("86", ""), compressionControl);
+    }
 }
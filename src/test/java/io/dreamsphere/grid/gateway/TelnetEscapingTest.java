@@ -0,0 +1,66 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TelnetEscapingTest {
+    @Test
+    public void indexOfIacFindsIacAtEveryOffset() {
+        for (int iac = 0; iac < 40; iac++) {
+            byte[] data = new byte[40];
+            Arrays.fill(data, (byte) 0xFE);
+            data[iac] = TelnetCodes.CMD_IAC;
+            assertThat(TelnetEscaping.indexOfIac(data, 0, data.length), is(iac));
+            assertThat(TelnetEscaping.indexOfIac(ByteBuffer.wrap(data), 0, data.length), is(iac));
+        }
+    }
+
+    @Test
+    public void indexOfIacReturnsTheEndWhenThereIsNone() {
+        byte[] data = new byte[255];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        assertThat(TelnetEscaping.indexOfIac(data, 0, data.length), is(data.length));
+        assertThat(TelnetEscaping.indexOfIac(ByteBuffer.wrap(data), 3, 200), is(200));
+    }
+
+    @Test
+    public void indexOfIacOnlyLooksInsideTheRange() {
+        byte[] data = new byte[20];
+        data[2] = TelnetCodes.CMD_IAC;
+        data[17] = TelnetCodes.CMD_IAC;
+        assertThat(TelnetEscaping.indexOfIac(data, 3, 17), is(17));
+        assertThat(TelnetEscaping.indexOfIac(data, 3, 18), is(17));
+    }
+
+    @Test
+    public void escapeDoublesEveryIac() {
+        byte[] data = {TelnetCodes.CMD_IAC, 'a', TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, 'b'};
+        byte[] expected = {TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, 'a', TelnetCodes.CMD_IAC,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, TelnetCodes.CMD_IAC, 'b'};
+        assertThat(TelnetEscaping.escape(data, 0, data.length, 0), equalTo(expected));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        ByteBuffer escaped = TelnetEscaping.escape(buffer, 0);
+        byte[] actual = new byte[escaped.remaining()];
+        escaped.get(actual);
+        assertThat(actual, equalTo(expected));
+        assertThat(buffer.hasRemaining(), is(false));
+    }
+}
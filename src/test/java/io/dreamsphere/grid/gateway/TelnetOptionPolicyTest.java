@@ -0,0 +1,53 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TelnetOptionPolicyTest {
+    @Test
+    public void parsedPolicyAllowsExactlyTheListedOptions() {
+        TelnetOptionPolicy policy = TelnetOptionPolicy.parse("3, 1", "31");
+
+        assertThat(policy.allowsLocally(TelnetCodes.OPT_SUPPRESS_GO_AHEAD), is(true));
+        assertThat(policy.allowsLocally(TelnetCodes.OPT_ECHO), is(true));
+        assertThat(policy.allowsLocally(TelnetCodes.OPT_WINDOW_SIZE), is(false));
+        assertThat(policy.allowsRemotely(TelnetCodes.OPT_WINDOW_SIZE), is(true));
+        assertThat(policy.allowsRemotely(TelnetCodes.OPT_ECHO), is(false));
+    }
+
+    @Test
+    public void initialOffersListWillsThenDos() {
+        byte[] expectedOffers = {
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_WILL, TelnetCodes.OPT_ECHO,
+                TelnetCodes.CMD_IAC, TelnetCodes.CMD_DO, TelnetCodes.OPT_TERMINAL_TYPE
+        };
+
+        assertThat(TelnetOptionPolicy.parse("1", "24").initialOffers(), equalTo(expectedOffers));
+    }
+
+    @Test
+    public void emptyListsRefuseEverything() {
+        TelnetOptionPolicy policy = TelnetOptionPolicy.parse("", " ");
+
+        assertThat(policy.initialOffers().length, is(0));
+
+        for (int option = 0; option < 256; option++) {
+            assertThat(policy.allowsLocally((byte) option), is(false));
+            assertThat(policy.allowsRemotely((byte) option), is(false));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void optionCodesOutOfRangeAreRejected() {
+        TelnetOptionPolicy.parse("256", "");
+    }
+}
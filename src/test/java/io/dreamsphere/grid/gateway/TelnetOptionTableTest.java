@@ -0,0 +1,73 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TelnetOptionTableTest {
+    private final TelnetOptionTable optionTable = new TelnetOptionTable();
+
+    @Test
+    public void optionsStartOutDisabledAndNotNegotiated() {
+        for (int option = 0; option < 256; option++) {
+            assertThat(optionTable.getState(TelnetOptionTable.US, (byte) option), is(TelnetOptionTable.NO));
+            assertThat(optionTable.getState(TelnetOptionTable.HIM, (byte) option), is(TelnetOptionTable.NO));
+            assertThat(optionTable.isQueued(TelnetOptionTable.HIM, (byte) option), is(false));
+            assertThat(optionTable.isNegotiated(TelnetOptionTable.US, (byte) option), is(false));
+        }
+    }
+
+    @Test
+    public void stateIsStoredPerOption() {
+        optionTable.setState(TelnetOptionTable.US, (byte) 7, TelnetOptionTable.WANTYES);
+        assertThat(optionTable.getState(TelnetOptionTable.US, (byte) 7), is(TelnetOptionTable.WANTYES));
+        assertThat(optionTable.getState(TelnetOptionTable.US, (byte) 6), is(TelnetOptionTable.NO));
+        assertThat(optionTable.getState(TelnetOptionTable.US, (byte) 8), is(TelnetOptionTable.NO));
+    }
+
+    @Test
+    public void sidesAreIndependent() {
+        optionTable.setState(TelnetOptionTable.HIM, TelnetCodes.OPT_ENVIRONMENT_VARIABLES, TelnetOptionTable.YES);
+        optionTable.setQueued(TelnetOptionTable.HIM, TelnetCodes.OPT_ENVIRONMENT_VARIABLES, true);
+        assertThat(optionTable.getState(TelnetOptionTable.US, TelnetCodes.OPT_ENVIRONMENT_VARIABLES),
+                is(TelnetOptionTable.NO));
+        assertThat(optionTable.isQueued(TelnetOptionTable.US, TelnetCodes.OPT_ENVIRONMENT_VARIABLES), is(false));
+        assertThat(optionTable.getState(TelnetOptionTable.HIM, TelnetCodes.OPT_ENVIRONMENT_VARIABLES),
+                is(TelnetOptionTable.YES));
+    }
+
+    @Test
+    public void updatingOneFieldLeavesTheOthersAlone() {
+        byte option = (byte) 255;
+        optionTable.markNegotiated(TelnetOptionTable.US, option);
+        optionTable.setQueued(TelnetOptionTable.US, option, true);
+        optionTable.setState(TelnetOptionTable.US, option, TelnetOptionTable.WANTNO);
+        assertThat(optionTable.isNegotiated(TelnetOptionTable.US, option), is(true));
+        assertThat(optionTable.isQueued(TelnetOptionTable.US, option), is(true));
+        assertThat(optionTable.getState(TelnetOptionTable.US, option), is(TelnetOptionTable.WANTNO));
+
+        optionTable.setQueued(TelnetOptionTable.US, option, false);
+        assertThat(optionTable.isQueued(TelnetOptionTable.US, option), is(false));
+        assertThat(optionTable.getState(TelnetOptionTable.US, option), is(TelnetOptionTable.WANTNO));
+    }
+
+    @Test
+    public void everyOptionHasItsOwnSlot() {
+        for (int option = 0; option < 256; option++) {
+            optionTable.setState(TelnetOptionTable.US, (byte) option, option % 4);
+            optionTable.setState(TelnetOptionTable.HIM, (byte) option, 3 - option % 4);
+        }
+
+        for (int option = 0; option < 256; option++) {
+            assertThat(optionTable.getState(TelnetOptionTable.US, (byte) option), is(option % 4));
+            assertThat(optionTable.getState(TelnetOptionTable.HIM, (byte) option), is(3 - option % 4));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TelnetSubnegotiationTest {
+    private final TelnetOptionListener listener = mock(TelnetOptionListener.class);
+    private Map<String, String> environment;
+
+    @Test
+    public void environmentVariablesAreParsedInOrder() {
+        byte[] payload = {
+                TelnetCodes.OPT_NEW_ENVIRONMENT, TelnetSubnegotiation.IS,
+                0, 'U', 'S', 'E', 'R', 1, 'b', 'o', 'b',
+                3, 'C', 'O', 'L', 'O', 'R',
+                3, 'E', 'S', 'C', 1, 'a', 2, 1, 'b'
+        };
+
+        TelnetSubnegotiation.dispatch(payload, payload.length, new TelnetOptionListener() {
+            @Override
+            public void environmentReceived(Map<String, String> variables) {
+                environment = variables;
+            }
+        });
+
+        assertThat(environment.keySet(), contains("USER", "COLOR", "ESC"));
+        assertThat(environment.get("USER"), is("bob"));
+        // Sent without a value
+        assertThat(environment.get("COLOR"), is(""));
+        // ESC lets a type code through as part of the value
+        assertThat(environment.get("ESC"), is("a\u0001b"));
+    }
+
+    @Test
+    public void shortWindowSizeIsDropped() {
+        byte[] payload = {TelnetCodes.OPT_WINDOW_SIZE, 0, 80, 0};
+
+        TelnetSubnegotiation.dispatch(payload, payload.length, listener);
+
+        verify(listener, never()).windowSizeChanged(anyInt(), anyInt());
+    }
+
+    @Test
+    public void onlyTheCapturedLengthIsRead() {
+        byte[] payload = {TelnetCodes.OPT_WINDOW_SIZE, 0, 80, 0, 24, 0, 0, 0, 0};
+
+        TelnetSubnegotiation.dispatch(payload, 5, listener);
+
+        verify(listener).windowSizeChanged(80, 24);
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TimingWheelTest {
+    private final TimingWheel wheel = new TimingWheel("test-wheel", 5, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    @Test
+    public void taskRunsOnceItsTicksHavePassed() throws InterruptedException {
+        wheel.start();
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong firedAt = new AtomicLong();
+        long scheduledAt = wheel.currentTick();
+        wheel.schedule(() -> {
+            firedAt.set(wheel.currentTick());
+            fired.countDown();
+        }, 3);
+
+        assertThat(fired.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(firedAt.get() - scheduledAt, greaterThanOrEqualTo(3L));
+    }
+
+    @Test
+    public void delaysLongerThanAFullTurnWaitOutTheTurns() throws InterruptedException {
+        wheel.start();
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong firedAt = new AtomicLong();
+        long scheduledAt = wheel.currentTick();
+        wheel.schedule(() -> {
+            firedAt.set(wheel.currentTick());
+            fired.countDown();
+        }, 20);
+
+        assertThat(fired.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(firedAt.get() - scheduledAt, greaterThanOrEqualTo(20L));
+    }
+
+    @Test
+    public void cancelledTaskNeverRuns() throws InterruptedException {
+        wheel.start();
+        CountDownLatch cancelledFired = new CountDownLatch(1);
+        CountDownLatch laterFired = new CountDownLatch(1);
+        wheel.schedule(cancelledFired::countDown, 2).cancel();
+        wheel.schedule(laterFired::countDown, 6);
+
+        assertThat(laterFired.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(cancelledFired.getCount(), is(1L));
+    }
+}
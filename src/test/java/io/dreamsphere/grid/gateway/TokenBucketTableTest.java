@@ -0,0 +1,119 @@
+/* Copyright (C) Ben Maizels - All Rights Reserved
+ * Unauthorized copying of this file, via any medium is strictly prohibited
+ * Proprietary and confidential
+ * Written by Ben Maizels <ben@dreamsphere.io>, October 2016
+ */
+
+package io.dreamsphere.grid.gateway;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TokenBucketTableTest {
+    // Ten connections a second, five at once
+    private final TokenBucketTable table = new TokenBucketTable(64, 10, 5);
+
+    @Test
+    public void burstIsAdmittedAndThenNoMore() throws UnknownHostException {
+        InetAddress address = address(1);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(table.tryAcquire(address, millis(1000)), is(true));
+        }
+
+        assertThat(table.tryAcquire(address, millis(1000)), is(false));
+    }
+
+    @Test
+    public void bucketRefillsAtTheRate() throws UnknownHostException {
+        InetAddress address = address(1);
+
+        for (int i = 0; i < 5; i++) {
+            table.tryAcquire(address, millis(1000));
+        }
+
+        assertThat(table.tryAcquire(address, millis(1099)), is(false));
+        assertThat(table.tryAcquire(address, millis(1100)), is(true));
+        assertThat(table.tryAcquire(address, millis(1100)), is(false));
+        assertThat(table.tryAcquire(address, millis(1300)), is(true));
+        assertThat(table.tryAcquire(address, millis(1300)), is(true));
+        assertThat(table.tryAcquire(address, millis(1300)), is(false));
+    }
+
+    @Test
+    public void addressesHaveBucketsOfTheirOwn() throws UnknownHostException {
+        for (int i = 0; i < 5; i++) {
+            table.tryAcquire(address(1), millis(1000));
+        }
+
+        assertThat(table.tryAcquire(address(1), millis(1000)), is(false));
+        assertThat(table.tryAcquire(address(2), millis(1000)), is(true));
+    }
+
+    @Test
+    public void moreAddressesThanSlotsEvictTheQuietOnes() throws UnknownHostException {
+        InetAddress flooder = address(1);
+
+        for (int i = 0; i < 5; i++) {
+            table.tryAcquire(flooder, millis(1000));
+        }
+
+        // Far more addresses than the table has room for, each connecting once
+        for (int i = 2; i < 10_000; i++) {
+            assertThat(table.tryAcquire(address(i), millis(1000 + i)), is(true));
+        }
+
+        // The flooder's bucket has long refilled, whether it was evicted or not
+        assertThat(table.tryAcquire(flooder, millis(20_000)), is(true));
+    }
+
+    @Test
+    public void rateThatDoesNotDivideASecondIsKept() throws UnknownHostException {
+        TokenBucketTable oneAtATime = new TokenBucketTable(64, 400, 1);
+        InetAddress address = address(1);
+
+        assertThat(oneAtATime.tryAcquire(address, 0), is(true));
+        assertThat(oneAtATime.tryAcquire(address, 2000), is(false));
+        assertThat(oneAtATime.tryAcquire(address, 2499), is(false));
+        assertThat(oneAtATime.tryAcquire(address, 2500), is(true));
+
+        TokenBucketTable threeHundred = new TokenBucketTable(64, 300, 1);
+        int admitted = 0;
+
+        for (long now = 0; now < 1_000_000; now++) {
+            if (threeHundred.tryAcquire(address, now)) {
+                admitted++;
+            }
+        }
+
+        // The first straight away, then 300 in the second after it
+        assertThat(admitted, is(301));
+    }
+
+    @Test
+    public void burstIsKeptForARateThatDoesNotDivideASecond() throws UnknownHostException {
+        TokenBucketTable bursty = new TokenBucketTable(64, 300, 3);
+        InetAddress address = address(1);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(bursty.tryAcquire(address, 0), is(true));
+        }
+
+        assertThat(bursty.tryAcquire(address, 0), is(false));
+        assertThat(bursty.tryAcquire(address, 3332), is(false));
+        assertThat(bursty.tryAcquire(address, 3333), is(true));
+    }
+
+    private static long millis(long millis) {
+        return millis * 1000;
+    }
+
+    private static InetAddress address(int host) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] { 10, (byte) (host >> 16), (byte) (host >> 8), (byte) host });
+    }
+}